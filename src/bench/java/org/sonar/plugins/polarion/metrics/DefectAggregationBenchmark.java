@@ -0,0 +1,91 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import com.polarion.alm.ws.client.types.tracker.EnumOptionId;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.sonar.api.config.Settings;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting fetched defects per severity and resolution, over synthetic defects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DefectAggregationBenchmark {
+  private static final String[] SEVERITIES = {"blocker", "critical", "major", "normal", "minor", "trivial"};
+  private static final String[] RESOLUTIONS = {"done", "duplicate", "invalid", "wontfix", "worksforme"};
+
+  @Param({"1000", "10000", "100000", "1000000"})
+  public int numberOfDefects;
+
+  private PolarionSensor sensor;
+  private WorkItem[] defects;
+
+  @Setup
+  public void setUp() {
+    sensor = new PolarionSensor(new Settings());
+    Random random = new Random(42);
+    defects = new WorkItem[numberOfDefects];
+    for (int i = 0; i < numberOfDefects; i++) {
+      WorkItem defect = new WorkItem();
+      defect.setId("BENCH-" + i);
+      defect.setSeverity(new EnumOptionId(SEVERITIES[random.nextInt(SEVERITIES.length)]));
+      if (random.nextInt(10) < 4) {
+        defect.setResolution(new EnumOptionId(RESOLUTIONS[random.nextInt(RESOLUTIONS.length)]));
+      }
+      defects[i] = defect;
+    }
+  }
+
+  @Benchmark
+  public Map<String, Integer> groupBySeverity() {
+    return sensor.groupDefectsByEnumState(defects, "severity");
+  }
+
+  @Benchmark
+  public void splitByResolution(Blackhole blackhole) {
+    EnumStateCounter openDefectsBySeverity = new EnumStateCounter();
+    EnumStateCounter resolvedDefectsByResolution = new EnumStateCounter();
+    sensor.splitDefectsByResolution(defects, openDefectsBySeverity, resolvedDefectsByResolution);
+    blackhole.consume(openDefectsBySeverity);
+    blackhole.consume(resolvedDefectsByResolution);
+  }
+
+  @Benchmark
+  public DefectSnapshot updateSnapshot() {
+    DefectSnapshot snapshot = new DefectSnapshot(0);
+    snapshot.update(defects);
+    return snapshot;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.metrics.PolarionSensor.DefectPerEnumState;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning defect counts into the distribution stored with the measures, for growing numbers of enum options.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DefectDistributionBenchmark {
+
+  @Param({"6", "50", "500"})
+  public int numberOfEnumStates;
+
+  private PolarionSensor sensor;
+  private Map<String, String> enumStates;
+  private Map<String, Integer> defectsPerEnumState;
+  private DefectPerEnumState distribution;
+
+  @Setup
+  public void setUp() {
+    sensor = new PolarionSensor(new Settings());
+    enumStates = Maps.newLinkedHashMap();
+    defectsPerEnumState = Maps.newHashMap();
+    for (int i = 0; i < numberOfEnumStates; i++) {
+      enumStates.put("state" + i, "State " + i);
+      // leave every third option without defects
+      if (i % 3 != 0) {
+        defectsPerEnumState.put("state" + i, i * 7);
+      }
+    }
+    distribution = sensor.mapNumberOfDefectsPerEnumState(enumStates, defectsPerEnumState);
+  }
+
+  @Benchmark
+  public DefectPerEnumState mapNumberOfDefectsPerEnumState() {
+    return sensor.mapNumberOfDefectsPerEnumState(enumStates, defectsPerEnumState);
+  }
+
+  @Benchmark
+  public String buildDistributionData() {
+    return distribution.getDistribution().buildData();
+  }
+}
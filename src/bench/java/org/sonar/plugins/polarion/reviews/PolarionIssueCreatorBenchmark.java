@@ -0,0 +1,155 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+import com.polarion.alm.ws.client.projects.ProjectWebService;
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import com.polarion.alm.ws.client.types.projects.Project;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.config.Settings;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.api.issue.internal.DefaultIssueComment;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rules.Rule;
+import org.sonar.api.rules.RuleFinder;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionSession;
+
+import javax.xml.rpc.ServiceException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side cost of creating a Polarion defect, against in-process services answering immediately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PolarionIssueCreatorBenchmark {
+
+  @Param({"0", "1", "10", "50"})
+  public int numberOfComments;
+
+  private PolarionIssueCreator polarionIssueCreator;
+  private PolarionSession soapSession;
+  private DefaultIssue sonarIssue;
+  private Settings settings;
+
+  @Setup
+  public void setUp() throws MalformedURLException {
+    RuleFinder ruleFinder = stub(RuleFinder.class, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return "findByKey".equals(method.getName()) ? Rule.create().setName("Avoid cycle between java packages") : null;
+      }
+    });
+    polarionIssueCreator = new PolarionIssueCreator(ruleFinder);
+    soapSession = new StubPolarionSession();
+
+    settings = new Settings();
+    settings.setProperty(CoreProperties.SERVER_BASE_URL, "http://my.sonar.com");
+    settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, "http://localhost");
+    settings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "foo");
+    settings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "bar");
+    settings.setProperty(PolarionConstants.POLARION_CREATE_PROJECT_ID, "BENCH");
+
+    sonarIssue = new DefaultIssue()
+      .setKey("ABCD")
+      .setMessage("The Cyclomatic Complexity of this method is 14 which is greater than 10 authorized.")
+      .setSeverity("MINOR")
+      .setRuleKey(RuleKey.of("squid", "CycleBetweenPackages"));
+    for (int i = 0; i < numberOfComments; i++) {
+      DefaultIssueComment comment = new DefaultIssueComment();
+      comment.setUserLogin("admin");
+      comment.setMarkdownText("Review comment " + i);
+      comment.setCreatedAt(new Date());
+      sonarIssue.addComment(comment);
+    }
+  }
+
+  @Benchmark
+  public String doCreateIssue() throws RemoteException {
+    return polarionIssueCreator.doCreateIssue(sonarIssue, soapSession, settings);
+  }
+
+  private static <T> T stub(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(PolarionIssueCreatorBenchmark.class.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  private static class StubPolarionSession extends PolarionSession {
+    private final AtomicInteger workItemIds = new AtomicInteger();
+    private final TrackerWebService trackerService;
+    private final ProjectWebService projectService;
+
+    StubPolarionSession() throws MalformedURLException {
+      super("http://localhost");
+      trackerService = stub(TrackerWebService.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          if ("createWorkItem".equals(method.getName())) {
+            return "subterra:data-service:objects:/default/BENCH${WorkItem}BENCH-" + workItemIds.incrementAndGet();
+          }
+          if ("createCommentNew".equals(method.getName())) {
+            return "subterra:data-service:objects:/default/BENCH${Comment}" + workItemIds.get();
+          }
+          return null;
+        }
+      });
+      projectService = stub(ProjectWebService.class, new InvocationHandler() {
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          return "getProject".equals(method.getName()) ? new Project() : null;
+        }
+      });
+    }
+
+    @Override
+    public void connect(String userName, String password) throws ServiceException, RemoteException {
+      // nothing to log in to
+    }
+
+    @Override
+    public void disconnect() throws RemoteException {
+      // nothing to log out from
+    }
+
+    @Override
+    public TrackerWebService getTrackerService() {
+      return trackerService;
+    }
+
+    @Override
+    public ProjectWebService getProjectService() {
+      return projectService;
+    }
+  }
+}
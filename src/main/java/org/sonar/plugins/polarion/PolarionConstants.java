@@ -25,6 +25,7 @@ public final class PolarionConstants {
   }
 
   public static final String SONAR_ISSUE_DATA_PROPERTY_KEY = "polarion-issue-key";
+  public static final String PENDING_LINK_PREFIX = "pending:";
 
   // ===================== PLUGIN PROPERTIES =====================
 
@@ -33,5 +34,111 @@ public final class PolarionConstants {
   public static final String POLARION_CREATE_PROJECT_ID = "sonar.polarion.create.project.id";
   public static final String POLARION_USERNAME_PROPERTY = "sonar.polarion.login.secured";
   public static final String POLARION_PASSWORD_PROPERTY = "sonar.polarion.password.secured";
+  public static final String POLARION_AGGREGATION_MODE_PROPERTY = "sonar.polarion.aggregation.mode";
+  public static final String POLARION_ITEMS_PER_ROUND_TRIP_PROPERTY = "sonar.polarion.aggregation.itemsPerRoundTrip";
+  public static final String POLARION_FETCH_PAGE_SIZE_PROPERTY = "sonar.polarion.fetch.pageSize";
+  public static final String POLARION_FETCH_PARALLELISM_PROPERTY = "sonar.polarion.fetch.parallelism";
+  public static final String POLARION_FULL_SYNC_INTERVAL_PROPERTY = "sonar.polarion.incremental.fullSyncHours";
+  public static final String SESSION_POOL_MAX_SIZE_PROPERTY = "sonar.polarion.session.pool.maxSize";
+  public static final String SESSION_POOL_IDLE_TIMEOUT_PROPERTY = "sonar.polarion.session.pool.idleTimeoutSeconds";
+  public static final String SESSION_POOL_BORROW_TIMEOUT_PROPERTY = "sonar.polarion.session.pool.borrowTimeoutSeconds";
+  public static final String WORK_DIR_PROPERTY = "sonar.polarion.workDir";
+  public static final String LINK_ASYNC_PROPERTY = "sonar.polarion.link.async";
+  public static final String OUTBOX_WORKERS_PROPERTY = "sonar.polarion.outbox.workers";
+  public static final String OUTBOX_MAX_ATTEMPTS_PROPERTY = "sonar.polarion.outbox.maxAttempts";
+  public static final String BULK_LINK_PARALLELISM_PROPERTY = "sonar.polarion.bulk.parallelism";
+  public static final String LINK_COMMENTS_MODE_PROPERTY = "sonar.polarion.link.commentsMode";
+  public static final String ENUM_CACHE_TTL_PROPERTY = "sonar.polarion.enumCache.ttlMinutes";
+  public static final String HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY = "sonar.polarion.http.maxConnectionsPerHost";
+  public static final String HTTP_CONNECT_TIMEOUT_PROPERTY = "sonar.polarion.http.connectTimeoutSeconds";
+  public static final String HTTP_READ_TIMEOUT_PROPERTY = "sonar.polarion.http.readTimeoutSeconds";
+  public static final String HTTP_COMPRESSION_PROPERTY = "sonar.polarion.http.compression";
+  public static final String RETRY_MAX_ATTEMPTS_PROPERTY = "sonar.polarion.retry.maxAttempts";
+  public static final String RETRY_BACKOFF_PROPERTY = "sonar.polarion.retry.backoffMillis";
+  public static final String CIRCUIT_BREAKER_THRESHOLD_PROPERTY = "sonar.polarion.circuitBreaker.failureThreshold";
+  public static final String CIRCUIT_BREAKER_OPEN_PERIOD_PROPERTY = "sonar.polarion.circuitBreaker.openSeconds";
+  public static final String MEASURES_FRESHNESS_PROPERTY = "sonar.polarion.measures.freshnessMinutes";
+  public static final String MEASURES_REFRESH_BUDGET_PROPERTY = "sonar.polarion.measures.refreshBudgetSeconds";
+  public static final String SHARED_MEASURES_PROPERTY = "sonar.polarion.measures.shared";
+  public static final String SHARED_MEASURES_TTL_PROPERTY = "sonar.polarion.measures.sharedTtlMinutes";
+  public static final String SONAR_HOST_URL_PROPERTY = "sonar.host.url";
+  public static final String POLLER_INTERVAL_PROPERTY = "sonar.polarion.poller.intervalMinutes";
+  public static final String POLLER_PROJECT_IDS_PROPERTY = "sonar.polarion.poller.projectIds";
+  public static final String POLLER_PARALLELISM_PROPERTY = "sonar.polarion.poller.parallelism";
+  public static final String CUSTOM_METRICS_PROPERTY = "sonar.polarion.customMetrics";
+  public static final String READ_CACHE_TTL_PROPERTY = "sonar.polarion.readCache.ttlSeconds";
+  public static final String PROJECT_CACHE_TTL_PROPERTY = "sonar.polarion.projectCache.ttlMinutes";
+  public static final String PROJECT_CACHE_UNKNOWN_TTL_PROPERTY = "sonar.polarion.projectCache.unknownTtlMinutes";
+
+  // ===================== AGGREGATION MODES =====================
+
+  public static final String AGGREGATION_MODE_AUTO = "auto";
+  public static final String AGGREGATION_MODE_COUNT = "count";
+  public static final String AGGREGATION_MODE_FETCH = "fetch";
+  public static final String AGGREGATION_MODE_SINGLE_PASS = "single-pass";
+  public static final String AGGREGATION_MODE_INCREMENTAL = "incremental";
+  public static final String AGGREGATION_MODE_SQL = "sql";
+  public static final int DEFAULT_ITEMS_PER_ROUND_TRIP = 200;
+  public static final int DEFAULT_FETCH_PAGE_SIZE = 1000;
+  public static final int DEFAULT_FULL_SYNC_INTERVAL = 24;
+  public static final int DEFAULT_FETCH_PARALLELISM = 4;
+
+  // ===================== CUSTOM METRICS =====================
+
+  public static final String CUSTOM_METRIC_KEY_FIELD = "key";
+  public static final String CUSTOM_METRIC_NAME_FIELD = "name";
+  public static final String CUSTOM_METRIC_TYPE_FIELD = "type";
+  public static final String CUSTOM_METRIC_QUERY_FIELD = "query";
+  public static final String CUSTOM_METRIC_GROUP_BY_FIELD = "groupBy";
+
+  // ===================== SESSION POOL =====================
+
+  public static final int DEFAULT_SESSION_POOL_MAX_SIZE = 4;
+  public static final int DEFAULT_SESSION_POOL_IDLE_TIMEOUT = 300;
+  public static final int DEFAULT_SESSION_POOL_BORROW_TIMEOUT = 30;
+
+  // ===================== LINK OUTBOX =====================
+
+  public static final int DEFAULT_OUTBOX_WORKERS = 2;
+  public static final int DEFAULT_OUTBOX_MAX_ATTEMPTS = 10;
+  public static final int DEFAULT_BULK_LINK_PARALLELISM = 2;
+
+  // ===================== LINK COMMENTS MODES =====================
+
+  public static final String COMMENTS_MODE_COMBINED = "combined";
+  public static final String COMMENTS_MODE_SEPARATE = "separate";
+
+  // ===================== ENUM OPTION CACHE =====================
+
+  public static final int DEFAULT_ENUM_CACHE_TTL = 1440;
+
+  // ===================== PROJECT CACHE =====================
+
+  public static final int DEFAULT_PROJECT_CACHE_TTL = 60;
+  public static final int DEFAULT_PROJECT_CACHE_UNKNOWN_TTL = 5;
+  public static final int PROJECT_CACHE_MAX_SIZE = 256;
+
+  // ===================== HTTP TRANSPORT =====================
+
+  public static final int DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST = 8;
+  public static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 30;
+  public static final int DEFAULT_HTTP_READ_TIMEOUT = 300;
+
+  // ===================== RETRIES AND CIRCUIT BREAKER =====================
+
+  public static final int DEFAULT_RETRY_MAX_ATTEMPTS = 3;
+  public static final int DEFAULT_RETRY_BACKOFF = 500;
+  public static final int DEFAULT_CIRCUIT_BREAKER_THRESHOLD = 5;
+  public static final int DEFAULT_CIRCUIT_BREAKER_OPEN_PERIOD = 60;
+
+  // ===================== READ COALESCING =====================
+
+  public static final int DEFAULT_READ_CACHE_TTL = 5;
+
+  // ===================== SHARED MEASURES =====================
+
+  public static final String SHARED_MEASURES_WS_PATH = "/api/plugins/polarion_measures/show";
+  public static final int DEFAULT_SHARED_MEASURES_TTL = 15;
+  public static final int DEFAULT_POLLER_PARALLELISM = 2;
 
 }
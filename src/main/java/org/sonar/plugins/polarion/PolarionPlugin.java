@@ -24,13 +24,28 @@ import com.google.common.collect.ImmutableList;
 import org.sonar.api.Properties;
 import org.sonar.api.Property;
 import org.sonar.api.SonarPlugin;
+import org.sonar.plugins.polarion.metrics.DefectHistory;
 import org.sonar.plugins.polarion.metrics.PolarionMetrics;
+import org.sonar.plugins.polarion.metrics.PolarionPoller;
 import org.sonar.plugins.polarion.metrics.PolarionSensor;
+import org.sonar.plugins.polarion.metrics.PolarionSharedMeasures;
+import org.sonar.plugins.polarion.metrics.PolarionSharedMeasuresWebService;
 import org.sonar.plugins.polarion.metrics.PolarionUnresolvedIssuesWidget;
 import org.sonar.plugins.polarion.metrics.PolarionResolvedIssuesWidget;
 import org.sonar.plugins.polarion.reviews.PolarionActionDefinition;
+import org.sonar.plugins.polarion.reviews.PolarionBulkLinkWebService;
+import org.sonar.plugins.polarion.reviews.PolarionBulkLinker;
 import org.sonar.plugins.polarion.reviews.PolarionIssueCreator;
 import org.sonar.plugins.polarion.reviews.LinkFunction;
+import org.sonar.plugins.polarion.reviews.PolarionLinkOutbox;
+import org.sonar.plugins.polarion.soap.PolarionCallMetrics;
+import org.sonar.plugins.polarion.soap.PolarionCallMetricsExporter;
+import org.sonar.plugins.polarion.soap.PolarionEnumOptionCache;
+import org.sonar.plugins.polarion.soap.PolarionHttpTransport;
+import org.sonar.plugins.polarion.soap.PolarionProjectCache;
+import org.sonar.plugins.polarion.soap.PolarionReadCoalescer;
+import org.sonar.plugins.polarion.soap.PolarionResilience;
+import org.sonar.plugins.polarion.soap.PolarionSessionPool;
 
 import java.util.List;
 
@@ -57,6 +72,14 @@ import java.util.List;
     global = true,
     project = true,
     module = false
+  ),
+  @Property(
+    key = PolarionConstants.WORK_DIR_PROPERTY,
+    name = "Work Directory",
+    description = "Directory where the plugin keeps its caches and pending requests. Defaults to ~/.sonar/polarion of the user running SonarQube or the analysis.",
+    global = true,
+    project = false,
+    module = false
   )
 })
 public final class PolarionPlugin extends SonarPlugin {
@@ -65,9 +88,17 @@ public final class PolarionPlugin extends SonarPlugin {
     return ImmutableList.of(
       // metrics part
       PolarionMetrics.class, PolarionSensor.class, PolarionUnresolvedIssuesWidget.class , PolarionResolvedIssuesWidget.class ,
+      PolarionSharedMeasures.class, PolarionSharedMeasuresWebService.class, PolarionPoller.class, DefectHistory.class,
 
       // issues part
-      PolarionIssueCreator.class, LinkFunction.class, PolarionActionDefinition.class
+      PolarionEnumOptionCache.class, PolarionProjectCache.class, PolarionSessionPool.class, PolarionIssueCreator.class, PolarionLinkOutbox.class, LinkFunction.class, PolarionActionDefinition.class,
+      PolarionBulkLinker.class, PolarionBulkLinkWebService.class,
+
+      // transport of the SOAP calls
+      PolarionHttpTransport.class, PolarionResilience.class, PolarionReadCoalescer.class,
+
+      // instrumentation of the SOAP calls
+      PolarionCallMetrics.class, PolarionCallMetricsExporter.class
     );
   }
 }
@@ -0,0 +1,128 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.config.Settings;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Locates the directory where the plugin keeps the files that must survive between analyses or server restarts.
+ */
+public final class PolarionWorkDirectory {
+
+  private PolarionWorkDirectory() {
+  }
+
+  /**
+   * Returns the given sub directory of the work directory, creating it if needed.
+   */
+  public static File get(Settings settings, String name) {
+    String workDir = settings.getString(PolarionConstants.WORK_DIR_PROPERTY);
+    File root = StringUtils.isBlank(workDir) ? new File(System.getProperty("user.home"), ".sonar/polarion") : new File(workDir);
+    File dir = new File(root, name);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IllegalStateException("Unable to create Polarion work directory: " + dir.getAbsolutePath());
+    }
+    return dir;
+  }
+
+  /**
+   * Returns the properties stored in the given file, or null if there is none or it can not be read.
+   */
+  public static Properties loadProperties(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    InputStream input = null;
+    try {
+      input = new FileInputStream(file);
+      properties.load(input);
+      return properties;
+    } catch (IOException e) {
+      return null;
+    } finally {
+      IOUtils.closeQuietly(input);
+    }
+  }
+
+  /**
+   * Analyses of the same project may run concurrently, so the properties are written to a temporary file which is then renamed.
+   */
+  public static void storeProperties(File file, Properties properties, String comment) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    properties.store(output, comment);
+    store(file, output.toByteArray());
+  }
+
+  /**
+   * Writes the content to a temporary file which is then renamed, see {@link #storeProperties}. The previous content
+   * stays in place until the new one has replaced it.
+   */
+  public static void store(File file, byte[] content) throws IOException {
+    File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    OutputStream output = null;
+    boolean written = false;
+    try {
+      output = new FileOutputStream(tmp);
+      output.write(content);
+      written = true;
+    } finally {
+      IOUtils.closeQuietly(output);
+      if (!written) {
+        tmp.delete();
+      }
+    }
+    if (!tmp.renameTo(file) && !replace(file, tmp)) {
+      tmp.delete();
+      throw new IOException("Unable to write " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Some platforms do not rename onto an existing file: the previous file is moved aside and only deleted once the
+   * new one is in place, and it is moved back if the new one can not be.
+   */
+  private static boolean replace(File file, File tmp) throws IOException {
+    if (!file.exists()) {
+      return false;
+    }
+    File previous = File.createTempFile(file.getName(), ".old", file.getParentFile());
+    if (!previous.delete() || !file.renameTo(previous)) {
+      return false;
+    }
+    if (!tmp.renameTo(file)) {
+      previous.renameTo(file);
+      return false;
+    }
+    previous.delete();
+    return true;
+  }
+}
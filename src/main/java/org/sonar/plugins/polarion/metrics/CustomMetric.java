@@ -0,0 +1,189 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.polarion.alm.ws.client.types.tracker.EnumOptionId;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.config.Settings;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.api.measures.Metric;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Metric defined by an administrator, counting the Polarion work items of a type which match a query per option of an
+ * enum field. Metrics are registered when the server starts, so changed definitions need a restart.
+ */
+public class CustomMetric {
+  private static final Logger LOG = LoggerFactory.getLogger(CustomMetric.class);
+
+  public static final List<String> GROUP_BY_FIELDS = ImmutableList.of("severity", "resolution", "status", "priority", "type");
+  private static final Pattern KEY = Pattern.compile("[a-zA-Z][a-zA-Z0-9_]*");
+
+  private final String workItemType;
+  private final String query;
+  private final String groupBy;
+  private final Metric metric;
+
+  public CustomMetric(String key, String name, String workItemType, String query, String groupBy) {
+    if (key == null || !KEY.matcher(key).matches()) {
+      throw new IllegalArgumentException("Metric key must start with a letter followed by letters, digits or underscores: " + key);
+    }
+    if (StringUtils.isBlank(workItemType)) {
+      throw new IllegalArgumentException("Work item type of metric " + key + " is missing");
+    }
+    if (!GROUP_BY_FIELDS.contains(groupBy)) {
+      throw new IllegalArgumentException("Metric " + key + " can not be grouped by " + groupBy + ", only by " + GROUP_BY_FIELDS);
+    }
+    this.workItemType = workItemType.trim();
+    this.query = StringUtils.trimToNull(query);
+    this.groupBy = groupBy;
+    this.metric = new Metric.Builder(key, StringUtils.defaultIfBlank(name, key), Metric.ValueType.INT)
+      .setDescription("Number of Polarion work items of type " + this.workItemType + (this.query == null ? "" : " matching " + this.query))
+      .setDirection(Metric.DIRECTION_NONE)
+      .setQualitative(false)
+      .setDomain(PolarionMetrics.ISSUES_DOMAIN)
+      .create();
+  }
+
+  /**
+   * Reads the metrics of the {@link PolarionConstants#CUSTOM_METRICS_PROPERTY} property set. Invalid definitions and
+   * definitions reusing the key of another metric, including the core metrics of SonarQube, are left out.
+   */
+  public static List<CustomMetric> fromSettings(Settings settings) {
+    List<CustomMetric> metrics = Lists.newArrayList();
+    Set<String> keys = Sets.newHashSet(PolarionMetrics.OPEN_ISSUES_KEY, PolarionMetrics.RESOLVED_ISSUES_KEY);
+    for (Metric coreMetric : CoreMetrics.getMetrics()) {
+      keys.add(coreMetric.getKey());
+    }
+    for (String id : settings.getStringArray(PolarionConstants.CUSTOM_METRICS_PROPERTY)) {
+      String prefix = PolarionConstants.CUSTOM_METRICS_PROPERTY + "." + id + ".";
+      try {
+        CustomMetric metric = new CustomMetric(settings.getString(prefix + PolarionConstants.CUSTOM_METRIC_KEY_FIELD),
+          settings.getString(prefix + PolarionConstants.CUSTOM_METRIC_NAME_FIELD),
+          settings.getString(prefix + PolarionConstants.CUSTOM_METRIC_TYPE_FIELD),
+          settings.getString(prefix + PolarionConstants.CUSTOM_METRIC_QUERY_FIELD),
+          settings.getString(prefix + PolarionConstants.CUSTOM_METRIC_GROUP_BY_FIELD));
+        if (!keys.add(metric.getMetric().getKey())) {
+          throw new IllegalArgumentException("Metric " + metric.getMetric().getKey() + " is already defined");
+        }
+        metrics.add(metric);
+      } catch (IllegalArgumentException e) {
+        LOG.warn("Polarion custom metric " + id + " is ignored: " + e.getMessage());
+      }
+    }
+    return metrics;
+  }
+
+  public Metric getMetric() {
+    return metric;
+  }
+
+  public String getWorkItemType() {
+    return workItemType;
+  }
+
+  public String getGroupBy() {
+    return groupBy;
+  }
+
+  /**
+   * @return the query of the counted work items, without restriction on their project
+   */
+  public String getBaseQuery() {
+    return "type:" + workItemType + (query == null ? "" : " AND (" + query + ")");
+  }
+
+  /**
+   * @return the id of the option of the grouping field of the work item, or null if it has none
+   */
+  public String groupOf(WorkItem workItem) {
+    EnumOptionId option;
+    if ("priority".equals(groupBy)) {
+      option = workItem.getPriority();
+    } else if ("severity".equals(groupBy)) {
+      option = workItem.getSeverity();
+    } else if ("resolution".equals(groupBy)) {
+      option = workItem.getResolution();
+    } else if ("status".equals(groupBy)) {
+      option = workItem.getStatus();
+    } else {
+      option = workItem.getType();
+    }
+    return option == null ? null : option.getId();
+  }
+
+  /**
+   * Plans the work item fetches of the given metrics: metrics with the same base query are computed from a single
+   * fetch, which only requests the fields they are grouped by.
+   */
+  public static List<Fetch> plan(Collection<CustomMetric> metrics) {
+    Map<String, Fetch> fetches = Maps.newLinkedHashMap();
+    for (CustomMetric metric : metrics) {
+      Fetch fetch = fetches.get(metric.getBaseQuery());
+      if (fetch == null) {
+        fetch = new Fetch(metric.getBaseQuery());
+        fetches.put(metric.getBaseQuery(), fetch);
+      }
+      fetch.metrics.add(metric);
+    }
+    return Lists.newArrayList(fetches.values());
+  }
+
+  /**
+   * One query of work items, shared by the metrics counting them.
+   */
+  public static class Fetch {
+    private final String baseQuery;
+    private final List<CustomMetric> metrics = Lists.newArrayList();
+
+    Fetch(String baseQuery) {
+      this.baseQuery = baseQuery;
+    }
+
+    public String getBaseQuery() {
+      return baseQuery;
+    }
+
+    public List<CustomMetric> getMetrics() {
+      return metrics;
+    }
+
+    public String[] getFields() {
+      Set<String> fields = Sets.newLinkedHashSet();
+      for (CustomMetric metric : metrics) {
+        fields.add(metric.getGroupBy());
+      }
+      return fields.toArray(new String[fields.size()]);
+    }
+  }
+}
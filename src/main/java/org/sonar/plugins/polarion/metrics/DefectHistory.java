@@ -0,0 +1,108 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Maps;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the defect distributions counted by the server for every list of Polarion projects, one file per Polarion
+ * server and list. Samples older than 30 days are downsampled to one per day.
+ */
+public class DefectHistory implements ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(DefectHistory.class);
+  private static final String HISTORY_DIR = "history";
+  private static final long RAW_PERIOD_MS = 30 * 24 * 3600 * 1000L;
+
+  private final Settings settings;
+  private final Map<File, DistributionHistory> histories = Maps.newHashMap();
+
+  public DefectHistory(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * @param projectIds comma-separated IDs of the Polarion projects the measures were computed for
+   */
+  public synchronized void record(String projectIds, LastKnownMeasures measures) {
+    File file = getHistoryFile(projectIds);
+    DistributionHistory history = getHistory(file);
+    if (!history.add(measures)) {
+      return;
+    }
+    history.downsample(measures.getTimestamp() - RAW_PERIOD_MS);
+    try {
+      PolarionWorkDirectory.store(file, history.encode());
+    } catch (IOException e) {
+      LOG.warn("Unable to store the history of the defects of Polarion projects " + projectIds, e);
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to store the history of the defects of Polarion projects " + projectIds, e);
+    }
+  }
+
+  public synchronized List<TrendSeries> getSeries(String projectIds, long from, long to) {
+    File file = getHistoryFile(projectIds);
+    // only the histories of recorded projects are kept in memory
+    if (!histories.containsKey(file) && !file.isFile()) {
+      return Collections.emptyList();
+    }
+    return getHistory(file).getSeries(from, to);
+  }
+
+  private DistributionHistory getHistory(File file) {
+    DistributionHistory history = histories.get(file);
+    if (history == null) {
+      history = load(file);
+      histories.put(file, history);
+    }
+    return history;
+  }
+
+  private static DistributionHistory load(File file) {
+    try {
+      if (file.isFile()) {
+        return DistributionHistory.decode(FileUtils.readFileToByteArray(file));
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to read the history of Polarion defects " + file + ", a new one is started", e);
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to read the history of Polarion defects " + file + ", a new one is started", e);
+    }
+    return new DistributionHistory();
+  }
+
+  private File getHistoryFile(String projectIds) {
+    String name = (settings.getString(PolarionConstants.SERVER_URL_PROPERTY) + "_" + projectIds).replaceAll("[^A-Za-z0-9._-]", "_");
+    return new File(PolarionWorkDirectory.get(settings, HISTORY_DIR), name + ".history");
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Maps;
+import com.polarion.alm.ws.client.types.tracker.EnumOptionId;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+
+import org.apache.commons.lang.StringUtils;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Severity or resolution of every defect of a Polarion project as of the last analysis, so that the next analysis
+ * only needs the defects updated since. Defects which are deleted or change type are only dropped by a full sync.
+ */
+public class DefectSnapshot {
+  private static final String LAST_FULL_SYNC = "lastFullSync";
+  private static final String WATERMARK = "watermark";
+  private static final String DEFECT_PREFIX = "defect.";
+  private static final String OPEN = "open:";
+  private static final String RESOLVED = "resolved:";
+  // the server may use another time zone than the analysis, so queries start one day before the watermark
+  private static final long WATERMARK_MARGIN = 24L * 60 * 60 * 1000;
+
+  private final long lastFullSync;
+  private long watermark;
+  private final Map<String, String> stateByDefectId = Maps.newHashMap();
+
+  public DefectSnapshot(long lastFullSync) {
+    this.lastFullSync = lastFullSync;
+    this.watermark = lastFullSync;
+  }
+
+  public long getLastFullSync() {
+    return lastFullSync;
+  }
+
+  public long getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * Sets the time from which the next analysis fetches updated defects, i.e. the time the current fetch started.
+   */
+  public void setWatermark(long watermark) {
+    this.watermark = watermark;
+  }
+
+  /**
+   * Polarion query restricting a query to the defects updated since the watermark.
+   */
+  public String updatedSinceWatermarkQuery() {
+    return "updated:[" + new SimpleDateFormat("yyyyMMdd").format(new Date(watermark - WATERMARK_MARGIN)) + " TO *]";
+  }
+
+  public int size() {
+    return stateByDefectId.size();
+  }
+
+  public void update(WorkItem[] defects) {
+    for (WorkItem defect : defects) {
+      EnumOptionId resolution = defect.getResolution();
+      if (resolution == null || StringUtils.isEmpty(resolution.getId())) {
+        EnumOptionId severity = defect.getSeverity();
+        stateByDefectId.put(defect.getId(), OPEN + (severity == null ? "" : StringUtils.defaultString(severity.getId())));
+      } else {
+        stateByDefectId.put(defect.getId(), RESOLVED + resolution.getId());
+      }
+    }
+  }
+
+  public Map<String, Integer> countOpenDefectsBySeverity() {
+    return countDefects(OPEN);
+  }
+
+  public Map<String, Integer> countResolvedDefectsByResolution() {
+    return countDefects(RESOLVED);
+  }
+
+  private Map<String, Integer> countDefects(String prefix) {
+    EnumStateCounter defectsPerEnumState = new EnumStateCounter();
+    for (String state : stateByDefectId.values()) {
+      if (state.startsWith(prefix)) {
+        defectsPerEnumState.increment(state.substring(prefix.length()));
+      }
+    }
+    return defectsPerEnumState.toMap();
+  }
+
+  /**
+   * Returns the snapshot stored in the given file, or null if there is none or it can not be read.
+   */
+  public static DefectSnapshot load(File file) {
+    java.util.Properties stored = PolarionWorkDirectory.loadProperties(file);
+    if (stored == null) {
+      return null;
+    }
+    if (stored.getProperty(LAST_FULL_SYNC) == null || stored.getProperty(WATERMARK) == null) {
+      return null;
+    }
+
+    DefectSnapshot snapshot = new DefectSnapshot(Long.parseLong(stored.getProperty(LAST_FULL_SYNC)));
+    snapshot.watermark = Long.parseLong(stored.getProperty(WATERMARK));
+    for (Enumeration<?> keys = stored.propertyNames(); keys.hasMoreElements();) {
+      String key = (String) keys.nextElement();
+      if (key.startsWith(DEFECT_PREFIX)) {
+        snapshot.stateByDefectId.put(key.substring(DEFECT_PREFIX.length()), stored.getProperty(key));
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Stores the snapshot so that the next analysis can load it, see {@link PolarionWorkDirectory#storeProperties}.
+   */
+  public void store(File file) throws IOException {
+    java.util.Properties stored = new java.util.Properties();
+    stored.setProperty(LAST_FULL_SYNC, String.valueOf(lastFullSync));
+    stored.setProperty(WATERMARK, String.valueOf(watermark));
+    for (Map.Entry<String, String> defect : stateByDefectId.entrySet()) {
+      stored.setProperty(DEFECT_PREFIX + defect.getKey(), defect.getValue());
+    }
+    PolarionWorkDirectory.storeProperties(file, stored, "Polarion defects");
+  }
+}
@@ -0,0 +1,250 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Defect distributions of a list of Polarion projects over time, per enum option id so that a renamed option keeps its
+ * series. The latest name of every option is kept along. In the encoded form, a sample only holds the time elapsed
+ * since the previous sample and the buckets whose number of defects changed, as variable-length deltas.
+ */
+public class DistributionHistory {
+  private static final int VERSION = 2;
+  private static final long DAY_MS = 24 * 3600 * 1000L;
+  private static final char SEPARATOR = ':';
+
+  private final List<String> buckets = Lists.newArrayList();
+  private final Map<String, Integer> bucketIndexes = Maps.newHashMap();
+  private final Map<String, String> names = Maps.newHashMap();
+  private final List<Sample> samples = Lists.newArrayList();
+
+  /**
+   * Adds the distributions of the measures, see {@link LastKnownMeasures#addDistribution(String, Map, Map)}.
+   *
+   * @return false if the measures are not newer than the last sample
+   */
+  public boolean add(LastKnownMeasures measures) {
+    Map<String, Integer> counts = Maps.newLinkedHashMap();
+    Map<String, String> optionNames = Maps.newHashMap();
+    for (Map.Entry<String, LastKnownMeasures.Distribution> distribution : measures.getDistributions().entrySet()) {
+      for (Map.Entry<String, String> option : distribution.getValue().getOptions().entrySet()) {
+        String bucket = distribution.getKey() + SEPARATOR + option.getKey();
+        counts.put(bucket, distribution.getValue().getCount(option.getKey()));
+        optionNames.put(bucket, option.getValue());
+      }
+    }
+    return add(measures.getTimestamp(), counts, optionNames);
+  }
+
+  /**
+   * @param counts number of defects per bucket, made of the metric key and the enum option id
+   * @param optionNames current name of the enum option of the buckets
+   * @return false if the sample is not newer than the last one
+   */
+  boolean add(long timestamp, Map<String, Integer> counts, Map<String, String> optionNames) {
+    if (!samples.isEmpty() && timestamp <= samples.get(samples.size() - 1).timestamp) {
+      return false;
+    }
+    names.putAll(optionNames);
+    for (String bucket : counts.keySet()) {
+      if (!bucketIndexes.containsKey(bucket)) {
+        addBucket(bucket);
+      }
+    }
+    int[] values = new int[buckets.size()];
+    for (Map.Entry<String, Integer> count : counts.entrySet()) {
+      values[bucketIndexes.get(count.getKey())] = count.getValue();
+    }
+    samples.add(new Sample(timestamp, values));
+    return true;
+  }
+
+  private void addBucket(String bucket) {
+    bucketIndexes.put(bucket, buckets.size());
+    buckets.add(bucket);
+  }
+
+  public int size() {
+    return samples.size();
+  }
+
+  /**
+   * Keeps only the last sample of every day before the given time.
+   */
+  public void downsample(long before) {
+    List<Sample> kept = Lists.newArrayList();
+    for (int i = 0; i < samples.size(); i++) {
+      Sample sample = samples.get(i);
+      boolean lastOfDay = i + 1 == samples.size() || samples.get(i + 1).timestamp / DAY_MS != sample.timestamp / DAY_MS;
+      if (sample.timestamp >= before || lastOfDay) {
+        kept.add(sample);
+      }
+    }
+    samples.clear();
+    samples.addAll(kept);
+  }
+
+  /**
+   * @return a series per bucket, with the samples taken between the given times included
+   */
+  public List<TrendSeries> getSeries(long from, long to) {
+    List<TrendSeries> series = Lists.newArrayList();
+    for (int index = 0; index < buckets.size(); index++) {
+      String bucket = buckets.get(index);
+      int separator = bucket.indexOf(SEPARATOR);
+      String optionId = bucket.substring(separator + 1);
+      TrendSeries bucketSeries = new TrendSeries(bucket.substring(0, separator), optionId, names.containsKey(bucket) ? names.get(bucket) : optionId);
+      for (Sample sample : samples) {
+        if (sample.timestamp >= from && sample.timestamp <= to) {
+          bucketSeries.add(sample.timestamp, sample.count(index));
+        }
+      }
+      series.add(bucketSeries);
+    }
+    return series;
+  }
+
+  public byte[] encode() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    try {
+      output.writeByte(VERSION);
+      writeVarLong(output, buckets.size());
+      for (String bucket : buckets) {
+        output.writeUTF(bucket);
+        output.writeUTF(names.containsKey(bucket) ? names.get(bucket) : "");
+      }
+      writeVarLong(output, samples.size());
+      Sample previous = new Sample(0L, new int[0]);
+      for (Sample sample : samples) {
+        writeVarLong(output, sample.timestamp - previous.timestamp);
+        int changed = 0;
+        for (int index = 0; index < buckets.size(); index++) {
+          if (sample.count(index) != previous.count(index)) {
+            changed++;
+          }
+        }
+        writeVarLong(output, changed);
+        for (int index = 0; index < buckets.size(); index++) {
+          long delta = (long) sample.count(index) - previous.count(index);
+          if (delta != 0) {
+            writeVarLong(output, index);
+            writeVarLong(output, (delta << 1) ^ (delta >> 63));
+          }
+        }
+        previous = sample;
+      }
+      output.flush();
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to encode the history of Polarion defects", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  public static DistributionHistory decode(byte[] content) throws IOException {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(content));
+    int version = input.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unsupported version of the history of Polarion defects: " + version);
+    }
+    DistributionHistory history = new DistributionHistory();
+    long bucketCount = readVarLong(input);
+    for (long i = 0; i < bucketCount; i++) {
+      String bucket = input.readUTF();
+      history.addBucket(bucket);
+      String name = input.readUTF();
+      if (name.length() > 0) {
+        history.names.put(bucket, name);
+      }
+    }
+    long sampleCount = readVarLong(input);
+    Sample previous = new Sample(0L, new int[0]);
+    for (long i = 0; i < sampleCount; i++) {
+      long timestamp = previous.timestamp + readVarLong(input);
+      int[] values = new int[history.buckets.size()];
+      for (int index = 0; index < values.length; index++) {
+        values[index] = previous.count(index);
+      }
+      long changed = readVarLong(input);
+      for (long j = 0; j < changed; j++) {
+        int index = (int) readVarLong(input);
+        if (index >= values.length) {
+          throw new IOException("Unknown bucket in the history of Polarion defects: " + index);
+        }
+        long delta = readVarLong(input);
+        values[index] += (int) ((delta >>> 1) ^ -(delta & 1));
+      }
+      previous = new Sample(timestamp, values);
+      history.samples.add(previous);
+    }
+    return history;
+  }
+
+  private static void writeVarLong(DataOutput output, long value) throws IOException {
+    long remaining = value;
+    while ((remaining & ~0x7FL) != 0) {
+      output.writeByte((int) ((remaining & 0x7F) | 0x80));
+      remaining >>>= 7;
+    }
+    output.writeByte((int) remaining);
+  }
+
+  private static long readVarLong(DataInput input) throws IOException {
+    long value = 0;
+    int shift = 0;
+    int b;
+    do {
+      if (shift > 63) {
+        throw new IOException("Malformed history of Polarion defects");
+      }
+      b = input.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  private static final class Sample {
+    private final long timestamp;
+    private final int[] counts;
+
+    private Sample(long timestamp, int[] counts) {
+      this.timestamp = timestamp;
+      this.counts = counts;
+    }
+
+    private int count(int index) {
+      return index < counts.length ? counts[index] : 0;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Number of defects per enum option id. Every id gets a dense index the first time it is counted, so counting a
+ * defect only costs a hash lookup and the increment of a primitive counter.
+ */
+public class EnumStateCounter {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final Map<String, Integer> indexes = Maps.newHashMap();
+  private String[] ids = new String[INITIAL_CAPACITY];
+  private int[] counts = new int[INITIAL_CAPACITY];
+  private int size;
+
+  public void increment(String enumStateId) {
+    add(enumStateId, 1);
+  }
+
+  public void add(String enumStateId, int numberOfDefects) {
+    Integer index = indexes.get(enumStateId);
+    int i = index == null ? intern(enumStateId) : index;
+    counts[i] += numberOfDefects;
+  }
+
+  public int get(String enumStateId) {
+    Integer index = indexes.get(enumStateId);
+    return index == null ? 0 : counts[index];
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Counts per enum option id, for the options which have been counted at least once.
+   */
+  public Map<String, Integer> toMap() {
+    Map<String, Integer> defectsPerEnumState = Maps.newHashMapWithExpectedSize(size);
+    for (int i = 0; i < size; i++) {
+      defectsPerEnumState.put(ids[i], counts[i]);
+    }
+    return defectsPerEnumState;
+  }
+
+  private int intern(String enumStateId) {
+    if (size == ids.length) {
+      String[] grownIds = new String[size * 2];
+      int[] grownCounts = new int[size * 2];
+      System.arraycopy(ids, 0, grownIds, 0, size);
+      System.arraycopy(counts, 0, grownCounts, 0, size);
+      ids = grownIds;
+      counts = grownCounts;
+    }
+    ids[size] = enumStateId;
+    indexes.put(enumStateId, size);
+    return size++;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.measures.Metric;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Polarion measures saved by the last successful analysis, so that they can be saved again while Polarion is unavailable.
+ */
+public class LastKnownMeasures {
+  private static final String TIMESTAMP = "timestamp";
+  private static final String VALUE = ".value";
+  private static final String DATA = ".data";
+  private static final String URL = ".url";
+
+  private final long timestamp;
+  private final List<Measure> measures = Lists.newArrayList();
+  private final Map<String, Distribution> distributions = Maps.newLinkedHashMap();
+
+  public LastKnownMeasures(long timestamp) {
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * @return when the measures were computed
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public void add(Measure measure) {
+    measures.add(measure);
+  }
+
+  public List<Measure> getMeasures() {
+    return measures;
+  }
+
+  /**
+   * Adds the number of work items per enum option of the measure of a metric. Unlike the data of the measure, which is
+   * keyed by option name, the distribution is keyed by option id. It is only known to the analysis which counted the
+   * work items, it is not stored.
+   *
+   * @param options names of the options per id, in their order
+   * @param counts number of work items per option id
+   */
+  public void addDistribution(String metricKey, Map<String, String> options, Map<String, Integer> counts) {
+    distributions.put(metricKey, new Distribution(options, counts));
+  }
+
+  /**
+   * @return the distributions per metric key
+   */
+  public Map<String, Distribution> getDistributions() {
+    return distributions;
+  }
+
+  /**
+   * Returns the measures stored in the given file, or null if there are none or they can not be read.
+   * Measures of metrics which are not among the given ones are left out.
+   */
+  public static LastKnownMeasures load(File file, List<Metric> metrics) {
+    java.util.Properties stored = PolarionWorkDirectory.loadProperties(file);
+    return stored == null ? null : fromProperties(stored, metrics);
+  }
+
+  public void store(File file) throws IOException {
+    PolarionWorkDirectory.storeProperties(file, toProperties(), "Polarion measures");
+  }
+
+  /**
+   * @return the measures of the given properties, or null if they contain none
+   */
+  static LastKnownMeasures fromProperties(java.util.Properties stored, List<Metric> metrics) {
+    if (stored.getProperty(TIMESTAMP) == null) {
+      return null;
+    }
+
+    LastKnownMeasures lastKnownMeasures = new LastKnownMeasures(Long.parseLong(stored.getProperty(TIMESTAMP)));
+    for (Metric metric : metrics) {
+      String value = stored.getProperty(metric.getKey() + VALUE);
+      if (value != null) {
+        Measure measure = new Measure(metric, Double.valueOf(value));
+        measure.setData(stored.getProperty(metric.getKey() + DATA));
+        measure.setUrl(stored.getProperty(metric.getKey() + URL));
+        lastKnownMeasures.add(measure);
+      }
+    }
+    return lastKnownMeasures;
+  }
+
+  java.util.Properties toProperties() {
+    java.util.Properties stored = new java.util.Properties();
+    stored.setProperty(TIMESTAMP, String.valueOf(timestamp));
+    for (Measure measure : measures) {
+      String key = measure.getMetricKey();
+      stored.setProperty(key + VALUE, String.valueOf(measure.getValue()));
+      if (measure.getData() != null) {
+        stored.setProperty(key + DATA, measure.getData());
+      }
+      if (measure.getUrl() != null) {
+        stored.setProperty(key + URL, measure.getUrl());
+      }
+    }
+    return stored;
+  }
+
+  public static final class Distribution {
+    private final Map<String, String> options;
+    private final Map<String, Integer> counts;
+
+    private Distribution(Map<String, String> options, Map<String, Integer> counts) {
+      this.options = options;
+      this.counts = counts;
+    }
+
+    /**
+     * @return the names of the options per id, in their order
+     */
+    public Map<String, String> getOptions() {
+      return options;
+    }
+
+    public int getCount(String optionId) {
+      Integer count = counts.get(optionId);
+      return count == null ? 0 : count;
+    }
+  }
+}
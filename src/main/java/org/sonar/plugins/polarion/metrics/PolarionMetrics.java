@@ -20,6 +20,7 @@
 
 package org.sonar.plugins.polarion.metrics;
 
+import org.sonar.api.config.Settings;
 import org.sonar.api.measures.Metric;
 import org.sonar.api.measures.Metrics;
 
@@ -45,10 +46,28 @@ public final class PolarionMetrics implements Metrics {
       .setDomain(ISSUES_DOMAIN)
       .create();
 
+  private final Settings settings;
+
+  public PolarionMetrics() {
+    this(null);
+  }
+
+  /**
+   * @param settings settings defining the custom metrics, see {@link CustomMetric}
+   */
+  public PolarionMetrics(Settings settings) {
+    this.settings = settings;
+  }
+
   public List<Metric> getMetrics() {
     List<Metric> metrics = new ArrayList<Metric>();
     metrics.add(OPENISSUES);
     metrics.add(RESOLVEDISSUES);
+    if (settings != null) {
+      for (CustomMetric customMetric : CustomMetric.fromSettings(settings)) {
+        metrics.add(customMetric.getMetric());
+      }
+    }
     return metrics;
   }
 
@@ -0,0 +1,168 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the defects of Polarion projects on the server at a fixed rate, so that the {@link PolarionSharedMeasures}
+ * are ready before analyses ask for them. Polled are the configured projects and the ones requested by analyses
+ * during the last day.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.POLLER_INTERVAL_PROPERTY,
+    name = "Poller Interval",
+    description = "Number of minutes between two counts of the defects of the polled Polarion projects by the server. " +
+      "Should be shorter than the time to live of the shared measures. Set to 0 to disable the poller.",
+    defaultValue = "0",
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.POLLER_PROJECT_IDS_PROPERTY,
+    name = "Polled Project Ids",
+    description = "Comma-separated IDs of Polarion projects polled in addition to the ones requested by analyses.",
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.POLLER_PARALLELISM_PROPERTY,
+    name = "Poller Parallelism",
+    description = "Maximum number of Polarion projects polled at the same time.",
+    defaultValue = "" + PolarionConstants.DEFAULT_POLLER_PARALLELISM,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionPoller implements ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionPoller.class);
+
+  private final Settings settings;
+  private final PolarionSharedMeasures sharedMeasures;
+  private final ExecutorService workers;
+  private ScheduledExecutorService scheduler;
+
+  public PolarionPoller(Settings settings, PolarionSharedMeasures sharedMeasures) {
+    this.settings = settings;
+    this.sharedMeasures = sharedMeasures;
+    this.workers = Executors.newFixedThreadPool(getParallelism(), daemonThreads("polarion-poller-worker"));
+  }
+
+  public void start() {
+    int interval = settings.getInt(PolarionConstants.POLLER_INTERVAL_PROPERTY);
+    if (interval <= 0) {
+      return;
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("polarion-poller"));
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        poll();
+      }
+    }, 0, interval * 60L, TimeUnit.SECONDS);
+    LOG.info("Polarion projects are polled every " + interval + " minutes");
+  }
+
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    workers.shutdownNow();
+  }
+
+  /**
+   * Counts the defects of all polled projects, at most {@link PolarionConstants#POLLER_PARALLELISM_PROPERTY} at a time,
+   * and waits until all are counted.
+   */
+  void poll() {
+    Set<String> polledProjectIds = Sets.newLinkedHashSet();
+    for (String projectId : settings.getStringArray(PolarionConstants.POLLER_PROJECT_IDS_PROPERTY)) {
+      if (StringUtils.isNotBlank(projectId)) {
+        polledProjectIds.add(projectId.trim());
+      }
+    }
+    polledProjectIds.addAll(sharedMeasures.getRequestedProjectIds(System.currentTimeMillis() - PolarionSharedMeasures.ACTIVE_PERIOD_MS));
+
+    List<Future<?>> polls = Lists.newArrayList();
+    for (final String projectIds : polledProjectIds) {
+      polls.add(workers.submit(new Runnable() {
+        public void run() {
+          try {
+            sharedMeasures.refresh(projectIds);
+          } catch (RuntimeException e) {
+            LOG.warn("Unable to poll the defects of Polarion projects " + projectIds, e);
+          }
+        }
+      }));
+    }
+    for (Future<?> poll : polls) {
+      try {
+        poll.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (ExecutionException e) {
+        LOG.warn("Unable to poll the defects of Polarion projects", e.getCause());
+      }
+    }
+    LOG.debug("Polled the defects of {} Polarion project lists", polledProjectIds.size());
+  }
+
+  private int getParallelism() {
+    int parallelism = settings.getInt(PolarionConstants.POLLER_PARALLELISM_PROPERTY);
+    return parallelism > 0 ? parallelism : PolarionConstants.DEFAULT_POLLER_PARALLELISM;
+  }
+
+  private static ThreadFactory daemonThreads(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -23,21 +23,42 @@ package org.sonar.plugins.polarion.metrics;
 import org.sonar.api.measures.Metric;
 
 import com.polarion.alm.ws.client.types.tracker.EnumOption;
+import com.polarion.alm.ws.client.types.tracker.EnumOptionId;
 import com.polarion.alm.ws.client.projects.ProjectWebService;
 import com.polarion.alm.ws.client.tracker.TrackerWebService;
 import com.polarion.alm.ws.client.types.tracker.WorkItem;
+import org.sonar.plugins.polarion.soap.PolarionCallMetrics;
+import org.sonar.plugins.polarion.soap.PolarionEnumOptionCache;
+import org.sonar.plugins.polarion.soap.PolarionHttpTransport;
+import org.sonar.plugins.polarion.soap.PolarionProjectCache;
+import org.sonar.plugins.polarion.soap.PolarionReadCoalescer;
+import org.sonar.plugins.polarion.soap.PolarionResilience;
 import org.sonar.plugins.polarion.soap.PolarionSession;
+import org.sonar.plugins.polarion.soap.WorkItemPager;
 import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import javax.xml.rpc.ServiceException;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.NameValuePair;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.sonar.api.CoreProperties;
 import org.sonar.api.Properties;
 import org.sonar.api.Property;
+import org.sonar.api.PropertyField;
+import org.sonar.api.PropertyType;
 import org.sonar.api.batch.Sensor;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.config.Settings;
@@ -47,26 +68,193 @@ import org.sonar.api.resources.Project;
 
 
 
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
 import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Properties({
   @Property(
     key = PolarionConstants.POLARION_FETCH_PROJECT_ID,
     name = "Project Fetch Id",
-    description = "Project ID of Polarion project where defects shall be fetched from. Case sensitive, example : elibrary",
+    description = "Project ID of Polarion project where defects shall be fetched from. Case sensitive, example : elibrary. " +
+      "Several comma-separated project IDs can be given, their defects are then added up.",
     global = false,
     project = true,
     module = true
+  ),
+  @Property(
+    key = PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY,
+    name = "Defect Aggregation Mode",
+    description = "How defects are counted per severity and resolution. 'fetch' retrieves all defects and counts them locally, " +
+      "'count' asks Polarion for the number of defects of each enum option, 'auto' picks the cheaper of both for every project. " +
+      "'single-pass' fetches open and resolved defects together in one query. " +
+      "'incremental' only fetches the defects updated since the previous analysis and recounts all defects from time to time. " +
+      "'sql' asks Polarion for the number of defects of each enum option with a query on its SQL layer, and falls back to 'auto' " +
+      "on servers without SQL support.",
+    defaultValue = PolarionConstants.AGGREGATION_MODE_AUTO,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {PolarionConstants.AGGREGATION_MODE_AUTO, PolarionConstants.AGGREGATION_MODE_COUNT, PolarionConstants.AGGREGATION_MODE_FETCH,
+      PolarionConstants.AGGREGATION_MODE_SINGLE_PASS, PolarionConstants.AGGREGATION_MODE_INCREMENTAL, PolarionConstants.AGGREGATION_MODE_SQL},
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.POLARION_ITEMS_PER_ROUND_TRIP_PROPERTY,
+    name = "Work Items per Round Trip",
+    description = "Number of fetched work items that cost about as much as one additional round trip to Polarion. Used by the 'auto' aggregation mode.",
+    defaultValue = "" + PolarionConstants.DEFAULT_ITEMS_PER_ROUND_TRIP,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY,
+    name = "Fetch Page Size",
+    description = "Maximum number of defects held in memory at once when defects are fetched to be counted, " +
+      "at most " + WorkItemPager.MAX_PAGE_SIZE + " since Lucene limits the number of clauses of a query. " +
+      "Set to 0 to fetch all defects of a query in a single request.",
+    defaultValue = "" + PolarionConstants.DEFAULT_FETCH_PAGE_SIZE,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.POLARION_FETCH_PARALLELISM_PROPERTY,
+    name = "Fetch Parallelism",
+    description = "Maximum number of Polarion projects queried at the same time when several project IDs are given.",
+    defaultValue = "" + PolarionConstants.DEFAULT_FETCH_PARALLELISM,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.POLARION_FULL_SYNC_INTERVAL_PROPERTY,
+    name = "Full Sync Interval",
+    description = "Number of hours after which the 'incremental' aggregation mode recounts all defects of a project " +
+      "instead of only fetching the ones updated since the previous analysis.",
+    defaultValue = "" + PolarionConstants.DEFAULT_FULL_SYNC_INTERVAL,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.MEASURES_FRESHNESS_PROPERTY,
+    name = "Measures Freshness",
+    description = "Number of minutes during which the measures of the last successful analysis are saved again " +
+      "without querying Polarion. Set to 0 to always query Polarion.",
+    defaultValue = "0",
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.MEASURES_REFRESH_BUDGET_PROPERTY,
+    name = "Measures Refresh Budget",
+    description = "Maximum number of seconds an analysis waits for Polarion when measures of a previous analysis are available. " +
+      "Once it is exceeded, the previous measures are saved and the refresh goes on in the background for the next analyses. " +
+      "Set to 0 to wait until Polarion answers.",
+    defaultValue = "0",
+    type = PropertyType.INTEGER,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.SHARED_MEASURES_PROPERTY,
+    name = "Shared Measures",
+    description = "Get the measures from the SonarQube server, which counts the defects of a Polarion project once for all " +
+      "the analyses of this project. The analysis must log in as a user who can browse the project, see sonar.login. " +
+      "Polarion is queried directly when the server can not provide them.",
+    defaultValue = "false",
+    type = PropertyType.BOOLEAN,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.CUSTOM_METRICS_PROPERTY,
+    name = "Custom Metrics",
+    description = "Metrics counting the Polarion work items of a type which match a query, per option of a field. " +
+      "Metrics with the same type and query are computed from a single fetch of their work items. " +
+      "New metrics are available once the server is restarted.",
+    type = PropertyType.PROPERTY_SET,
+    fields = {
+      @PropertyField(key = PolarionConstants.CUSTOM_METRIC_KEY_FIELD, name = "Key",
+        description = "Key of the metric: a letter followed by letters, digits or underscores, not used by another metric."),
+      @PropertyField(key = PolarionConstants.CUSTOM_METRIC_NAME_FIELD, name = "Name"),
+      @PropertyField(key = PolarionConstants.CUSTOM_METRIC_TYPE_FIELD, name = "Work Item Type", description = "Example: requirement"),
+      @PropertyField(key = PolarionConstants.CUSTOM_METRIC_QUERY_FIELD, name = "Query", description = "Example: !resolved"),
+      @PropertyField(key = PolarionConstants.CUSTOM_METRIC_GROUP_BY_FIELD, name = "Group By", type = PropertyType.SINGLE_SELECT_LIST,
+        options = {"severity", "resolution", "status", "priority", "type"})
+    },
+    global = true,
+    project = false,
+    module = false
   )
 })
 public class PolarionSensor implements Sensor {
   private static final Logger LOG = LoggerFactory.getLogger(PolarionSensor.class);
 
+  private static final String SEVERITY_FIELD = "severity";
+  private static final String RESOLUTION_FIELD = "resolution";
+  private static final String DEFECT_TYPE = "defect";
+  private static final String ID_FIELD = "id";
+  private static final String LUCENE_SPECIAL_CHARACTERS = "\\+-!():^[]\"{}~*?|&/";
+  private static final String SQL_PROBE = "SELECT WORKITEM.C_URI FROM WORKITEM WHERE WORKITEM.C_URI IS NULL";
+  private static final String[] SINGLE_PASS_FIELDS = fieldsToFetch(false, PolarionMetrics.OPENISSUES, PolarionMetrics.RESOLVEDISSUES);
+  private static final String[] INCREMENTAL_FIELDS = fieldsToFetch(true, PolarionMetrics.OPENISSUES, PolarionMetrics.RESOLVEDISSUES);
+  private static final String SNAPSHOTS_DIR = "snapshots";
+  private static final String MEASURES_DIR = "measures";
+
   private final Settings settings;
+  private final PolarionEnumOptionCache enumOptionCache;
+  private final PolarionCallMetrics callMetrics;
+  private final PolarionHttpTransport transport;
+  private final PolarionResilience resilience;
+  private final PolarionReadCoalescer readCoalescer;
+  private final PolarionProjectCache projectCache;
+  private final List<CustomMetric> customMetrics;
+  private final Object sqlProbeLock = new Object();
+  private volatile Boolean sqlSupported;
 
   public PolarionSensor(Settings settings) {
+    this(settings, null, new PolarionCallMetrics(), new PolarionHttpTransport(settings), new PolarionResilience(settings), null, null);
+  }
+
+  public PolarionSensor(Settings settings, PolarionEnumOptionCache enumOptionCache, PolarionCallMetrics callMetrics,
+      PolarionHttpTransport transport, PolarionResilience resilience, PolarionReadCoalescer readCoalescer,
+      PolarionProjectCache projectCache) {
     this.settings = settings;
+    this.enumOptionCache = enumOptionCache;
+    this.callMetrics = callMetrics;
+    this.transport = transport;
+    this.resilience = resilience;
+    this.readCoalescer = readCoalescer;
+    this.projectCache = projectCache;
+    this.customMetrics = CustomMetric.fromSettings(settings);
   }
 
   private String getServerUrl() {
@@ -81,14 +269,59 @@ public class PolarionSensor implements Sensor {
     return  settings.getString(PolarionConstants.POLARION_PASSWORD_PROPERTY);
   }
 
-  private String getFetchProjectId() {
-     return settings.getString(PolarionConstants.POLARION_FETCH_PROJECT_ID);
+  private List<String> getFetchProjectIds() {
+    List<String> projectIds = Lists.newArrayList();
+    String[] values = settings.getStringArray(PolarionConstants.POLARION_FETCH_PROJECT_ID);
+    if (values != null) {
+      for (String value : values) {
+        if (StringUtils.isNotBlank(value)) {
+          projectIds.add(value.trim());
+        }
+      }
+    }
+    return projectIds;
   }
 
   private String getCreateProjectId() {
     return settings.getString(PolarionConstants.POLARION_CREATE_PROJECT_ID);
  }
 
+  private String getAggregationMode() {
+    return StringUtils.defaultIfBlank(settings.getString(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY),
+        PolarionConstants.AGGREGATION_MODE_AUTO);
+  }
+
+  private int getItemsPerRoundTrip() {
+    int itemsPerRoundTrip = settings.getInt(PolarionConstants.POLARION_ITEMS_PER_ROUND_TRIP_PROPERTY);
+    return itemsPerRoundTrip > 0 ? itemsPerRoundTrip : PolarionConstants.DEFAULT_ITEMS_PER_ROUND_TRIP;
+  }
+
+  private int getFetchPageSize() {
+    if (!settings.hasKey(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY)) {
+      return PolarionConstants.DEFAULT_FETCH_PAGE_SIZE;
+    }
+    return settings.getInt(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY);
+  }
+
+  private int getFetchParallelism() {
+    int parallelism = settings.getInt(PolarionConstants.POLARION_FETCH_PARALLELISM_PROPERTY);
+    return parallelism > 0 ? parallelism : PolarionConstants.DEFAULT_FETCH_PARALLELISM;
+  }
+
+  private long getFullSyncInterval() {
+    int hours = settings.hasKey(PolarionConstants.POLARION_FULL_SYNC_INTERVAL_PROPERTY) ?
+      settings.getInt(PolarionConstants.POLARION_FULL_SYNC_INTERVAL_PROPERTY) : PolarionConstants.DEFAULT_FULL_SYNC_INTERVAL;
+    return TimeUnit.SECONDS.toMillis(hours * 3600L);
+  }
+
+  private long getFreshnessMs() {
+    return TimeUnit.SECONDS.toMillis(settings.getInt(PolarionConstants.MEASURES_FRESHNESS_PROPERTY) * 60L);
+  }
+
+  private long getRefreshBudgetMs() {
+    return TimeUnit.SECONDS.toMillis(settings.getInt(PolarionConstants.MEASURES_REFRESH_BUDGET_PROPERTY));
+  }
+
   public boolean shouldExecuteOnProject(Project project) {
     if (missingMandatoryParameters()) {
       LOG.warn("Polarion issues sensor will not run due to some parameters are missing.");
@@ -97,134 +330,762 @@ public class PolarionSensor implements Sensor {
   }
 
   public void analyse(Project project, SensorContext context) {
-     try {
-      PolarionSession session = new PolarionSession(getServerUrl());
-
-      session.connect(getUsername(), getPassword());
-
-      runAnalysis(context, session, getFetchProjectId());
-
-      session.disconnect();
-      LOG.info("Disconnected from Polarion server");
+    List<String> polarionProjectIds = getFetchProjectIds();
+    LastKnownMeasures lastKnownMeasures = loadLastKnownMeasures(polarionProjectIds);
+    if (lastKnownMeasures != null && System.currentTimeMillis() - lastKnownMeasures.getTimestamp() < getFreshnessMs()) {
+      LOG.info("Polarion measures computed at " + new Date(lastKnownMeasures.getTimestamp()) + " are still fresh, Polarion is not queried");
+      saveMeasures(context, lastKnownMeasures);
+      return;
+    }
 
+    boolean fallBack = false;
+    try {
+      long timeBudget = lastKnownMeasures == null ? 0 : getRefreshBudgetMs();
+      saveMeasures(context, refreshMeasures(polarionProjectIds, timeBudget));
+    } catch (TimeoutException e) {
+      LOG.warn("Polarion did not answer within the time budget of " + getRefreshBudgetMs() / 1000 + " s");
+      fallBack = true;
     } catch (RemoteException e) {
-      LOG.error("Login unsuccessful", e);
+      if (resilience.isOpen(getServerUrl())) {
+        LOG.warn("Polarion server is unavailable", e);
+      } else {
+        LOG.error("Login unsuccessful", e);
+      }
+      fallBack = true;
     } catch (ServiceException e) {
       LOG.error("WebServices not available", e);
+      fallBack = true;
     } catch (Exception e) {
       LOG.error("General exception: ",e);
+      fallBack = true;
+    } finally {
+      LOG.info(callMetrics.summary());
+    }
+
+    if (fallBack && lastKnownMeasures == null) {
+      LOG.warn("No Polarion measures of a previous analysis to fall back to");
+    } else if (fallBack) {
+      LOG.warn("Falling back to the Polarion measures computed at " + new Date(lastKnownMeasures.getTimestamp()));
+      saveMeasures(context, lastKnownMeasures);
+    }
+  }
+
+  /**
+   * Connects to Polarion and collects the measures. With a time budget, they are collected on another thread which keeps
+   * running once the time is up, so that its measures are still stored for the next analyses.
+   *
+   * @param timeBudget maximum number of milliseconds to wait for the measures, 0 to wait until they are collected
+   */
+  protected LastKnownMeasures refreshMeasures(final List<String> polarionProjectIds, long timeBudget)
+      throws RemoteException, ServiceException, MalformedURLException, TimeoutException {
+    if (timeBudget <= 0) {
+      return fetchMeasures(polarionProjectIds);
+    }
+
+    ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "polarion-measures-refresh");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    Future<LastKnownMeasures> measures = executor.submit(new Callable<LastKnownMeasures>() {
+      public LastKnownMeasures call() throws Exception {
+        return fetchMeasures(polarionProjectIds);
+      }
+    });
+    executor.shutdown();
+    try {
+      return measures.get(timeBudget, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while retrieving Polarion defects", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), RemoteException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), ServiceException.class);
+      Throwables.propagateIfInstanceOf(e.getCause(), MalformedURLException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  private LastKnownMeasures fetchMeasures(List<String> polarionProjectIds) throws RemoteException, ServiceException, MalformedURLException {
+    if (settings.getBoolean(PolarionConstants.SHARED_MEASURES_PROPERTY)) {
+      try {
+        LastKnownMeasures measures = downloadSharedMeasures(polarionProjectIds);
+        storeLastKnownMeasures(measures, polarionProjectIds);
+        return measures;
+      } catch (IOException e) {
+        LOG.warn("Unable to get the Polarion measures shared by the SonarQube server, Polarion is queried", e);
+      }
+    }
+    return queryPolarion(polarionProjectIds);
+  }
+
+  /**
+   * Downloads the measures computed by the {@link PolarionSharedMeasures} of the SonarQube server.
+   */
+  private LastKnownMeasures downloadSharedMeasures(List<String> polarionProjectIds) throws IOException {
+    String hostUrl = StringUtils.defaultIfBlank(settings.getString(PolarionConstants.SONAR_HOST_URL_PROPERTY), CoreProperties.SERVER_BASE_URL_DEFAULT_VALUE);
+    GetMethod method = new GetMethod(StringUtils.removeEnd(hostUrl, "/") + PolarionConstants.SHARED_MEASURES_WS_PATH);
+    method.setQueryString(new NameValuePair[] {new NameValuePair("projects", StringUtils.join(polarionProjectIds, ","))});
+    HttpClient client = new HttpClient();
+    client.getHttpConnectionManager().getParams().setConnectionTimeout(transport.getConnectTimeoutMs());
+    client.getHttpConnectionManager().getParams().setSoTimeout(transport.getReadTimeoutMs());
+    String login = settings.getString(CoreProperties.LOGIN);
+    if (StringUtils.isNotBlank(login)) {
+      client.getParams().setAuthenticationPreemptive(true);
+      client.getState().setCredentials(AuthScope.ANY, new UsernamePasswordCredentials(login, settings.getString(CoreProperties.PASSWORD)));
+    }
+
+    try {
+      int status = client.executeMethod(method);
+      if (status != HttpStatus.SC_OK) {
+        throw new IOException("SonarQube server answered " + status + " " + method.getStatusText());
+      }
+      java.util.Properties shared = new java.util.Properties();
+      shared.load(method.getResponseBodyAsStream());
+      if (!getServerUrl().equals(shared.getProperty(PolarionSharedMeasures.SERVER_KEY))) {
+        throw new IOException("SonarQube server counts the defects of another Polarion server: " + shared.getProperty(PolarionSharedMeasures.SERVER_KEY));
+      }
+      LastKnownMeasures measures = LastKnownMeasures.fromProperties(shared, new PolarionMetrics(settings).getMetrics());
+      if (measures == null) {
+        throw new IOException("SonarQube server answered without Polarion measures");
+      }
+      LOG.info("Polarion measures computed by the SonarQube server at " + new Date(measures.getTimestamp()));
+      return measures;
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  LastKnownMeasures queryPolarion(List<String> polarionProjectIds) throws RemoteException, ServiceException, MalformedURLException {
+    PolarionSession session = openSession();
+    try {
+      return collectMeasures(session, polarionProjectIds);
+    } finally {
+      try {
+        session.disconnect();
+        LOG.info("Disconnected from Polarion server");
+      } catch (RemoteException e) {
+        LOG.warn("Unable to disconnect from Polarion server", e);
+      }
     }
   }
 
+  /**
+   * Logs in a new Polarion session.
+   */
+  protected PolarionSession openSession() throws RemoteException, ServiceException, MalformedURLException {
+    PolarionSession session = new PolarionSession(getServerUrl(), callMetrics, transport, resilience, readCoalescer);
+    session.connect(getUsername(), getPassword());
+    return session;
+  }
+
   protected void runAnalysis(SensorContext context, PolarionSession service, String polarionProjectId) throws RemoteException {
-    collectAndSaveOpenPolarionDefects(context, service, polarionProjectId);
-    collectAndSaveResolvedPolarionDefects(context, service, polarionProjectId);
+    runAnalysis(context, service, Collections.singletonList(polarionProjectId));
   }
 
-  protected void collectAndSaveOpenPolarionDefects(SensorContext context, PolarionSession service, String polarionProjectId) throws RemoteException {
-    Map<String, Integer> issuesWithSeverity = collectDefectsBySeverity(service, polarionProjectId);
-    Map<String, String> severitiesEnumStates = collectSeveritiesEnumStates(service);
+  protected void runAnalysis(SensorContext context, PolarionSession service, List<String> polarionProjectIds) throws RemoteException {
+    saveMeasures(context, collectMeasures(service, polarionProjectIds));
+  }
 
-    DefectPerEnumState defectsPerSeverity = mapNumberOfDefectsPerEnumState(severitiesEnumStates, issuesWithSeverity);
+  /**
+   * Counts the defects of all given Polarion projects, concurrently if there are several of them, and stores the
+   * measures of the sums for the next analyses.
+   */
+  protected LastKnownMeasures collectMeasures(PolarionSession service, List<String> polarionProjectIds) throws RemoteException {
+    ProjectDefects defects;
+    if (polarionProjectIds.size() == 1) {
+      defects = collectPolarionDefects(service, polarionProjectIds.get(0));
+    } else {
+      defects = collectPolarionDefectsConcurrently(service, polarionProjectIds);
+    }
 
-    String url = getServerUrl() + "/polarion/#/project/" + polarionProjectId + "/workitems?query=type:defect%20AND%20NOT%20HAS_VALUE:resolution";
-    LOG.debug("polarion defect url: " + url);
-    saveMeasures(PolarionMetrics.OPENISSUES, context, url, defectsPerSeverity.totalNumberOfDefects, defectsPerSeverity.distribution.buildData());
+    LastKnownMeasures measures = new LastKnownMeasures(System.currentTimeMillis());
+    measures.add(openDefectsMeasure(polarionProjectIds, mapNumberOfDefectsPerEnumState(defects.severities, defects.openDefectsBySeverity)));
+    measures.addDistribution(PolarionMetrics.OPENISSUES.getKey(), defects.severities, defects.openDefectsBySeverity);
+    measures.add(resolvedDefectsMeasure(polarionProjectIds, mapNumberOfDefectsPerEnumState(defects.resolutions, defects.resolvedDefectsByResolution)));
+    measures.addDistribution(PolarionMetrics.RESOLVEDISSUES.getKey(), defects.resolutions, defects.resolvedDefectsByResolution);
+    if (!customMetrics.isEmpty()) {
+      collectCustomMeasures(service, polarionProjectIds, measures);
+    }
+    storeLastKnownMeasures(measures, polarionProjectIds);
+    return measures;
+  }
+
+  private void storeLastKnownMeasures(LastKnownMeasures measures, List<String> polarionProjectIds) {
+    try {
+      measures.store(getLastKnownMeasuresFile(polarionProjectIds));
+    } catch (IOException e) {
+      LOG.warn("Unable to store the Polarion measures, they will not be available while Polarion is unavailable", e);
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to store the Polarion measures, they will not be available while Polarion is unavailable", e);
+    }
+  }
+
+  /**
+   * Returns the measures of the last successful analysis of the same Polarion projects, or null if there are none.
+   */
+  protected LastKnownMeasures loadLastKnownMeasures(List<String> polarionProjectIds) {
+    try {
+      return LastKnownMeasures.load(getLastKnownMeasuresFile(polarionProjectIds), new PolarionMetrics(settings).getMetrics());
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to read the Polarion measures of a previous analysis", e);
+      return null;
+    }
+  }
+
+  private static void saveMeasures(SensorContext context, LastKnownMeasures measures) {
+    for (Measure measure : measures.getMeasures()) {
+      context.saveMeasure(measure);
+    }
+  }
+
+  private File getLastKnownMeasuresFile(List<String> polarionProjectIds) {
+    String name = (getServerUrl() + "_" + StringUtils.join(polarionProjectIds, ",")).replaceAll("[^A-Za-z0-9._-]", "_");
+    return new File(PolarionWorkDirectory.get(settings, MEASURES_DIR), name + ".properties");
+  }
+
+  /**
+   * Queries every project on its own thread. The service stubs of a session are not thread-safe, so every thread
+   * uses a session of its own, see {@link WorkerSessions}.
+   */
+  protected ProjectDefects collectPolarionDefectsConcurrently(PolarionSession service, List<String> polarionProjectIds)
+      throws RemoteException {
+    int parallelism = Math.min(getFetchParallelism(), polarionProjectIds.size());
+    LOG.info("Retreive defects of Polarion projects " + polarionProjectIds + " with " + parallelism + " threads");
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    final WorkerSessions sessions = new WorkerSessions(service);
+    try {
+      List<Future<ProjectDefects>> results = Lists.newArrayList();
+      for (final String polarionProjectId : polarionProjectIds) {
+        results.add(executor.submit(new Callable<ProjectDefects>() {
+          public ProjectDefects call() throws RemoteException {
+            return collectPolarionDefects(sessions.get(), polarionProjectId);
+          }
+        }));
+      }
+
+      ProjectDefects merged = new ProjectDefects();
+      for (Future<ProjectDefects> result : results) {
+        merged.add(result.get());
+      }
+      return merged;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while retrieving Polarion defects", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RemoteException) {
+        throw (RemoteException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException("Unable to retrieve Polarion defects", cause);
+    } finally {
+      executor.shutdownNow();
+      sessions.close();
+    }
+  }
+
+  /**
+   * Computes the custom metrics with one fetch per planned query and Polarion project, all of them run by one executor
+   * whose threads use sessions of their own, and adds their measures to the given ones.
+   */
+  protected void collectCustomMeasures(PolarionSession service, List<String> polarionProjectIds, LastKnownMeasures measures)
+      throws RemoteException {
+    List<CustomMetric.Fetch> fetches = CustomMetric.plan(customMetrics);
+    int parallelism = Math.min(getFetchParallelism(), fetches.size() * polarionProjectIds.size());
+    LOG.info("Compute " + customMetrics.size() + " custom metrics with " + fetches.size() + " queries per Polarion project");
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    Map<CustomMetric, WorkItemCounts> merged = Maps.newHashMap();
+    final WorkerSessions sessions = new WorkerSessions(service);
+    try {
+      List<Future<Map<CustomMetric, WorkItemCounts>>> results = Lists.newArrayList();
+      for (final CustomMetric.Fetch fetch : fetches) {
+        for (final String polarionProjectId : polarionProjectIds) {
+          results.add(executor.submit(new Callable<Map<CustomMetric, WorkItemCounts>>() {
+            public Map<CustomMetric, WorkItemCounts> call() throws RemoteException {
+              return countWorkItems(sessions.get(), polarionProjectId, fetch);
+            }
+          }));
+        }
+      }
+      for (Future<Map<CustomMetric, WorkItemCounts>> result : results) {
+        for (Map.Entry<CustomMetric, WorkItemCounts> counts : result.get().entrySet()) {
+          WorkItemCounts metricCounts = merged.get(counts.getKey());
+          if (metricCounts == null) {
+            merged.put(counts.getKey(), counts.getValue());
+          } else {
+            metricCounts.add(counts.getValue());
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while retrieving Polarion work items", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), RemoteException.class);
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      sessions.close();
+    }
+
+    for (CustomMetric metric : customMetrics) {
+      WorkItemCounts counts = merged.get(metric);
+      String url = workItemsUrl(polarionProjectIds, metric.getBaseQuery().replace(" ", "%20"));
+      measures.add(buildMeasure(metric.getMetric(), url, counts.total,
+        mapNumberOfDefectsPerEnumState(counts.enumStates, counts.counts).distribution.buildData()));
+      measures.addDistribution(metric.getMetric().getKey(), counts.enumStates, counts.counts);
+    }
+  }
+
+  /**
+   * Fetches the work items of the query in one project and counts them for every metric sharing the query.
+   */
+  protected Map<CustomMetric, WorkItemCounts> countWorkItems(PolarionSession service, String polarionProjectId, CustomMetric.Fetch fetch)
+      throws RemoteException {
+    final Map<CustomMetric, EnumStateCounter> counters = Maps.newLinkedHashMap();
+    for (CustomMetric metric : fetch.getMetrics()) {
+      counters.put(metric, new EnumStateCounter());
+    }
+    final int[] total = new int[1];
+    String query = fetch.getBaseQuery() + " AND project.id:" + polarionProjectId;
+    fetchDefects(service, polarionProjectId, query, fetch.getFields(), -1, new WorkItemPager.PageHandler() {
+      public void handlePage(WorkItem[] page) {
+        total[0] += page.length;
+        for (WorkItem workItem : page) {
+          for (Map.Entry<CustomMetric, EnumStateCounter> counter : counters.entrySet()) {
+            String group = counter.getKey().groupOf(workItem);
+            if (group != null) {
+              counter.getValue().increment(group);
+            }
+          }
+        }
+      }
+    });
+
+    Map<CustomMetric, WorkItemCounts> counts = Maps.newHashMap();
+    for (Map.Entry<CustomMetric, EnumStateCounter> counter : counters.entrySet()) {
+      CustomMetric metric = counter.getKey();
+      WorkItemCounts metricCounts = new WorkItemCounts();
+      metricCounts.enumStates.putAll(collectEnumStates(service, polarionProjectId, metric.getGroupBy(), metric.getWorkItemType()));
+      metricCounts.counts = counter.getValue().toMap();
+      metricCounts.total = total[0];
+      counts.put(metric, metricCounts);
+    }
+    return counts;
+  }
+
+  protected ProjectDefects collectPolarionDefects(PolarionSession service, String polarionProjectId) throws RemoteException {
+    checkPolarionProject(service, polarionProjectId);
+
+    String mode = getAggregationMode();
+    if (PolarionConstants.AGGREGATION_MODE_SINGLE_PASS.equals(mode)) {
+      return collectAllPolarionDefects(service, polarionProjectId);
+    } else if (PolarionConstants.AGGREGATION_MODE_INCREMENTAL.equals(mode)) {
+      return collectDefectsIncrementally(service, polarionProjectId);
+    }
+    ProjectDefects defects = new ProjectDefects();
+    defects.severities = collectSeveritiesEnumStates(service, polarionProjectId);
+    defects.openDefectsBySeverity = collectDefectsBySeverity(service, polarionProjectId, defects.severities);
+    defects.resolutions = collectResolutionEnumStates(service, polarionProjectId);
+    defects.resolvedDefectsByResolution = collectDefectsByResolution(service, polarionProjectId, defects.resolutions);
+    return defects;
+  }
+
+  /**
+   * Fetches all defects of the project in a single query and splits them into open defects per severity
+   * and resolved defects per resolution.
+   */
+  protected ProjectDefects collectAllPolarionDefects(PolarionSession service, String polarionProjectId) throws RemoteException {
+    final ProjectDefects defects = new ProjectDefects();
+    defects.severities = collectSeveritiesEnumStates(service, polarionProjectId);
+    defects.resolutions = collectResolutionEnumStates(service, polarionProjectId);
+
+    final EnumStateCounter openDefectsBySeverity = new EnumStateCounter();
+    final EnumStateCounter resolvedDefectsByResolution = new EnumStateCounter();
+    fetchDefects(service, polarionProjectId, allDefectsQuery(polarionProjectId), SINGLE_PASS_FIELDS, -1, new WorkItemPager.PageHandler() {
+      public void handlePage(WorkItem[] page) {
+        splitDefectsByResolution(page, openDefectsBySeverity, resolvedDefectsByResolution);
+      }
+    });
+    defects.openDefectsBySeverity = openDefectsBySeverity.toMap();
+    defects.resolvedDefectsByResolution = resolvedDefectsByResolution.toMap();
+    return defects;
   }
 
-  protected void collectAndSaveResolvedPolarionDefects(SensorContext context, PolarionSession service, String polarionProjectId) throws RemoteException {
-    Map<String, String> resolutionEnumStates = collectResolutionEnumStates(service);
-    Map<String, Integer> defectsWithResolution = collectDefectsByResolution(service, polarionProjectId);
+  /**
+   * Applies the defects updated since the previous analysis to the snapshot stored by that analysis. All defects are
+   * fetched again when there is no snapshot yet or the last full sync is older than the full sync interval.
+   */
+  protected ProjectDefects collectDefectsIncrementally(PolarionSession service, String polarionProjectId) throws RemoteException {
+    ProjectDefects defects = new ProjectDefects();
+    defects.severities = collectSeveritiesEnumStates(service, polarionProjectId);
+    defects.resolutions = collectResolutionEnumStates(service, polarionProjectId);
+
+    File snapshotFile = getSnapshotFile(polarionProjectId);
+    DefectSnapshot previous = DefectSnapshot.load(snapshotFile);
+    long fetchStart = System.currentTimeMillis();
+    String query = allDefectsQuery(polarionProjectId);
+    final DefectSnapshot snapshot;
+    if (previous == null || fetchStart - previous.getLastFullSync() >= getFullSyncInterval()) {
+      LOG.info("Full sync of the defects of Polarion project " + polarionProjectId);
+      snapshot = new DefectSnapshot(fetchStart);
+    } else {
+      snapshot = previous;
+      query = query + " AND " + snapshot.updatedSinceWatermarkQuery();
+      snapshot.setWatermark(fetchStart);
+    }
+
+    fetchDefects(service, polarionProjectId, query, INCREMENTAL_FIELDS, -1, new WorkItemPager.PageHandler() {
+      public void handlePage(WorkItem[] page) {
+        snapshot.update(page);
+      }
+    });
+    try {
+      snapshot.store(snapshotFile);
+    } catch (IOException e) {
+      LOG.warn("Unable to store the defects of Polarion project " + polarionProjectId + ", the next analysis will fetch all of them", e);
+    }
 
-    DefectPerEnumState defectsPerResolution = mapNumberOfDefectsPerEnumState(resolutionEnumStates, defectsWithResolution);
+    defects.openDefectsBySeverity = snapshot.countOpenDefectsBySeverity();
+    defects.resolvedDefectsByResolution = snapshot.countResolvedDefectsByResolution();
+    return defects;
+  }
+
+  private File getSnapshotFile(String polarionProjectId) {
+    String name = (getServerUrl() + "_" + polarionProjectId).replaceAll("[^A-Za-z0-9._-]", "_");
+    return new File(PolarionWorkDirectory.get(settings, SNAPSHOTS_DIR), name + ".properties");
+  }
 
-    String url = getServerUrl() + "/polarion/#/project/" + polarionProjectId + "/workitems?query=type:defect%20AND%20HAS_VALUE:resolution";
+  protected void splitDefectsByResolution(WorkItem[] defects, EnumStateCounter openDefectsBySeverity,
+      EnumStateCounter resolvedDefectsByResolution) {
+    for (WorkItem defect : defects) {
+      EnumOptionId resolution = defect.getResolution();
+      if (resolution == null || StringUtils.isEmpty(resolution.getId())) {
+        // counted like DefectSnapshot does, under an empty severity
+        EnumOptionId severity = defect.getSeverity();
+        openDefectsBySeverity.increment(severity == null ? "" : StringUtils.defaultString(severity.getId()));
+      } else {
+        resolvedDefectsByResolution.increment(resolution.getId());
+      }
+    }
+  }
+
+  private Measure openDefectsMeasure(List<String> polarionProjectIds, DefectPerEnumState defectsPerSeverity) {
+    String url = workItemsUrl(polarionProjectIds, "type:defect%20AND%20NOT%20HAS_VALUE:resolution");
     LOG.debug("polarion defect url: " + url);
-    saveMeasures(PolarionMetrics.RESOLVEDISSUES, context, url, defectsPerResolution.totalNumberOfDefects, defectsPerResolution.distribution.buildData());
+    return buildMeasure(PolarionMetrics.OPENISSUES, url, defectsPerSeverity.totalNumberOfDefects, defectsPerSeverity.distribution.buildData());
   }
 
+  private Measure resolvedDefectsMeasure(List<String> polarionProjectIds, DefectPerEnumState defectsPerResolution) {
+    String url = workItemsUrl(polarionProjectIds, "type:defect%20AND%20HAS_VALUE:resolution");
+    LOG.debug("polarion defect url: " + url);
+    return buildMeasure(PolarionMetrics.RESOLVEDISSUES, url, defectsPerResolution.totalNumberOfDefects, defectsPerResolution.distribution.buildData());
+  }
+
+  private String workItemsUrl(List<String> polarionProjectIds, String query) {
+    if (polarionProjectIds.size() == 1) {
+      return getServerUrl() + "/polarion/#/project/" + polarionProjectIds.get(0) + "/workitems?query=" + query;
+    }
+    return getServerUrl() + "/polarion/#/workitems?query=" + query + "%20AND%20project.id:(" + StringUtils.join(polarionProjectIds, "%20") + ")";
+  }
+
+  /**
+   * Builds the distribution in the order of the enum options, in a single pass over them. Options without defects
+   * are part of the distribution with 0 defects, defects of unknown options are left out.
+   */
   protected DefectPerEnumState mapNumberOfDefectsPerEnumState(Map<String, String> enumStates, Map<String, Integer> defectsPerEnumStates) {
     DefectPerEnumState defectPerEnumState = new DefectPerEnumState();
+    int totalNumberOfDefects = 0;
     for (Map.Entry<String, String> enumState : enumStates.entrySet()) {
-      String enumStateId = enumState.getKey();
+      Integer numberOfDefects = defectsPerEnumStates.get(enumState.getKey());
+      int count = numberOfDefects == null ? 0 : numberOfDefects;
+      totalNumberOfDefects += count;
+      defectPerEnumState.addNumberOfDefectsForCurrentEnumState(enumState.getValue(), count);
+    }
+    defectPerEnumState.totalNumberOfDefects = totalNumberOfDefects;
+    return defectPerEnumState;
+  }
+
+  protected Map<String, Integer> collectDefectsBySeverity(PolarionSession service, String polarionProjectId,
+      Map<String, String> severitiesEnumStates) throws RemoteException {
+    return collectDefectsPerEnumState(service, polarionProjectId, openDefectsQuery(polarionProjectId),
+        SEVERITY_FIELD, severitiesEnumStates);
+  }
+
+  protected Map<String, Integer> collectDefectsBySeverity(PolarionSession service, String polarionProjectId) throws RemoteException {
+    WorkItem[] defects = getDefectsForProject(openDefectsQuery(polarionProjectId), service, polarionProjectId,
+        fieldsToFetch(false, PolarionMetrics.OPENISSUES));
+    return groupDefectsByEnumState(defects, SEVERITY_FIELD);
+  }
+
+  protected Map<String, Integer> collectDefectsByResolution(PolarionSession service, String polarionProjectId,
+      Map<String, String> resolutionEnumStates) throws RemoteException {
+    return collectDefectsPerEnumState(service, polarionProjectId, resolvedDefectsQuery(polarionProjectId),
+        RESOLUTION_FIELD, resolutionEnumStates);
+  }
+
+  protected Map<String, Integer> collectDefectsByResolution(PolarionSession service, String polarionProjectId) throws RemoteException {
+    WorkItem[] defects = getDefectsForProject(resolvedDefectsQuery(polarionProjectId), service, polarionProjectId,
+        fieldsToFetch(false, PolarionMetrics.RESOLVEDISSUES));
+    return groupDefectsByEnumState(defects, RESOLUTION_FIELD);
+  }
 
-      if(defectsPerEnumStates.isEmpty()) {
-        defectPerEnumState.addNumberOfDefectsForCurrentEnumState(enumStates.get(
-            enumStateId), 0);
+  private String openDefectsQuery(String polarionProjectId) {
+    return "type:defect AND !resolved AND project.id:" + polarionProjectId;
+  }
+
+  private String resolvedDefectsQuery(String polarionProjectId) {
+    return "type:defect AND resolved AND project.id:" + polarionProjectId;
+  }
+
+  private String allDefectsQuery(String polarionProjectId) {
+    return "type:defect AND project.id:" + polarionProjectId;
+  }
+
+  /**
+   * Counts the defects matching the query per option of the given enum field, either by fetching all defects
+   * or by asking Polarion for the number of defects of each option, whichever is cheaper.
+   */
+  protected Map<String, Integer> collectDefectsPerEnumState(PolarionSession service, String polarionProjectId, String query,
+      String enumField, Map<String, String> enumStates) throws RemoteException {
+    String mode = getAggregationMode();
+    if (PolarionConstants.AGGREGATION_MODE_SQL.equals(mode)) {
+      if (supportsSql(service)) {
+        return countDefectsPerEnumStateBySql(service, polarionProjectId, enumField, enumStates);
       }
+      mode = PolarionConstants.AGGREGATION_MODE_AUTO;
+    }
+    if (PolarionConstants.AGGREGATION_MODE_FETCH.equals(mode)) {
+      return fetchDefectsPerEnumState(service, polarionProjectId, query, enumField, -1);
+    }
+
+    if (PolarionConstants.AGGREGATION_MODE_AUTO.equals(mode)) {
+      int numberOfDefects = service.getTrackerService().getWorkItemsCount(query);
+      if (numberOfDefects == 0) {
+        return Maps.newHashMap();
+      }
+      if (!isCountingCheaperThanFetching(enumStates.size(), numberOfDefects)) {
+        LOG.debug("Fetching " + numberOfDefects + " defects to count them per " + enumField);
+        return fetchDefectsPerEnumState(service, polarionProjectId, query, enumField, numberOfDefects);
+      }
+    }
+    return countDefectsPerEnumState(service, query, enumField, enumStates);
+  }
+
+  /**
+   * Fetches the defects matching the query and counts them per option of the given enum field. Unless the expected
+   * number of defects fits into a single page, defects are fetched and counted page by page.
+   *
+   * @param expectedNumberOfDefects number of matching defects if already known, -1 otherwise
+   */
+  protected Map<String, Integer> fetchDefectsPerEnumState(PolarionSession service, String polarionProjectId, String query,
+      final String enumField, int expectedNumberOfDefects) throws RemoteException {
+    final EnumStateCounter defectsPerEnumState = new EnumStateCounter();
+    fetchDefects(service, polarionProjectId, query, new String[] {enumField}, expectedNumberOfDefects, new WorkItemPager.PageHandler() {
+      public void handlePage(WorkItem[] page) {
+        addDefectsPerEnumState(defectsPerEnumState, page, enumField);
+      }
+    });
+    return defectsPerEnumState.toMap();
+  }
+
+  /**
+   * Hands the defects matching the query to the handler, page by page unless paging is disabled
+   * or the expected number of defects fits into a single page.
+   */
+  protected void fetchDefects(PolarionSession service, String polarionProjectId, String query, String[] fields,
+      int expectedNumberOfDefects, WorkItemPager.PageHandler handler) throws RemoteException {
+    int pageSize = getFetchPageSize();
+    if (pageSize <= 0 || (expectedNumberOfDefects >= 0 && expectedNumberOfDefects <= pageSize)) {
+      handler.handlePage(queryPolarionForWorkItem(service, polarionProjectId, query, fields));
+      return;
+    }
 
-      for(Map.Entry<String, Integer> defectsForAnEnumState : defectsPerEnumStates.entrySet()) {
-        Integer nrIssues = 0;
+    LOG.info("Retreive Workitems from project: " + polarionProjectId + " in pages of " + pageSize);
+    WorkItemPager pager = new WorkItemPager(service.getTrackerService(), query, null, fields, pageSize);
+    int numberOfDefects = pager.forEachPage(handler);
+    LOG.info("Number of workitems found in " + polarionProjectId + ": " + numberOfDefects);
+  }
 
-        if(enumStateId.equals(defectsForAnEnumState.getKey())) {
-          defectPerEnumState.totalNumberOfDefects += defectsForAnEnumState.getValue();
-          nrIssues = defectsForAnEnumState.getValue();
-          defectPerEnumState.addNumberOfDefectsForCurrentEnumState(
-              enumStates.get(enumStateId), nrIssues);
-         break;
+  /**
+   * Counting needs one round trip per enum option, fetching needs one round trip plus the transfer of all defects.
+   */
+  protected boolean isCountingCheaperThanFetching(int numberOfEnumStates, int numberOfDefects) {
+    double fetchCost = 1 + (double) numberOfDefects / getItemsPerRoundTrip();
+    return numberOfEnumStates < fetchCost;
+  }
+
+  protected Map<String, Integer> countDefectsPerEnumState(PolarionSession service, String query, String enumField,
+      Map<String, String> enumStates) throws RemoteException {
+    Map<String, Integer> defectsPerEnumState = Maps.newHashMap();
+    TrackerWebService trackerService = service.getTrackerService();
+
+    for (String enumStateId : enumStates.keySet()) {
+      String enumStateQuery = query + " AND " + enumField + ":" + luceneTerm(enumStateId);
+      LOG.debug("Count query: " + enumStateQuery);
+      int numberOfDefects = trackerService.getWorkItemsCount(enumStateQuery);
+      if (numberOfDefects > 0) {
+        defectsPerEnumState.put(enumStateId, numberOfDefects);
+      }
+    }
+    return defectsPerEnumState;
+  }
+
+  /**
+   * Probes once whether Polarion answers SQL queries, which depends on its version and on how its index is stored.
+   */
+  protected boolean supportsSql(PolarionSession service) throws RemoteException {
+    Boolean supported = sqlSupported;
+    if (supported == null) {
+      synchronized (sqlProbeLock) {
+        supported = sqlSupported;
+        if (supported == null) {
+          supported = probeSql(service);
+          sqlSupported = supported;
         }
-        defectPerEnumState.addNumberOfDefectsForCurrentEnumState(enumStates.get(
-            enumStateId), nrIssues);
       }
     }
-    return defectPerEnumState;
+    return supported;
   }
 
-  protected Map<String, Integer> collectDefectsBySeverity(PolarionSession service, String polarionProjectId) throws RemoteException {
-  Map<String, Integer> issuesBySeverity = Maps.newHashMap();
+  private static boolean probeSql(PolarionSession service) throws RemoteException {
+    try {
+      service.getTrackerService().getWorkItemsCount(sqlQuery(SQL_PROBE));
+      return true;
+    } catch (RemoteException e) {
+      if (PolarionResilience.isTransient(e)) {
+        throw e;
+      }
+      LOG.info("Polarion does not answer SQL queries, defects are counted with Lucene queries: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Counts the defects per option of the given enum field with one SQL query per option, embedded in a Lucene query so that
+   * Polarion only sends the number of defects. Severities are counted among open defects, resolutions among resolved ones.
+   */
+  protected Map<String, Integer> countDefectsPerEnumStateBySql(PolarionSession service, String polarionProjectId, String enumField,
+      Map<String, String> enumStates) throws RemoteException {
+    Map<String, Integer> defectsPerEnumState = Maps.newHashMap();
+    TrackerWebService trackerService = service.getTrackerService();
 
-  String query="type:defect AND !resolved AND project.id:" + polarionProjectId;
-  WorkItem[] defects = getDefectsForProject(query, service, polarionProjectId);
+    for (String enumStateId : enumStates.keySet()) {
+      String query = sqlQuery(defectsSql(polarionProjectId, enumField, enumStateId));
+      LOG.debug("SQL query: " + query);
+      int defects = trackerService.getWorkItemsCount(query);
+      if (defects > 0) {
+        defectsPerEnumState.put(enumStateId, defects);
+      }
+    }
+    return defectsPerEnumState;
+  }
 
-  for (WorkItem defect : defects) {
-    String severity = defect.getSeverity().getId();
-    if (!issuesBySeverity.containsKey(severity)) {
-      issuesBySeverity.put(severity, 1);
-    } else {
-      issuesBySeverity.put(severity, issuesBySeverity.get(severity) + 1);
+  static String defectsSql(String polarionProjectId, String enumField, String enumStateId) {
+    StringBuilder sql = new StringBuilder("SELECT WORKITEM.C_URI FROM WORKITEM INNER JOIN PROJECT ON PROJECT.C_URI = WORKITEM.FK_URI_PROJECT")
+      .append(" WHERE PROJECT.C_ID = ").append(sqlLiteral(polarionProjectId))
+      .append(" AND WORKITEM.C_TYPE = ").append(sqlLiteral(DEFECT_TYPE));
+    if (SEVERITY_FIELD.equals(enumField)) {
+      sql.append(" AND WORKITEM.C_RESOLUTION IS NULL");
     }
+    sql.append(" AND WORKITEM.C_").append(enumField.toUpperCase(Locale.ENGLISH)).append(" = ").append(sqlLiteral(enumStateId));
+    return sql.toString();
   }
 
-  return issuesBySeverity;
-}
+  /**
+   * Escapes the characters of the value which have a meaning in Lucene queries, so that it is matched as a single term.
+   */
+  static String luceneTerm(String value) {
+    StringBuilder term = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (LUCENE_SPECIAL_CHARACTERS.indexOf(c) >= 0 || Character.isWhitespace(c)) {
+        term.append('\\');
+      }
+      term.append(c);
+    }
+    return term.toString();
+  }
 
-  protected Map<String, Integer> collectDefectsByResolution(PolarionSession service, String polarionProjectId) throws RemoteException {
-    Map<String, Integer> issuesByResolution = Maps.newHashMap();
+  private static String sqlQuery(String sql) {
+    return "SQL:(" + sql + ")";
+  }
+
+  private static String sqlLiteral(String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
 
-    String query="type:defect AND resolved AND project.id:" + polarionProjectId;
-    WorkItem[] defects = getDefectsForProject(query, service, polarionProjectId);
+  protected Map<String, Integer> groupDefectsByEnumState(WorkItem[] defects, String enumField) {
+    EnumStateCounter defectsPerEnumState = new EnumStateCounter();
+    addDefectsPerEnumState(defectsPerEnumState, defects, enumField);
+    return defectsPerEnumState.toMap();
+  }
 
+  protected void addDefectsPerEnumState(EnumStateCounter defectsPerEnumState, WorkItem[] defects, String enumField) {
+    boolean resolution = RESOLUTION_FIELD.equals(enumField);
     for (WorkItem defect : defects) {
-      String resolution = defect.getResolution().getId();
-      if (!issuesByResolution.containsKey(resolution)) {
-        issuesByResolution.put(resolution, 1);
-      } else {
-        issuesByResolution.put(resolution, issuesByResolution.get(resolution) + 1);
-      }
+      EnumOptionId enumState = resolution ? defect.getResolution() : defect.getSeverity();
+      defectsPerEnumState.increment(enumState.getId());
     }
+  }
 
-    return issuesByResolution;
+  protected WorkItem[] getDefectsForProject(String query, PolarionSession service, String polarionProjectId, String[] fields)
+      throws RemoteException {
+    checkPolarionProject(service, polarionProjectId);
+
+    LOG.debug("Polarion defect query: " + query);
+    WorkItem[] defects = queryPolarionForWorkItem(service, polarionProjectId, query, fields);
+
+    return defects;
   }
 
-  protected WorkItem[] getDefectsForProject(String query, PolarionSession service, String polarionProjectId) throws RemoteException {
+  /**
+   * Works out the smallest set of work item fields from which the given metrics can be computed. Polarion only
+   * serializes the requested fields, so every field left out saves transferred bytes and memory per work item.
+   *
+   * @param trackedById whether the fetched defects are told apart by their ID
+   */
+  static String[] fieldsToFetch(boolean trackedById, Metric... metrics) {
+    Set<String> fields = Sets.newLinkedHashSet();
+    if (trackedById) {
+      fields.add(ID_FIELD);
+    }
+    for (Metric metric : metrics) {
+      if (PolarionMetrics.OPENISSUES.equals(metric)) {
+        fields.add(SEVERITY_FIELD);
+      } else if (PolarionMetrics.RESOLVEDISSUES.equals(metric)) {
+        fields.add(RESOLUTION_FIELD);
+      } else {
+        throw new IllegalArgumentException("Metric not computed from Polarion defects: " + metric.getKey());
+      }
+    }
+    if (metrics.length > 1) {
+      // open and resolved defects are fetched together and split by their resolution
+      fields.add(RESOLUTION_FIELD);
+    }
+    return fields.toArray(new String[fields.size()]);
+  }
 
+  protected void checkPolarionProject(PolarionSession service, String polarionProjectId) throws RemoteException {
     ProjectWebService projectService = service.getProjectService();
     com.polarion.alm.ws.client.types.projects.Project polarionProject;
 
-    polarionProject = projectService.getProject(polarionProjectId);
+    if (projectCache != null) {
+      polarionProject = projectCache.getProject(projectService, getServerUrl(), polarionProjectId);
+    } else {
+      polarionProject = projectService.getProject(polarionProjectId);
+    }
     if(polarionProject.isUnresolvable())
     {
       String errorText = "Polarion project id: " + polarionProjectId + " does not exist. " +
           "Please check the spelling.";
       throw new IllegalArgumentException(errorText);
     }
-
-    LOG.debug("Polarion defect query: " + query);
-    String[] fields = { "id", "title", "severity", "priority", "status", "resolution"};
-
-    WorkItem[] defects = queryPolarionForWorkItem(service, polarionProjectId, query, fields);
-
-    return defects;
   }
 
   protected WorkItem[] queryPolarionForWorkItem(PolarionSession service, String polarionProjectId, String query, String[] fields) throws RemoteException {
@@ -246,35 +1107,42 @@ public class PolarionSensor implements Sensor {
   }
 
   protected Map<String, String> collectSeveritiesEnumStates(PolarionSession service) throws RemoteException {
-    Map<String, String> severities = Maps.newHashMap();
-    TrackerWebService trackerService = service.getTrackerService();
-    EnumOption[] allConfiguredSeverities = trackerService.getEnumOptionsForKeyWithControl(getFetchProjectId()
-        , "severity", "defect");
+    return collectSeveritiesEnumStates(service, getFetchProjectIds().get(0));
+  }
 
-    for ( EnumOption configuredSeverity : allConfiguredSeverities) {
-      severities.put(configuredSeverity.getId(), configuredSeverity.getName());
-      LOG.debug("Severity Id: " + configuredSeverity.getId() + ", name: " + configuredSeverity.getName());
-    }
+  protected Map<String, String> collectSeveritiesEnumStates(PolarionSession service, String polarionProjectId) throws RemoteException {
+    Map<String, String> severities = collectEnumStates(service, polarionProjectId, SEVERITY_FIELD, DEFECT_TYPE);
+    LOG.debug("Severities: " + severities);
     return severities;
   }
 
   protected Map<String, String> collectResolutionEnumStates(PolarionSession service) throws RemoteException {
-    Map<String, String> resolutions = Maps.newHashMap();
-    TrackerWebService trackerService = service.getTrackerService();
+    return collectResolutionEnumStates(service, getFetchProjectIds().get(0));
+  }
 
-    EnumOption[] allConfiguredResolutions = trackerService.getEnumOptionsForKeyWithControl(getFetchProjectId()
-        , "resolution", "defect");
+  protected Map<String, String> collectResolutionEnumStates(PolarionSession service, String polarionProjectId) throws RemoteException {
+    Map<String, String> resolutions = collectEnumStates(service, polarionProjectId, RESOLUTION_FIELD, DEFECT_TYPE);
+    LOG.debug("Resolutions: " + resolutions);
+    return resolutions;
+  }
 
-    for ( EnumOption configuredResolution : allConfiguredResolutions) {
-      resolutions.put(configuredResolution.getId(), configuredResolution.getName());
-      LOG.debug("Resolution Id: " + configuredResolution.getId() + ", name: " + configuredResolution.getName());
+  private Map<String, String> collectEnumStates(PolarionSession service, String polarionProjectId, String enumKey, String workItemType)
+      throws RemoteException {
+    TrackerWebService trackerService = service.getTrackerService();
+    if (enumOptionCache != null) {
+      return enumOptionCache.getEnumOptions(trackerService, getServerUrl(), polarionProjectId, enumKey, workItemType);
     }
-    return resolutions;
+
+    Map<String, String> enumStates = Maps.newHashMap();
+    for (EnumOption configuredOption : trackerService.getEnumOptionsForKeyWithControl(polarionProjectId, enumKey, workItemType)) {
+      enumStates.put(configuredOption.getId(), configuredOption.getName());
+    }
+    return enumStates;
   }
 
   protected boolean missingMandatoryParameters() {
     boolean isEmpty = StringUtils.isEmpty(getServerUrl()) ||
-        StringUtils.isEmpty(getFetchProjectId()) ||
+        getFetchProjectIds().isEmpty() ||
         StringUtils.isEmpty(getCreateProjectId()) ||
         StringUtils.isEmpty(getUsername()) ||
         StringUtils.isEmpty(getPassword());
@@ -282,13 +1150,18 @@ public class PolarionSensor implements Sensor {
   }
 
   protected void saveMeasures(Metric metric, SensorContext context, String issueUrl, double totalPrioritiesCount, String priorityDistribution) {
+    Measure issuesMeasure = buildMeasure(metric, issueUrl, totalPrioritiesCount, priorityDistribution);
+    context.saveMeasure(issuesMeasure);
+    LOG.debug("issueMeasure: " + issuesMeasure);
+  }
+
+  private static Measure buildMeasure(Metric metric, String issueUrl, double totalPrioritiesCount, String priorityDistribution) {
     Measure issuesMeasure = new Measure(metric, totalPrioritiesCount);
     issuesMeasure.setUrl(issueUrl);
     LOG.debug("ISSUE URL: " + issueUrl);
     issuesMeasure.setData(priorityDistribution);
     LOG.debug("distribution: " + priorityDistribution);
-    context.saveMeasure(issuesMeasure);
-    LOG.debug("issueMeasure: " + issuesMeasure);
+    return issuesMeasure;
   }
 
   @Override
@@ -296,6 +1169,112 @@ public class PolarionSensor implements Sensor {
     return "Polarion issues sensor";
   }
 
+  /**
+   * Defects of one or more Polarion projects counted per enum option id, with the names of the options.
+   */
+  public static class ProjectDefects {
+    private Map<String, String> severities = Maps.newLinkedHashMap();
+    private Map<String, String> resolutions = Maps.newLinkedHashMap();
+    private Map<String, Integer> openDefectsBySeverity = Maps.newHashMap();
+    private Map<String, Integer> resolvedDefectsByResolution = Maps.newHashMap();
+
+    /**
+     * Adds the defects of another project. Options are matched by id, the name of an option is taken from the first
+     * project defining it.
+     */
+    public void add(ProjectDefects other) {
+      addMissing(severities, other.severities);
+      addMissing(resolutions, other.resolutions);
+      addCounts(openDefectsBySeverity, other.openDefectsBySeverity);
+      addCounts(resolvedDefectsByResolution, other.resolvedDefectsByResolution);
+    }
+
+    public Map<String, Integer> getOpenDefectsBySeverity() {
+      return openDefectsBySeverity;
+    }
+
+    public Map<String, Integer> getResolvedDefectsByResolution() {
+      return resolvedDefectsByResolution;
+    }
+
+    private static void addMissing(Map<String, String> enumStates, Map<String, String> otherEnumStates) {
+      for (Map.Entry<String, String> enumState : otherEnumStates.entrySet()) {
+        if (!enumStates.containsKey(enumState.getKey())) {
+          enumStates.put(enumState.getKey(), enumState.getValue());
+        }
+      }
+    }
+
+    private static void addCounts(Map<String, Integer> defectsPerEnumState, Map<String, Integer> otherDefectsPerEnumState) {
+      for (Map.Entry<String, Integer> defects : otherDefectsPerEnumState.entrySet()) {
+        Integer count = defectsPerEnumState.get(defects.getKey());
+        defectsPerEnumState.put(defects.getKey(), count == null ? defects.getValue() : count + defects.getValue());
+      }
+    }
+  }
+
+  /**
+   * Sessions of the threads of one concurrent collection, each thread logs in a session of its own the first time it
+   * needs one. The session of the caller is handed to the first thread, the others are logged out by {@link #close}.
+   */
+  private class WorkerSessions {
+    private final PolarionSession callerSession;
+    private final AtomicBoolean callerSessionTaken = new AtomicBoolean();
+    private final ConcurrentMap<Thread, PolarionSession> sessionsByThread = Maps.newConcurrentMap();
+
+    WorkerSessions(PolarionSession callerSession) {
+      this.callerSession = callerSession;
+    }
+
+    PolarionSession get() throws RemoteException {
+      PolarionSession session = sessionsByThread.get(Thread.currentThread());
+      if (session != null) {
+        return session;
+      }
+      if (callerSessionTaken.compareAndSet(false, true)) {
+        session = callerSession;
+      } else {
+        try {
+          session = openSession();
+        } catch (ServiceException e) {
+          throw new RemoteException("WebServices not available", e);
+        } catch (MalformedURLException e) {
+          throw new IllegalStateException("The Polarion server URL is not a valid one: " + getServerUrl(), e);
+        }
+      }
+      sessionsByThread.put(Thread.currentThread(), session);
+      return session;
+    }
+
+    void close() {
+      for (PolarionSession session : sessionsByThread.values()) {
+        if (session == callerSession) {
+          continue;
+        }
+        try {
+          session.disconnect();
+        } catch (RemoteException e) {
+          LOG.debug("Unable to log out of Polarion", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Work items of one or more Polarion projects counted for a custom metric.
+   */
+  protected static class WorkItemCounts {
+    private Map<String, String> enumStates = Maps.newLinkedHashMap();
+    private Map<String, Integer> counts = Maps.newHashMap();
+    private int total;
+
+    void add(WorkItemCounts other) {
+      ProjectDefects.addMissing(enumStates, other.enumStates);
+      ProjectDefects.addCounts(counts, other.counts);
+      total += other.total;
+    }
+  }
+
   public class DefectPerEnumState {
     private double totalNumberOfDefects = 0;
     private PropertiesBuilder<String, Integer> distribution = new PropertiesBuilder<String, Integer>();
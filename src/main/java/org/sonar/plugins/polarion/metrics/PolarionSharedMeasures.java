@@ -0,0 +1,278 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.api.utils.DateUtils;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionCallMetrics;
+import org.sonar.plugins.polarion.soap.PolarionEnumOptionCache;
+import org.sonar.plugins.polarion.soap.PolarionHttpTransport;
+import org.sonar.plugins.polarion.soap.PolarionProjectCache;
+import org.sonar.plugins.polarion.soap.PolarionReadCoalescer;
+import org.sonar.plugins.polarion.soap.PolarionResilience;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the defects of Polarion projects on the server and shares the measures with all the analyses of these projects,
+ * see {@link PolarionSharedMeasuresWebService}. The defects of a list of projects are counted at most once per time to
+ * live, concurrent requests for the same projects wait for the same count. The {@link PolarionPoller} counts them again
+ * in the background, and every count is recorded in the {@link DefectHistory}.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.SHARED_MEASURES_TTL_PROPERTY,
+    name = "Shared Measures Time to Live",
+    description = "Number of minutes during which the measures computed by the server for a list of Polarion projects " +
+      "are shared with the analyses before the defects are counted again.",
+    defaultValue = "" + PolarionConstants.DEFAULT_SHARED_MEASURES_TTL,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionSharedMeasures implements ServerExtension {
+  static final String SERVER_KEY = "server";
+  private static final long DAY_MS = 24 * 3600 * 1000L;
+
+  /**
+   * Period during which a list of projects whose measures were requested is still polled.
+   */
+  static final long ACTIVE_PERIOD_MS = DAY_MS;
+
+  private final Settings settings;
+  private final PolarionSensor sensor;
+  private final DefectHistory history;
+  private final ConcurrentMap<String, FutureTask<LastKnownMeasures>> computations = new ConcurrentHashMap<String, FutureTask<LastKnownMeasures>>();
+  private final ConcurrentMap<String, Long> requested = new ConcurrentHashMap<String, Long>();
+
+  public PolarionSharedMeasures(Settings settings) {
+    this(settings, null, new PolarionCallMetrics(), new PolarionHttpTransport(settings), new PolarionResilience(settings),
+      new DefectHistory(settings), null, null);
+  }
+
+  public PolarionSharedMeasures(Settings settings, PolarionEnumOptionCache enumOptionCache, PolarionCallMetrics callMetrics,
+      PolarionHttpTransport transport, PolarionResilience resilience, DefectHistory history, PolarionReadCoalescer readCoalescer,
+      PolarionProjectCache projectCache) {
+    this.settings = settings;
+    this.sensor = new PolarionSensor(settings, enumOptionCache, callMetrics, transport, resilience, readCoalescer, projectCache);
+    this.history = history;
+  }
+
+  /**
+   * Returns the measures of the given Polarion projects, along with the URL of the Polarion server, in the properties
+   * format of {@link LastKnownMeasures}.
+   *
+   * @param projectIds comma-separated IDs of Polarion projects
+   */
+  public String getMeasures(String projectIds) {
+    List<String> ids = parseProjectIds(projectIds);
+    long now = now();
+    requested.put(StringUtils.join(ids, ","), now);
+    evictRequests(now - ACTIVE_PERIOD_MS);
+
+    java.util.Properties shared = getMeasures(ids).toProperties();
+    shared.setProperty(SERVER_KEY, settings.getString(PolarionConstants.SERVER_URL_PROPERTY));
+    try {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      shared.store(output, null);
+      // without the date comment written first, the same measures are always served the same
+      String stored = output.toString("ISO-8859-1");
+      return stored.substring(stored.indexOf('\n') + 1);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write the Polarion measures", e);
+    }
+  }
+
+  /**
+   * Tells whether every given Polarion project is configured in {@link PolarionConstants#POLARION_FETCH_PROJECT_ID} by
+   * one of the SonarQube projects the user can browse. Other projects are neither counted nor polled for the user.
+   *
+   * @param projectIds comma-separated IDs of Polarion projects
+   * @param configuredProjectIds the values of the property in the SonarQube projects the user can browse
+   */
+  public boolean isAllowed(String projectIds, List<String> configuredProjectIds) {
+    Set<String> allowed = Sets.newHashSet();
+    for (String configured : configuredProjectIds) {
+      allowed.addAll(splitProjectIds(configured));
+    }
+    List<String> ids = splitProjectIds(projectIds);
+    return !ids.isEmpty() && allowed.containsAll(ids);
+  }
+
+  /**
+   * Returns the distributions of the defects of the given Polarion projects counted by the server between two dates.
+   *
+   * @param projectIds comma-separated IDs of Polarion projects
+   * @param from first day of the series, formatted as yyyy-MM-dd, or null for no limit
+   * @param to last day of the series, formatted as yyyy-MM-dd, or null for no limit
+   */
+  public List<TrendSeries> getHistory(String projectIds, String from, String to) {
+    long fromTime = StringUtils.isBlank(from) ? 0L : DateUtils.parseDate(from).getTime();
+    long toTime = StringUtils.isBlank(to) ? Long.MAX_VALUE : DateUtils.parseDate(to).getTime() + DAY_MS - 1;
+    return history.getSeries(StringUtils.join(parseProjectIds(projectIds), ","), fromTime, toTime);
+  }
+
+  /**
+   * Counts the defects of the given Polarion projects again. The previous measures are served until the new ones are known.
+   *
+   * @param projectIds comma-separated IDs of Polarion projects
+   */
+  public void refresh(String projectIds) {
+    List<String> ids = parseProjectIds(projectIds);
+    String key = StringUtils.join(ids, ",");
+    FutureTask<LastKnownMeasures> refreshed = newComputation(ids);
+    refreshed.run();
+    try {
+      refreshed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while counting the defects of Polarion projects " + key, e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Impossible to count the defects of Polarion projects " + key + ": " + e.getCause().getMessage(), e.getCause());
+    }
+    computations.put(key, refreshed);
+  }
+
+  /**
+   * @return the comma-separated IDs of the Polarion projects whose measures were requested since the given time
+   */
+  public List<String> getRequestedProjectIds(long since) {
+    evictRequests(now() - ACTIVE_PERIOD_MS);
+    List<String> projectIds = Lists.newArrayList();
+    for (Map.Entry<String, Long> request : requested.entrySet()) {
+      if (request.getValue() >= since) {
+        projectIds.add(request.getKey());
+      }
+    }
+    return projectIds;
+  }
+
+  private void evictRequests(long before) {
+    for (Map.Entry<String, Long> request : requested.entrySet()) {
+      if (request.getValue() < before) {
+        requested.remove(request.getKey(), request.getValue());
+      }
+    }
+  }
+
+  @VisibleForTesting
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  LastKnownMeasures getMeasures(List<String> projectIds) {
+    String key = StringUtils.join(projectIds, ",");
+    while (true) {
+      FutureTask<LastKnownMeasures> computation = computations.get(key);
+      if (computation == null || isExpired(computation)) {
+        FutureTask<LastKnownMeasures> created = newComputation(projectIds);
+        boolean added = computation == null ? computations.putIfAbsent(key, created) == null : computations.replace(key, computation, created);
+        if (!added) {
+          // another request started a computation in the meantime
+          continue;
+        }
+        created.run();
+        computation = created;
+      }
+
+      try {
+        return computation.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while counting the defects of Polarion projects " + key, e);
+      } catch (ExecutionException e) {
+        computations.remove(key, computation);
+        throw new IllegalStateException("Impossible to count the defects of Polarion projects " + key + ": " + e.getCause().getMessage(), e.getCause());
+      }
+    }
+  }
+
+  private FutureTask<LastKnownMeasures> newComputation(final List<String> projectIds) {
+    return new FutureTask<LastKnownMeasures>(new Callable<LastKnownMeasures>() {
+      public LastKnownMeasures call() throws Exception {
+        LastKnownMeasures measures = sensor.queryPolarion(projectIds);
+        history.record(StringUtils.join(projectIds, ","), measures);
+        return measures;
+      }
+    });
+  }
+
+  private static List<String> parseProjectIds(String projectIds) {
+    List<String> ids = splitProjectIds(projectIds);
+    if (ids.isEmpty()) {
+      throw new IllegalArgumentException("No Polarion project ID given");
+    }
+    Collections.sort(ids);
+    return ids;
+  }
+
+  private static List<String> splitProjectIds(String projectIds) {
+    List<String> ids = Lists.newArrayList();
+    for (String id : StringUtils.split(StringUtils.defaultString(projectIds), ',')) {
+      if (StringUtils.isNotBlank(id)) {
+        ids.add(id.trim());
+      }
+    }
+    return ids;
+  }
+
+  private boolean isExpired(FutureTask<LastKnownMeasures> computation) {
+    if (!computation.isDone()) {
+      return false;
+    }
+    try {
+      return System.currentTimeMillis() - computation.get().getTimestamp() >= getTimeToLiveMs();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return true;
+    } catch (ExecutionException e) {
+      return true;
+    }
+  }
+
+  private long getTimeToLiveMs() {
+    int minutes = settings.hasKey(PolarionConstants.SHARED_MEASURES_TTL_PROPERTY) ?
+      settings.getInt(PolarionConstants.SHARED_MEASURES_TTL_PROPERTY) : PolarionConstants.DEFAULT_SHARED_MEASURES_TTL;
+    return TimeUnit.SECONDS.toMillis(minutes * 60L);
+  }
+}
@@ -0,0 +1,39 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import org.sonar.api.web.AbstractRubyTemplate;
+import org.sonar.api.web.RubyRailsWebservice;
+
+/**
+ * Serves the measures of Polarion projects computed by the server, GET /api/plugins/polarion_measures/show?projects=id1,id2,
+ * and their history, GET /api/plugins/polarion_measures/history?projects=id1,id2&from=yyyy-MM-dd&to=yyyy-MM-dd
+ */
+public final class PolarionSharedMeasuresWebService extends AbstractRubyTemplate implements RubyRailsWebservice {
+  public String getId() {
+    return "polarion_measures";
+  }
+
+  @Override
+  protected String getTemplatePath() {
+    return "/org/sonar/plugins/polarion/metrics/polarion_measures_controller.rb";
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Number of defects of one enum option of a Polarion metric over time.
+ */
+public class TrendSeries {
+  private final String metricKey;
+  private final String bucket;
+  private final String name;
+  private final List<Long> timestamps = Lists.newArrayList();
+  private final List<Integer> counts = Lists.newArrayList();
+
+  public TrendSeries(String metricKey, String bucket, String name) {
+    this.metricKey = metricKey;
+    this.bucket = bucket;
+    this.name = name;
+  }
+
+  public String getMetricKey() {
+    return metricKey;
+  }
+
+  /**
+   * @return the id of the enum option, for instance a severity
+   */
+  public String getBucket() {
+    return bucket;
+  }
+
+  /**
+   * @return the latest name of the enum option
+   */
+  public String getName() {
+    return name;
+  }
+
+  public List<Long> getTimestamps() {
+    return timestamps;
+  }
+
+  public List<Integer> getCounts() {
+    return counts;
+  }
+
+  void add(long timestamp, int count) {
+    timestamps.add(timestamp);
+    counts.add(count);
+  }
+}
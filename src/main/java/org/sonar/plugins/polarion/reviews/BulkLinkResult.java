@@ -0,0 +1,64 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+/**
+ * Outcome of linking one SonarQube issue during a bulk link.
+ */
+public final class BulkLinkResult {
+  private final String issueKey;
+  private final String defectId;
+  private final String error;
+
+  private BulkLinkResult(String issueKey, String defectId, String error) {
+    this.issueKey = issueKey;
+    this.defectId = defectId;
+    this.error = error;
+  }
+
+  public static BulkLinkResult created(String issueKey, String defectId) {
+    return new BulkLinkResult(issueKey, defectId, null);
+  }
+
+  public static BulkLinkResult failed(String issueKey, String error) {
+    return new BulkLinkResult(issueKey, null, error);
+  }
+
+  public String getIssueKey() {
+    return issueKey;
+  }
+
+  public String getDefectId() {
+    return defectId;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public boolean isSuccess() {
+    return error == null;
+  }
+
+  @Override
+  public String toString() {
+    return issueKey + (isSuccess() ? " -> " + defectId : " failed: " + error);
+  }
+}
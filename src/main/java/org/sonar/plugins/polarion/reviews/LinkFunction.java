@@ -21,10 +21,12 @@ package org.sonar.plugins.polarion.reviews;
 
 import org.sonar.api.Properties;
 import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
 
 import com.google.common.annotations.VisibleForTesting;
 import org.sonar.api.ServerExtension;
 import org.sonar.api.config.Settings;
+import org.sonar.api.issue.Issue;
 import org.sonar.api.issue.action.Function;
 import org.sonar.plugins.polarion.PolarionConstants;
 
@@ -37,20 +39,98 @@ import org.sonar.plugins.polarion.PolarionConstants;
     global = false,
     project = true,
     module = true
+  ),
+  @Property(
+    key = PolarionConstants.LINK_ASYNC_PROPERTY,
+    name = "Link Asynchronously",
+    description = "If true, \"Link to Polarion\" returns immediately and the Polarion defect is created in the background. " +
+      "Use \"Update Polarion Link\" on the issue to fill in the defect once it has been created.",
+    defaultValue = "false",
+    type = PropertyType.BOOLEAN,
+    global = true,
+    project = true,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.LINK_COMMENTS_MODE_PROPERTY,
+    name = "Review Comments",
+    description = "How the comments of a SonarQube issue are copied to the Polarion defect: \"separate\" adds one Polarion comment " +
+      "per SonarQube comment, \"combined\" adds them as one comment.",
+    defaultValue = PolarionConstants.COMMENTS_MODE_SEPARATE,
+    type = PropertyType.SINGLE_SELECT_LIST,
+    options = {PolarionConstants.COMMENTS_MODE_SEPARATE, PolarionConstants.COMMENTS_MODE_COMBINED},
+    global = true,
+    project = true,
+    module = false
   )
 })
 
 public class LinkFunction implements Function, ServerExtension {
 
   private final PolarionIssueCreator polarionIssueCreator;
+  private final PolarionLinkOutbox outbox;
 
   public LinkFunction(PolarionIssueCreator polarionIssueCreator) {
+    this(polarionIssueCreator, null);
+  }
+
+  public LinkFunction(PolarionIssueCreator polarionIssueCreator, PolarionLinkOutbox outbox) {
     this.polarionIssueCreator = polarionIssueCreator;
+    this.outbox = outbox;
   }
 
   public void execute(Context context) {
+    String pendingTicket = pendingTicket(context.issue());
+    if (pendingTicket == null && outbox != null) {
+      pendingTicket = outbox.getCompletedTicket(context.issue().key());
+    }
+    if (pendingTicket != null) {
+      completePendingLink(pendingTicket, context);
+      return;
+    }
+
     checkConditions(context.projectSettings());
-    createPolarionIssue(context);
+    if (outbox != null && context.projectSettings().getBoolean(PolarionConstants.LINK_ASYNC_PROPERTY)) {
+      queuePolarionIssue(context);
+    } else {
+      createPolarionIssue(context);
+    }
+  }
+
+  protected void queuePolarionIssue(Context context) {
+    String ticket = outbox.enqueue(context.issue(), context.projectSettings());
+    context.addComment("Issue is being linked to Polarion (request " + ticket + ")");
+    context.setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, PolarionConstants.PENDING_LINK_PREFIX + ticket);
+  }
+
+  /**
+   * Applies the outcome of an asynchronous link request to the issue once the background workers are done with it.
+   */
+  protected void completePendingLink(String ticket, Context context) {
+    PolarionLinkOutbox.State state = outbox == null ? null : outbox.getState(ticket);
+    if (state == null) {
+      context.addComment("Polarion link request " + ticket + " is unknown, the issue can be linked again");
+      context.setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, null);
+    } else if (state == PolarionLinkOutbox.State.PENDING) {
+      throw new IllegalStateException("The issue is still being linked to Polarion, please try again later");
+    } else if (state == PolarionLinkOutbox.State.DONE) {
+      String issue = outbox.getDefectId(ticket);
+      createComment(issue, context);
+      context.setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, issue);
+      outbox.acknowledge(ticket);
+    } else {
+      context.addComment("Impossible to create an issue on Polarion: " + outbox.getError(ticket));
+      context.setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, null);
+      outbox.acknowledge(ticket);
+    }
+  }
+
+  static String pendingTicket(Issue issue) {
+    String polarionIssue = issue.attribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY);
+    if (polarionIssue != null && polarionIssue.startsWith(PolarionConstants.PENDING_LINK_PREFIX)) {
+      return polarionIssue.substring(PolarionConstants.PENDING_LINK_PREFIX.length());
+    }
+    return null;
   }
 
   protected void createPolarionIssue(Context context){
@@ -29,6 +29,7 @@ import org.sonar.plugins.polarion.PolarionConstants;
 public final class PolarionActionDefinition implements ServerExtension {
 
   private static final String LINK_TO_POLARION_ID = "link-to-polarion";
+  private static final String UPDATE_POLARION_LINK_ID = "update-polarion-link";
   private final Actions actions;
   private final LinkFunction linkFunction;
 
@@ -44,6 +45,9 @@ public final class PolarionActionDefinition implements ServerExtension {
         new IsUnResolved()
       )
       .setFunctions(linkFunction);
+    actions.add(UPDATE_POLARION_LINK_ID)
+      .setConditions(new HasPendingPolarionLinkCondition())
+      .setFunctions(linkFunction);
   }
 }
 
@@ -0,0 +1,37 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+import org.sonar.api.web.AbstractRubyTemplate;
+import org.sonar.api.web.RubyRailsWebservice;
+
+/**
+ * Links many issues to Polarion in one request: POST /api/plugins/polarion_bulk_link/link?issues=key1,key2
+ */
+public final class PolarionBulkLinkWebService extends AbstractRubyTemplate implements RubyRailsWebservice {
+  public String getId() {
+    return "polarion_bulk_link";
+  }
+
+  @Override
+  protected String getTemplatePath() {
+    return "/org/sonar/plugins/polarion/reviews/polarion_bulk_link_controller.rb";
+  }
+}
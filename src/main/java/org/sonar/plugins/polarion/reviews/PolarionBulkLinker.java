@@ -0,0 +1,206 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+import com.google.common.collect.Lists;
+import com.polarion.alm.ws.client.types.projects.Project;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.condition.Condition;
+import org.sonar.api.issue.condition.IsUnResolved;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionSession;
+
+import java.rmi.RemoteException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates Polarion work items for many SonarQube issues at once. Each worker thread leases one session for the whole
+ * batch and the Polarion project is looked up only once. Created work items are recorded in the outbox and applied to
+ * the SonarQube issues by the link action.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.BULK_LINK_PARALLELISM_PROPERTY,
+    name = "Bulk Link Parallelism",
+    description = "Number of Polarion sessions used in parallel when linking many issues at once.",
+    defaultValue = "" + PolarionConstants.DEFAULT_BULK_LINK_PARALLELISM,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionBulkLinker implements ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionBulkLinker.class);
+  // the conditions of the link action, checked before anything is created in Polarion
+  private static final Condition IS_UNRESOLVED = new IsUnResolved();
+
+  private final PolarionIssueCreator polarionIssueCreator;
+  private final PolarionLinkOutbox outbox;
+  private final Settings settings;
+
+  public PolarionBulkLinker(PolarionIssueCreator polarionIssueCreator, PolarionLinkOutbox outbox, Settings settings) {
+    this.polarionIssueCreator = polarionIssueCreator;
+    this.outbox = outbox;
+    this.settings = settings;
+  }
+
+  /**
+   * Creates a work item for every issue which the link action accepts, i.e. which is neither linked yet nor resolved.
+   *
+   * @param projectProperties the Polarion properties of the SonarQube project the issues belong to
+   */
+  public List<BulkLinkResult> createIssues(Collection<Issue> issues, Map<String, String> projectProperties) {
+    final Settings projectSettings = new Settings();
+    for (Map.Entry<String, String> property : settings.getProperties().entrySet()) {
+      projectSettings.setProperty(property.getKey(), property.getValue());
+    }
+    for (Map.Entry<String, String> property : projectProperties.entrySet()) {
+      projectSettings.setProperty(property.getKey(), property.getValue());
+    }
+
+    final Queue<Issue> remaining = new ConcurrentLinkedQueue<Issue>();
+    final List<BulkLinkResult> results = Lists.newArrayList();
+    for (Issue issue : issues) {
+      if (issue.attribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY) != null || outbox.getCompletedTicket(issue.key()) != null) {
+        results.add(BulkLinkResult.failed(issue.key(), "Issue is already linked to Polarion"));
+      } else if (!IS_UNRESOLVED.matches(issue)) {
+        results.add(BulkLinkResult.failed(issue.key(), "Issue is resolved"));
+      } else {
+        remaining.add(issue);
+      }
+    }
+    if (remaining.isEmpty()) {
+      return results;
+    }
+
+    int parallelism = Math.min(getParallelism(), remaining.size());
+    LOG.info("Linking " + remaining.size() + " issues to Polarion with " + parallelism + " sessions");
+    final SharedProject sharedProject = new SharedProject();
+    final AtomicInteger activeWorkers = new AtomicInteger(parallelism);
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    try {
+      List<Future<List<BulkLinkResult>>> workers = Lists.newArrayList();
+      for (int i = 0; i < parallelism; i++) {
+        workers.add(executor.submit(new Callable<List<BulkLinkResult>>() {
+          public List<BulkLinkResult> call() {
+            return linkRemainingIssues(remaining, sharedProject, activeWorkers, projectSettings);
+          }
+        }));
+      }
+      for (Future<List<BulkLinkResult>> worker : workers) {
+        results.addAll(worker.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while linking issues to Polarion", e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Impossible to link issues to Polarion: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return results;
+  }
+
+  /**
+   * Links issues until none remains. A worker which can not connect leaves the issues to the other workers, the last one
+   * reports the remaining issues as failed so that the issues already linked by the others are still returned.
+   */
+  private List<BulkLinkResult> linkRemainingIssues(Queue<Issue> remaining, SharedProject sharedProject, AtomicInteger activeWorkers,
+      Settings projectSettings) {
+    List<BulkLinkResult> results = Lists.newArrayList();
+    PolarionSession soapSession;
+    try {
+      soapSession = polarionIssueCreator.openSession(projectSettings);
+    } catch (RuntimeException e) {
+      LOG.warn("Impossible to open a Polarion session", e);
+      if (activeWorkers.decrementAndGet() == 0) {
+        Issue issue = remaining.poll();
+        while (issue != null) {
+          results.add(BulkLinkResult.failed(issue.key(), e.getMessage()));
+          issue = remaining.poll();
+        }
+      }
+      return results;
+    }
+
+    boolean healthy = true;
+    try {
+      Issue issue = remaining.poll();
+      while (issue != null) {
+        try {
+          Project polarionProject = sharedProject.get(polarionIssueCreator, soapSession, projectSettings);
+          String defectId = polarionIssueCreator.createWorkItem(issue, soapSession, polarionProject, projectSettings);
+          outbox.recordCompleted(issue.key(), defectId);
+          results.add(BulkLinkResult.created(issue.key(), defectId));
+        } catch (RemoteException e) {
+          LOG.warn("Impossible to link issue " + issue.key() + " to Polarion", e);
+          results.add(BulkLinkResult.failed(issue.key(), e.getMessage()));
+        }
+        issue = remaining.poll();
+      }
+    } catch (RuntimeException e) {
+      healthy = false;
+      throw e;
+    } finally {
+      activeWorkers.decrementAndGet();
+      polarionIssueCreator.closeSession(soapSession, healthy);
+    }
+    return results;
+  }
+
+  private int getParallelism() {
+    int parallelism = settings.getInt(PolarionConstants.BULK_LINK_PARALLELISM_PROPERTY);
+    return parallelism > 0 ? parallelism : PolarionConstants.DEFAULT_BULK_LINK_PARALLELISM;
+  }
+
+  /**
+   * Polarion project looked up by the first worker and reused by the others.
+   */
+  private static final class SharedProject {
+    private Project project;
+
+    synchronized Project get(PolarionIssueCreator polarionIssueCreator, PolarionSession soapSession, Settings projectSettings)
+        throws RemoteException {
+      if (project == null) {
+        project = polarionIssueCreator.lookupPolarionProject(soapSession.getProjectService(), projectSettings);
+      }
+      return project;
+    }
+  }
+}
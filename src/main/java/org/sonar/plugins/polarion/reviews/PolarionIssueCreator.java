@@ -23,6 +23,7 @@ import javax.xml.rpc.ServiceException;
 
 import org.sonar.api.issue.IssueComment;
 
+import com.google.common.collect.Maps;
 import com.polarion.alm.ws.client.types.Text;
 import com.polarion.alm.ws.client.types.tracker.EnumOptionId;
 import com.polarion.alm.ws.client.types.projects.Project;
@@ -35,29 +36,107 @@ import org.slf4j.LoggerFactory;
 import org.sonar.api.*;
 import org.sonar.api.config.Settings;
 import org.sonar.api.issue.Issue;
+import org.sonar.api.rule.RuleKey;
 import org.sonar.api.rules.Rule;
 import org.sonar.api.rules.RuleFinder;
 import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionProjectCache;
 import org.sonar.plugins.polarion.soap.PolarionSession;
+import org.sonar.plugins.polarion.soap.PolarionSessionPool;
+import org.sonar.plugins.polarion.soap.WorkItemPager;
 
 import java.net.MalformedURLException;
 import java.rmi.RemoteException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 /**
  * SOAP client class that is used for creating issues on a POLARION server
  */
 public class PolarionIssueCreator implements ServerExtension {
 
   private static final Logger LOG = LoggerFactory.getLogger(PolarionIssueCreator.class);
+  private static final String NO_RULE_NAME = "";
+  private static final String DEFECT_TYPE = "defect";
+  private static final String[] ID_FIELD = {"id"};
+  private static final String COMMENT_DATE_FORMAT = "yyyy-MM-dd HH:mm";
   private final RuleFinder ruleFinder;
+  private final PolarionSessionPool sessionPool;
+  private final PolarionProjectCache projectCache;
+  private final Map<RuleKey, String> ruleNames = Maps.newConcurrentMap();
 
   public PolarionIssueCreator(RuleFinder ruleFinder) {
+    this(ruleFinder, null, null);
+  }
+
+  public PolarionIssueCreator(RuleFinder ruleFinder, PolarionSessionPool sessionPool, PolarionProjectCache projectCache) {
     this.ruleFinder = ruleFinder;
+    this.sessionPool = sessionPool;
+    this.projectCache = projectCache;
+  }
+
+  /**
+   * Progress of a link which may be retried, so that a retry resumes from the work item created by a previous attempt
+   * instead of creating another one.
+   */
+  public interface LinkProgress {
+    /**
+     * @return the URI of the work item created by a previous attempt, or null if none was created
+     */
+    String getWorkItemUri();
+
+    /**
+     * Called once the work item is created, before any comment is added to it.
+     */
+    void workItemCreated(String workItemUri);
+
+    /**
+     * @return the number of SonarQube comments already added to the work item by previous attempts
+     */
+    int getAddedComments();
+
+    void commentsAdded(int addedComments);
   }
 
   public String createIssue(Issue sonarIssue, Settings settings) throws RemoteException {
-    PolarionSession soapSession = createSoapSession(settings);
-    return doCreateIssue(sonarIssue, soapSession, settings);
+    return createIssue(sonarIssue, settings, null);
+  }
+
+  /**
+   * @param progress progress of previous attempts, updated as the work item is created, or null
+   */
+  public String createIssue(Issue sonarIssue, Settings settings, LinkProgress progress) throws RemoteException {
+    if (sessionPool == null) {
+      PolarionSession soapSession = createSoapSession(settings);
+      return doCreateIssue(sonarIssue, soapSession, settings, progress);
+    }
+
+    PolarionSession soapSession = openSession(settings);
+    boolean succeeded = false;
+    try {
+      String defectId = createWorkItem(sonarIssue, soapSession, settings, progress);
+      succeeded = true;
+      return defectId;
+    } finally {
+      closeSession(soapSession, succeeded);
+    }
+  }
+
+  protected PolarionSession borrowSoapSession(Settings settings) {
+    String polarionUrl = settings.getString(PolarionConstants.SERVER_URL_PROPERTY);
+    String userName = settings.getString(PolarionConstants.POLARION_USERNAME_PROPERTY);
+    String password = settings.getString(PolarionConstants.POLARION_PASSWORD_PROPERTY);
+    try {
+      return sessionPool.borrowSession(polarionUrl, userName, password);
+    } catch (MalformedURLException e) {
+      LOG.error("The Polarion server URL is not a valid one: " + polarionUrl, e);
+      throw new IllegalStateException("The Polarion server URL is not a valid one: " + polarionUrl, e);
+    } catch (RemoteException e) {
+      throw new IllegalStateException("Impossible to connect to the Polarion server (" + polarionUrl + "). Please check provided login credentails", e);
+    } catch (ServiceException e) {
+      throw new IllegalStateException("Impossible to connect to the Polarion server (" + polarionUrl + "). Please check provided login credentails", e);
+    }
   }
 
   protected PolarionSession createSoapSession(Settings settings) {
@@ -74,7 +153,11 @@ public class PolarionIssueCreator implements ServerExtension {
     return soapSession;
   }
 
-  protected String doCreateIssue(Issue sonarIssue, PolarionSession soapSession, Settings settings) throws RemoteException{
+  protected String doCreateIssue(Issue sonarIssue, PolarionSession soapSession, Settings settings) throws RemoteException {
+    return doCreateIssue(sonarIssue, soapSession, settings, null);
+  }
+
+  private String doCreateIssue(Issue sonarIssue, PolarionSession soapSession, Settings settings, LinkProgress progress) throws RemoteException {
       // Connect to Polarion ALM
     String userName = settings.getString(PolarionConstants.POLARION_USERNAME_PROPERTY);
     String password = settings.getString(PolarionConstants.POLARION_PASSWORD_PROPERTY);
@@ -88,64 +171,229 @@ public class PolarionIssueCreator implements ServerExtension {
     }
     LOG.info("Connected to Polarion server");
 
-    // Create the issue
-    ProjectWebService projectService = soapSession.getProjectService();
-    WorkItem issueToBeCreated = initPolarionIssue(projectService, sonarIssue, settings);
+    String defectId = createWorkItem(sonarIssue, soapSession, settings, progress);
+
+    soapSession.disconnect();
+    return defectId;
+  }
+
+  protected String createWorkItem(Issue sonarIssue, PolarionSession soapSession, Settings settings) throws RemoteException {
+    return createWorkItem(sonarIssue, soapSession, settings, null);
+  }
+
+  private String createWorkItem(Issue sonarIssue, PolarionSession soapSession, Settings settings, LinkProgress progress) throws RemoteException {
+    Project polarionProject = null;
+    if (progress == null || progress.getWorkItemUri() == null) {
+      polarionProject = lookupPolarionProject(soapSession.getProjectService(), settings);
+    }
+    return createWorkItem(sonarIssue, soapSession, polarionProject, settings, progress);
+  }
+
+  /**
+   * Creates the work item in an already looked up Polarion project, so that batches share a single project lookup.
+   */
+  protected String createWorkItem(Issue sonarIssue, PolarionSession soapSession, Project polarionProject, Settings settings) throws RemoteException {
+    return createWorkItem(sonarIssue, soapSession, polarionProject, settings, null);
+  }
+
+  private String createWorkItem(Issue sonarIssue, PolarionSession soapSession, Project polarionProject, Settings settings,
+      LinkProgress progress) throws RemoteException {
     TrackerWebService trackerService = soapSession.getTrackerService();
-    String wiUri = trackerService.createWorkItem(issueToBeCreated);
+    String wiUri = progress == null ? null : progress.getWorkItemUri();
+    if (wiUri == null) {
+      wiUri = trackerService.createWorkItem(initPolarionIssue(polarionProject, sonarIssue, settings));
+      if (progress != null) {
+        progress.workItemCreated(wiUri);
+      }
+    } else {
+      LOG.info("Resuming the link to Polarion work item {}", wiUri);
+    }
     //add sonar comments to polarion workitem
-    createWorkItemComment(sonarIssue, wiUri, trackerService);
+    int addedComments = progress == null ? 0 : progress.getAddedComments();
+    if (PolarionConstants.COMMENTS_MODE_COMBINED.equals(settings.getString(PolarionConstants.LINK_COMMENTS_MODE_PROPERTY))) {
+      createCombinedWorkItemComment(sonarIssue, wiUri, trackerService, addedComments, progress);
+    } else {
+      createWorkItemComment(sonarIssue, wiUri, trackerService, addedComments, progress);
+    }
 
-    WorkItem createdDefect = trackerService.getWorkItemByUri(wiUri);
-    String defectId = createdDefect.getId();
+    String defectId = getWorkItemId(wiUri, trackerService);
     LOG.debug("Successfully created issue {}", defectId);
+    return defectId;
+  }
 
-    soapSession.disconnect();
+  /**
+   * The id is the last part of the work item URI, so the work item is only fetched again if the URI has another form.
+   */
+  private String getWorkItemId(String wiUri, TrackerWebService trackerService) throws RemoteException {
+    String defectId = WorkItemPager.extractId(wiUri);
+    if (defectId == null) {
+      defectId = trackerService.getWorkItemByUriWithFields(wiUri, ID_FIELD).getId();
+    }
     return defectId;
   }
 
   protected WorkItem initPolarionIssue(ProjectWebService projectService, Issue sonarIssue,
       Settings settings) throws RemoteException {
-    String polarionProjectId = settings.getString(PolarionConstants.POLARION_CREATE_PROJECT_ID);
-    WorkItem issue = new WorkItem();
+    return initPolarionIssue(lookupPolarionProject(projectService, settings), sonarIssue, settings);
+  }
 
-    Project polarionProject = projectService.getProject(polarionProjectId);
+  protected Project lookupPolarionProject(ProjectWebService projectService, Settings settings) throws RemoteException {
+    String polarionProjectId = settings.getString(PolarionConstants.POLARION_CREATE_PROJECT_ID);
+    Project polarionProject;
+    if (projectCache != null) {
+      polarionProject = projectCache.getProject(projectService, settings.getString(PolarionConstants.SERVER_URL_PROPERTY), polarionProjectId);
+    } else {
+      polarionProject = projectService.getProject(polarionProjectId);
+    }
     if(polarionProject.isUnresolvable()) {
       throw new RemoteException("project id: " + polarionProjectId + "could not be located");
     }
+    return polarionProject;
+  }
+
+  protected WorkItem initPolarionIssue(Project polarionProject, Issue sonarIssue, Settings settings) {
+    WorkItem issue = new WorkItem();
     issue.setProject(polarionProject);
-    issue.setType(new EnumOptionId("defect"));
+    issue.setType(new EnumOptionId(DEFECT_TYPE));
     //issue.setPriority(sonarSeverityToJiraPriorityId(RulePriority.valueOfString(sonarIssue.severity()), settings)); //TODO
     issue.setTitle(generateIssueSummary(sonarIssue));
     issue.setDescription(generateIssueDescription(sonarIssue, settings));
     return issue;
   }
 
-  private void createWorkItemComment(Issue sonarIssue, String wiUri,  TrackerWebService trackerService) throws RemoteException{
+  /**
+   * Adds the comments one by one, starting after the ones added by previous attempts.
+   */
+  private void createWorkItemComment(Issue sonarIssue, String wiUri, TrackerWebService trackerService, int addedComments,
+      LinkProgress progress) throws RemoteException {
     List<IssueComment> issueComments = sonarIssue.comments();
-    for(IssueComment issueComment : issueComments) {
+    for (int index = addedComments; index < issueComments.size(); index++) {
       Text content = new Text();
       content.setType("text/plain");
-      content.setContent(issueComment.markdownText());
+      content.setContent(issueComments.get(index).markdownText());
       content.setContentLossy(false);
       trackerService.createCommentNew(wiUri, "SonarQube Review Comment", content, null);
+      if (progress != null) {
+        progress.commentsAdded(index + 1);
+      }
+    }
+  }
+
+  /**
+   * Adds the whole review thread as a single comment, one round trip whatever the number of comments.
+   */
+  private void createCombinedWorkItemComment(Issue sonarIssue, String wiUri, TrackerWebService trackerService, int addedComments,
+      LinkProgress progress) throws RemoteException {
+    List<IssueComment> issueComments = sonarIssue.comments();
+    if (addedComments >= issueComments.size()) {
+      return;
+    }
+    if (issueComments.size() == 1) {
+      createWorkItemComment(sonarIssue, wiUri, trackerService, addedComments, progress);
+      return;
+    }
+    StringBuilder thread = new StringBuilder();
+    for (IssueComment issueComment : issueComments) {
+      if (thread.length() > 0) {
+        thread.append("\n\n");
+      }
+      thread.append(commentHeader(issueComment));
+      thread.append(issueComment.markdownText());
+    }
+    Text content = new Text();
+    content.setType("text/plain");
+    content.setContent(thread.toString());
+    content.setContentLossy(false);
+    trackerService.createCommentNew(wiUri, "SonarQube Review Comments", content, null);
+    if (progress != null) {
+      progress.commentsAdded(issueComments.size());
+    }
+  }
+
+  /**
+   * "login (date):" followed by a line break, leaving out what the comment does not have.
+   */
+  private static String commentHeader(IssueComment issueComment) {
+    StringBuilder header = new StringBuilder();
+    if (issueComment.userLogin() != null) {
+      header.append(issueComment.userLogin());
+    }
+    Date createdAt = issueComment.createdAt();
+    if (createdAt != null) {
+      if (header.length() > 0) {
+        header.append(' ');
+      }
+      header.append('(').append(new SimpleDateFormat(COMMENT_DATE_FORMAT).format(createdAt)).append(')');
     }
+    return header.length() > 0 ? header.append(":\n").toString() : "";
   }
 
   protected String generateIssueSummary(Issue sonarIssue) {
-    Rule rule = ruleFinder.findByKey(sonarIssue.ruleKey());
+    String ruleName = getRuleName(sonarIssue.ruleKey());
 
     StringBuilder summary = new StringBuilder("Sonar Issue #");
     summary.append(sonarIssue.key());
     LOG.debug("sonar issue key: " + sonarIssue.key());
-    if (rule.getName() != null) {
+    if (ruleName != null) {
       summary.append(" - ");
-      summary.append(rule.getName().toString());
-      LOG.debug("rule Name: " + rule.getName());
+      summary.append(ruleName);
+      LOG.debug("rule Name: " + ruleName);
     }
     return summary.toString();
   }
 
+  /**
+   * Rule names only change when the server restarts with other plugins, so they are looked up once.
+   */
+  private String getRuleName(RuleKey ruleKey) {
+    String ruleName = ruleNames.get(ruleKey);
+    if (ruleName == null) {
+      Rule rule = ruleFinder.findByKey(ruleKey);
+      ruleName = rule.getName() != null ? rule.getName() : NO_RULE_NAME;
+      ruleNames.put(ruleKey, ruleName);
+    }
+    return NO_RULE_NAME.equals(ruleName) ? null : ruleName;
+  }
+
+  /**
+   * Leases a logged-in session, from the pool if there is one.
+   */
+  protected PolarionSession openSession(Settings settings) {
+    if (sessionPool != null) {
+      return borrowSoapSession(settings);
+    }
+    PolarionSession soapSession = createSoapSession(settings);
+    String polarionUrl = settings.getString(PolarionConstants.SERVER_URL_PROPERTY);
+    try {
+      soapSession.connect(settings.getString(PolarionConstants.POLARION_USERNAME_PROPERTY),
+          settings.getString(PolarionConstants.POLARION_PASSWORD_PROPERTY));
+    } catch (RemoteException e) {
+      throw new IllegalStateException("Impossible to connect to the Polarion server (" + polarionUrl + "). Please check provided login credentails", e);
+    } catch (ServiceException e) {
+      throw new IllegalStateException("Impossible to connect to the Polarion server (" + polarionUrl + "). Please check provided login credentails", e);
+    }
+    return soapSession;
+  }
+
+  /**
+   * Hands back a session obtained from {@link #openSession}. Sessions that failed are not reused.
+   */
+  protected void closeSession(PolarionSession soapSession, boolean healthy) {
+    if (sessionPool != null) {
+      if (healthy) {
+        sessionPool.releaseSession(soapSession);
+      } else {
+        sessionPool.invalidateSession(soapSession);
+      }
+      return;
+    }
+    try {
+      soapSession.disconnect();
+    } catch (RemoteException e) {
+      LOG.debug("Unable to end Polarion session", e);
+    }
+  }
+
   protected Text generateIssueDescription(Issue sonarIssue, Settings settings) {
     String sonarIssueUrl = settings.getString(CoreProperties.SERVER_BASE_URL) +
         "/issue/show/" + sonarIssue.key();
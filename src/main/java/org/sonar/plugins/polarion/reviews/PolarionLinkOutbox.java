@@ -0,0 +1,412 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.CoreProperties;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.IssueComment;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.api.issue.internal.DefaultIssueComment;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of "Link to Polarion" requests. Every request is stored as a file in the work directory before it is
+ * acknowledged, then a pool of background workers creates the Polarion work items, retrying with exponential backoff.
+ * The outcome of a request stays in the outbox until it has been applied to the SonarQube issue.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.OUTBOX_WORKERS_PROPERTY,
+    name = "Link Workers",
+    description = "Number of background threads creating Polarion work items for asynchronous links.",
+    defaultValue = "" + PolarionConstants.DEFAULT_OUTBOX_WORKERS,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.OUTBOX_MAX_ATTEMPTS_PROPERTY,
+    name = "Link Attempts",
+    description = "Number of attempts to create a Polarion work item for an asynchronous link before giving up.",
+    defaultValue = "" + PolarionConstants.DEFAULT_OUTBOX_MAX_ATTEMPTS,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionLinkOutbox implements ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionLinkOutbox.class);
+
+  private static final String OUTBOX_DIR = "outbox";
+  private static final String ENTRY_SUFFIX = ".properties";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final long INITIAL_BACKOFF_MS = 5 * 1000L;
+  private static final long MAX_BACKOFF_MS = 10 * 60 * 1000L;
+
+  private static final String STATE = "state";
+  private static final String ATTEMPTS = "attempts";
+  private static final String DEFECT_ID = "defectId";
+  private static final String WORK_ITEM_URI = "workItemUri";
+  private static final String COMMENTS_ADDED = "commentsAdded";
+  private static final String ERROR = "error";
+  private static final String ISSUE_KEY = "issue.key";
+  private static final String ISSUE_MESSAGE = "issue.message";
+  private static final String ISSUE_RULE_REPOSITORY = "issue.rule.repository";
+  private static final String ISSUE_RULE = "issue.rule";
+  private static final String ISSUE_COMMENT_PREFIX = "issue.comment.";
+  private static final String COMMENT_LOGIN_SUFFIX = ".login";
+  private static final String COMMENT_DATE_SUFFIX = ".date";
+  private static final String SETTING_PREFIX = "setting.";
+  private static final String[] PERSISTED_SETTINGS = {
+    PolarionConstants.SERVER_URL_PROPERTY,
+    PolarionConstants.POLARION_USERNAME_PROPERTY,
+    PolarionConstants.POLARION_CREATE_PROJECT_ID,
+    PolarionConstants.POLARION_FETCH_PROJECT_ID,
+    PolarionConstants.LINK_COMMENTS_MODE_PROPERTY,
+    CoreProperties.SERVER_BASE_URL
+  };
+
+  public enum State {
+    PENDING, DONE, FAILED
+  }
+
+  private final PolarionIssueCreator polarionIssueCreator;
+  private final Settings settings;
+  // passwords are never written to disk, requests reloaded after a restart use the global password
+  private final Map<String, String> passwords = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, String> completedTicketsByIssue = Maps.newConcurrentMap();
+  private ScheduledExecutorService workers;
+  private File outboxDir;
+
+  public PolarionLinkOutbox(PolarionIssueCreator polarionIssueCreator, Settings settings) {
+    this.polarionIssueCreator = polarionIssueCreator;
+    this.settings = settings;
+  }
+
+  public void start() {
+    outboxDir = PolarionWorkDirectory.get(settings, OUTBOX_DIR);
+    int numberOfWorkers = settings.getInt(PolarionConstants.OUTBOX_WORKERS_PROPERTY);
+    workers = Executors.newScheduledThreadPool(numberOfWorkers > 0 ? numberOfWorkers : PolarionConstants.DEFAULT_OUTBOX_WORKERS,
+      new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "polarion-link-outbox");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+    File[] entries = outboxDir.listFiles();
+    if (entries != null) {
+      for (File entry : entries) {
+        if (entry.getName().endsWith(TMP_SUFFIX)) {
+          // left over by an interrupted write, the request itself is still intact
+          deleteQuietly(entry);
+          continue;
+        }
+        String ticket = ticketOf(entry);
+        if (ticket == null) {
+          continue;
+        }
+        java.util.Properties request = load(ticket);
+        if (State.PENDING.name().equals(request.getProperty(STATE))) {
+          LOG.info("Resuming Polarion link request {}", ticket);
+          schedule(ticket, 0);
+        } else if (State.DONE.name().equals(request.getProperty(STATE))) {
+          completedTicketsByIssue.put(request.getProperty(ISSUE_KEY), ticket);
+        }
+      }
+    }
+  }
+
+  public void stop() {
+    if (workers != null) {
+      workers.shutdownNow();
+    }
+  }
+
+  /**
+   * Stores the link request on disk and hands it to the background workers.
+   *
+   * @return the ticket identifying the request
+   */
+  public String enqueue(Issue sonarIssue, Settings projectSettings) {
+    String ticket = UUID.randomUUID().toString();
+    java.util.Properties entry = new java.util.Properties();
+    entry.setProperty(STATE, State.PENDING.name());
+    entry.setProperty(ATTEMPTS, "0");
+    entry.setProperty(ISSUE_KEY, sonarIssue.key());
+    setIfNotNull(entry, ISSUE_MESSAGE, sonarIssue.message());
+    if (sonarIssue.ruleKey() != null) {
+      entry.setProperty(ISSUE_RULE_REPOSITORY, sonarIssue.ruleKey().repository());
+      entry.setProperty(ISSUE_RULE, sonarIssue.ruleKey().rule());
+    }
+    int index = 0;
+    for (IssueComment comment : sonarIssue.comments()) {
+      String prefix = ISSUE_COMMENT_PREFIX + index++;
+      setIfNotNull(entry, prefix, comment.markdownText());
+      setIfNotNull(entry, prefix + COMMENT_LOGIN_SUFFIX, comment.userLogin());
+      if (comment.createdAt() != null) {
+        entry.setProperty(prefix + COMMENT_DATE_SUFFIX, Long.toString(comment.createdAt().getTime()));
+      }
+    }
+    for (String key : PERSISTED_SETTINGS) {
+      setIfNotNull(entry, SETTING_PREFIX + key, projectSettings.getString(key));
+    }
+    String password = projectSettings.getString(PolarionConstants.POLARION_PASSWORD_PROPERTY);
+    if (password != null) {
+      passwords.put(ticket, password);
+    }
+
+    store(ticket, entry);
+    schedule(ticket, 0);
+    LOG.debug("Queued Polarion link request {} for issue {}", ticket, sonarIssue.key());
+    return ticket;
+  }
+
+  /**
+   * Records a work item that has already been created for the issue, e.g. by a bulk link, so that it is applied
+   * to the issue by the next link action instead of creating another one.
+   *
+   * @return the ticket identifying the request
+   */
+  public String recordCompleted(String issueKey, String defectId) {
+    String ticket = UUID.randomUUID().toString();
+    java.util.Properties entry = new java.util.Properties();
+    entry.setProperty(STATE, State.DONE.name());
+    entry.setProperty(ATTEMPTS, "0");
+    entry.setProperty(ISSUE_KEY, issueKey);
+    entry.setProperty(DEFECT_ID, defectId);
+    store(ticket, entry);
+    completedTicketsByIssue.put(issueKey, ticket);
+    return ticket;
+  }
+
+  /**
+   * Returns the ticket of a created but not yet applied work item for the issue, if any.
+   */
+  public String getCompletedTicket(String issueKey) {
+    return completedTicketsByIssue.get(issueKey);
+  }
+
+  public State getState(String ticket) {
+    File file = entryFile(ticket);
+    if (!file.exists()) {
+      return null;
+    }
+    return State.valueOf(load(ticket).getProperty(STATE));
+  }
+
+  public String getDefectId(String ticket) {
+    return load(ticket).getProperty(DEFECT_ID);
+  }
+
+  public String getError(String ticket) {
+    return load(ticket).getProperty(ERROR);
+  }
+
+  /**
+   * Removes a finished request once its outcome has been applied to the SonarQube issue.
+   */
+  public void acknowledge(String ticket) {
+    File file = entryFile(ticket);
+    if (!file.exists()) {
+      return;
+    }
+    String issueKey = load(ticket).getProperty(ISSUE_KEY);
+    if (issueKey != null) {
+      completedTicketsByIssue.remove(issueKey, ticket);
+    }
+    if (!file.delete()) {
+      LOG.warn("Unable to delete Polarion link request " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Once the work item is created, its URI is stored with the request before any comment is sent, so that a retry
+   * resumes from it instead of creating a duplicate work item.
+   */
+  @VisibleForTesting
+  void process(final String ticket) {
+    final java.util.Properties entry = load(ticket);
+    if (!State.PENDING.name().equals(entry.getProperty(STATE))) {
+      return;
+    }
+    int attempts = Integer.parseInt(entry.getProperty(ATTEMPTS)) + 1;
+    entry.setProperty(ATTEMPTS, Integer.toString(attempts));
+    try {
+      String defectId = polarionIssueCreator.createIssue(toIssue(entry), toSettings(ticket, entry),
+          new PolarionIssueCreator.LinkProgress() {
+            public String getWorkItemUri() {
+              return entry.getProperty(WORK_ITEM_URI);
+            }
+
+            public void workItemCreated(String workItemUri) {
+              entry.setProperty(WORK_ITEM_URI, workItemUri);
+              store(ticket, entry);
+            }
+
+            public int getAddedComments() {
+              String commentsAdded = entry.getProperty(COMMENTS_ADDED);
+              return commentsAdded == null ? 0 : Integer.parseInt(commentsAdded);
+            }
+
+            public void commentsAdded(int addedComments) {
+              entry.setProperty(COMMENTS_ADDED, Integer.toString(addedComments));
+              store(ticket, entry);
+            }
+          });
+      entry.setProperty(STATE, State.DONE.name());
+      entry.setProperty(DEFECT_ID, defectId);
+      entry.remove(ERROR);
+      passwords.remove(ticket);
+      LOG.info("Polarion link request {} created issue {}", ticket, defectId);
+    } catch (Exception e) {
+      entry.setProperty(ERROR, String.valueOf(e.getMessage()));
+      if (attempts >= getMaxAttempts()) {
+        entry.setProperty(STATE, State.FAILED.name());
+        passwords.remove(ticket);
+        LOG.error("Polarion link request " + ticket + " failed after " + attempts + " attempts", e);
+      } else {
+        long backoff = backoff(attempts);
+        LOG.warn("Polarion link request " + ticket + " failed, retrying in " + backoff + " ms: " + e.getMessage());
+        schedule(ticket, backoff);
+      }
+    }
+    store(ticket, entry);
+  }
+
+  /**
+   * Exponential backoff with random jitter, capped to {@link #MAX_BACKOFF_MS}.
+   */
+  static long backoff(int attempts) {
+    long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempts - 1, 16));
+    return backoff / 2 + (long) (Math.random() * backoff / 2);
+  }
+
+  protected void schedule(final String ticket, long delayMs) {
+    workers.schedule(new Runnable() {
+      public void run() {
+        process(ticket);
+      }
+    }, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private Issue toIssue(java.util.Properties entry) {
+    DefaultIssue issue = new DefaultIssue()
+        .setKey(entry.getProperty(ISSUE_KEY))
+        .setMessage(entry.getProperty(ISSUE_MESSAGE));
+    if (entry.getProperty(ISSUE_RULE) != null) {
+      issue.setRuleKey(RuleKey.of(entry.getProperty(ISSUE_RULE_REPOSITORY), entry.getProperty(ISSUE_RULE)));
+    }
+    for (int index = 0; entry.getProperty(ISSUE_COMMENT_PREFIX + index) != null; index++) {
+      String prefix = ISSUE_COMMENT_PREFIX + index;
+      DefaultIssueComment comment = new DefaultIssueComment();
+      comment.setMarkdownText(entry.getProperty(prefix));
+      comment.setUserLogin(entry.getProperty(prefix + COMMENT_LOGIN_SUFFIX));
+      String createdAt = entry.getProperty(prefix + COMMENT_DATE_SUFFIX);
+      if (createdAt != null) {
+        comment.setCreatedAt(new Date(Long.parseLong(createdAt)));
+      }
+      issue.addComment(comment);
+    }
+    return issue;
+  }
+
+  private Settings toSettings(String ticket, java.util.Properties entry) {
+    Settings requestSettings = new Settings();
+    for (String key : PERSISTED_SETTINGS) {
+      String value = entry.getProperty(SETTING_PREFIX + key);
+      if (value != null) {
+        requestSettings.setProperty(key, value);
+      }
+    }
+    String password = passwords.get(ticket);
+    requestSettings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY,
+        password != null ? password : settings.getString(PolarionConstants.POLARION_PASSWORD_PROPERTY));
+    return requestSettings;
+  }
+
+  private int getMaxAttempts() {
+    int maxAttempts = settings.getInt(PolarionConstants.OUTBOX_MAX_ATTEMPTS_PROPERTY);
+    return maxAttempts > 0 ? maxAttempts : PolarionConstants.DEFAULT_OUTBOX_MAX_ATTEMPTS;
+  }
+
+  private File entryFile(String ticket) {
+    return new File(outboxDir, ticket + ENTRY_SUFFIX);
+  }
+
+  private static void deleteQuietly(File file) {
+    if (!file.delete()) {
+      LOG.warn("Unable to delete " + file.getAbsolutePath());
+    }
+  }
+
+  private static String ticketOf(File entry) {
+    String name = entry.getName();
+    return name.endsWith(ENTRY_SUFFIX) ? name.substring(0, name.length() - ENTRY_SUFFIX.length()) : null;
+  }
+
+  private synchronized java.util.Properties load(String ticket) {
+    java.util.Properties entry = PolarionWorkDirectory.loadProperties(entryFile(ticket));
+    if (entry == null) {
+      throw new IllegalStateException("Unable to read Polarion link request " + ticket);
+    }
+    return entry;
+  }
+
+  private synchronized void store(String ticket, java.util.Properties entry) {
+    try {
+      PolarionWorkDirectory.storeProperties(entryFile(ticket), entry, "Polarion link request");
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to write Polarion link request " + ticket, e);
+    }
+  }
+
+  private static void setIfNotNull(java.util.Properties entry, String key, String value) {
+    if (value != null) {
+      entry.setProperty(key, value);
+    }
+  }
+}
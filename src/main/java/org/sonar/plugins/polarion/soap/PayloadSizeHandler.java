@@ -0,0 +1,124 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.apache.axis.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.namespace.QName;
+import javax.xml.rpc.handler.GenericHandler;
+import javax.xml.rpc.handler.MessageContext;
+
+/**
+ * Measures the size of the SOAP messages exchanged by the calling thread. It has to be the last handler of the chain,
+ * so that requests are measured once complete.
+ */
+public class PayloadSizeHandler extends GenericHandler {
+  private static final Logger LOG = LoggerFactory.getLogger(PayloadSizeHandler.class);
+  private static final ThreadLocal<long[]> SIZES = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[2];
+    }
+  };
+
+  static void reset() {
+    long[] sizes = SIZES.get();
+    sizes[0] = -1;
+    sizes[1] = -1;
+  }
+
+  static long requestBytes() {
+    return SIZES.get()[0];
+  }
+
+  static long responseBytes() {
+    return SIZES.get()[1];
+  }
+
+  @Override
+  public QName[] getHeaders() {
+    return new QName[0];
+  }
+
+  @Override
+  public boolean handleRequest(MessageContext context) {
+    SIZES.get()[0] = requestSize(((org.apache.axis.MessageContext) context).getRequestMessage());
+    return true;
+  }
+
+  @Override
+  public boolean handleResponse(MessageContext context) {
+    SIZES.get()[1] = responseSize(((org.apache.axis.MessageContext) context).getResponseMessage());
+    return true;
+  }
+
+  /**
+   * Axis cannot turn a request envelope into bytes from a handler, so the envelope is serialized once more to measure it.
+   * Requests are small compared to responses.
+   */
+  private static long requestSize(Message request) {
+    if (request == null) {
+      return -1;
+    }
+    try {
+      return utf8Length(request.getSOAPEnvelope().getAsString());
+    } catch (Exception e) {
+      LOG.debug("Unable to measure the size of a SOAP request", e);
+      return -1;
+    }
+  }
+
+  /**
+   * The response has already been parsed at this point, so its size is taken from the HTTP headers. It is the size on
+   * the wire, so compressed if the response is, and it is unknown for chunked responses.
+   */
+  private static long responseSize(Message response) {
+    String[] contentLength = response == null ? null : response.getMimeHeaders().getHeader("Content-Length");
+    if (contentLength == null || contentLength.length == 0) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(contentLength[0].trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static long utf8Length(String text) {
+    long length = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+}
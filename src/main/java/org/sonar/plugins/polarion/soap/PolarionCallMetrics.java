@@ -0,0 +1,199 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import com.google.common.collect.Lists;
+import org.apache.axis.client.Stub;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.ServerExtension;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.xml.namespace.QName;
+import javax.xml.rpc.Service;
+import javax.xml.rpc.handler.HandlerInfo;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records the calls of every Polarion SOAP operation made through instrumented services, see {@link #instrument(Class, Object)}.
+ * On the server, the statistics of each operation are exported as an MBean by {@link PolarionCallMetricsExporter}.
+ */
+public class PolarionCallMetrics implements BatchExtension, ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionCallMetrics.class);
+  static final String JMX_DOMAIN = "org.sonar.plugins.polarion";
+
+  private final ConcurrentMap<String, SoapOperationStats> operations = new ConcurrentHashMap<String, SoapOperationStats>();
+  private MBeanServer mbeanServer;
+
+  /**
+   * Wraps a Polarion web service so that each call is timed and recorded under the name of the called method.
+   */
+  public <T> T instrument(Class<T> serviceInterface, final T service) {
+    addPayloadSizeHandler(service);
+    Object proxy = Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] {serviceInterface}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+          return method.invoke(service, args);
+        }
+        PayloadSizeHandler.reset();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+          Object result = method.invoke(service, args);
+          failed = false;
+          return result;
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        } finally {
+          getStats(method.getName()).record(System.nanoTime() - start, failed, PayloadSizeHandler.requestBytes(),
+            PayloadSizeHandler.responseBytes());
+        }
+      }
+    });
+    return serviceInterface.cast(proxy);
+  }
+
+  /**
+   * Payload sizes are only known for Axis stubs, whose services share one handler registry per web service.
+   */
+  private static void addPayloadSizeHandler(Object service) {
+    if (!(service instanceof Stub)) {
+      return;
+    }
+    Service axisService = ((Stub) service)._getService();
+    if (axisService == null) {
+      return;
+    }
+    try {
+      for (Iterator<?> ports = axisService.getPorts(); ports.hasNext();) {
+        @SuppressWarnings("unchecked")
+        List<HandlerInfo> chain = axisService.getHandlerRegistry().getHandlerChain((QName) ports.next());
+        if (!containsPayloadSizeHandler(chain)) {
+          chain.add(new HandlerInfo(PayloadSizeHandler.class, null, null));
+        }
+      }
+    } catch (Exception e) {
+      LOG.debug("Payload sizes of Polarion SOAP calls will not be measured", e);
+    }
+  }
+
+  private static boolean containsPayloadSizeHandler(List<HandlerInfo> chain) {
+    for (HandlerInfo handler : chain) {
+      if (handler.getHandlerClass() == PayloadSizeHandler.class) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public SoapOperationStats getStats(String operation) {
+    SoapOperationStats stats = operations.get(operation);
+    if (stats == null) {
+      SoapOperationStats created = new SoapOperationStats(operation);
+      stats = operations.putIfAbsent(operation, created);
+      if (stats == null) {
+        stats = created;
+        export(created);
+      }
+    }
+    return stats;
+  }
+
+  /**
+   * @return the statistics of all called operations, the most time consuming first
+   */
+  public List<SoapOperationStats> getAllStats() {
+    List<SoapOperationStats> all = Lists.newArrayList(operations.values());
+    Collections.sort(all, new Comparator<SoapOperationStats>() {
+      public int compare(SoapOperationStats left, SoapOperationStats right) {
+        long difference = right.getTotalTimeMillis() - left.getTotalTimeMillis();
+        return difference < 0 ? -1 : (difference > 0 ? 1 : left.getOperation().compareTo(right.getOperation()));
+      }
+    });
+    return all;
+  }
+
+  public String summary() {
+    StringBuilder summary = new StringBuilder("Polarion SOAP calls:");
+    for (SoapOperationStats stats : getAllStats()) {
+      summary.append("\n  ").append(stats);
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Registers an MBean per operation, including the operations called later on.
+   */
+  public synchronized void exportTo(MBeanServer server) {
+    this.mbeanServer = server;
+    for (SoapOperationStats stats : operations.values()) {
+      export(stats);
+    }
+  }
+
+  public synchronized void unexport() {
+    if (mbeanServer == null) {
+      return;
+    }
+    for (SoapOperationStats stats : operations.values()) {
+      try {
+        ObjectName name = objectName(stats.getOperation());
+        if (mbeanServer.isRegistered(name)) {
+          mbeanServer.unregisterMBean(name);
+        }
+      } catch (JMException e) {
+        LOG.debug("Unable to unregister the MBean of Polarion operation " + stats.getOperation(), e);
+      }
+    }
+    mbeanServer = null;
+  }
+
+  private synchronized void export(SoapOperationStats stats) {
+    if (mbeanServer == null) {
+      return;
+    }
+    try {
+      ObjectName name = objectName(stats.getOperation());
+      if (!mbeanServer.isRegistered(name)) {
+        mbeanServer.registerMBean(stats, name);
+      }
+    } catch (JMException e) {
+      LOG.warn("Unable to register the MBean of Polarion operation " + stats.getOperation(), e);
+    }
+  }
+
+  static ObjectName objectName(String operation) throws JMException {
+    return new ObjectName(JMX_DOMAIN + ":type=SoapOperation,name=" + operation);
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.sonar.api.ServerExtension;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exposes the statistics of the Polarion SOAP calls made by the server extensions through JMX.
+ */
+public class PolarionCallMetricsExporter implements ServerExtension {
+  private final PolarionCallMetrics metrics;
+
+  public PolarionCallMetricsExporter(PolarionCallMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  public void start() {
+    metrics.exportTo(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  public void stop() {
+    metrics.unexport();
+  }
+}
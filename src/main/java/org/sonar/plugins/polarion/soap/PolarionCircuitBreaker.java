@@ -0,0 +1,102 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops calling a Polarion server after a number of consecutive failures. Once the open period is over, a single
+ * trial call decides whether calls are let through again or the breaker stays open for another period.
+ */
+public class PolarionCircuitBreaker {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionCircuitBreaker.class);
+
+  enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String serverUrl;
+  private final int failureThreshold;
+  private final long openPeriodMs;
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private long openedAt;
+
+  public PolarionCircuitBreaker(String serverUrl, int failureThreshold, long openPeriodMs) {
+    this.serverUrl = serverUrl;
+    this.failureThreshold = failureThreshold;
+    this.openPeriodMs = openPeriodMs;
+  }
+
+  /**
+   * Lets a call through or fails fast. After the open period, the first caller makes the trial call and the others
+   * keep failing until its outcome is known.
+   */
+  public synchronized void acquire() throws PolarionUnavailableException {
+    if (state == State.CLOSED) {
+      return;
+    }
+    long retryIn = openedAt + openPeriodMs - now();
+    if (state == State.OPEN && retryIn <= 0) {
+      state = State.HALF_OPEN;
+      LOG.info("Trying the Polarion server {} again", serverUrl);
+      return;
+    }
+    throw new PolarionUnavailableException(serverUrl, Math.max(retryIn, 0));
+  }
+
+  /**
+   * The server answered, even if with a fault.
+   */
+  public synchronized void onSuccess() {
+    if (state != State.CLOSED) {
+      LOG.info("Polarion server {} is available again", serverUrl);
+    }
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  /**
+   * The server could not be reached or did not answer in time.
+   */
+  public synchronized void onFailure() {
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+      LOG.warn("Suspending calls to the Polarion server " + serverUrl + " for " + openPeriodMs / 1000 + " s after "
+        + consecutiveFailures + " consecutive failures");
+      state = State.OPEN;
+      openedAt = now();
+    }
+  }
+
+  public synchronized boolean isOpen() {
+    return state != State.CLOSED;
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+}
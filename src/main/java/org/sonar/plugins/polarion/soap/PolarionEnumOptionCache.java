@@ -0,0 +1,192 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.soap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import com.polarion.alm.ws.client.types.tracker.EnumOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the options of Polarion enumerations (severities, resolutions...), keyed by server, project, enumeration
+ * and work item type. Enumerations are rarely reconfigured, so the options are kept in the work directory between
+ * analyses and only fetched again once they are older than the configured time to live.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.ENUM_CACHE_TTL_PROPERTY,
+    name = "Enumeration Cache Time To Live",
+    description = "Number of minutes Polarion enumeration options (severities, resolutions) are reused before they are fetched again. " +
+      "0 fetches them on every analysis.",
+    defaultValue = "" + PolarionConstants.DEFAULT_ENUM_CACHE_TTL,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionEnumOptionCache implements BatchExtension, ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionEnumOptionCache.class);
+
+  private static final String CACHE_DIR = "enums";
+  private static final String KEY = "key";
+  private static final String FETCHED_AT = "fetchedAt";
+  private static final String OPTION_COUNT = "options";
+  private static final String OPTION_ID = "option.id.";
+  private static final String OPTION_NAME = "option.name.";
+
+  private final Settings settings;
+  private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+  public PolarionEnumOptionCache(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Returns the ids and names of the options of an enumeration, in the order configured in Polarion.
+   * If they can not be refreshed, options which are out of date are returned rather than failing.
+   */
+  public Map<String, String> getEnumOptions(TrackerWebService trackerService, String serverUrl, String projectId,
+      String enumKey, String type) throws RemoteException {
+    String key = serverUrl + "|" + projectId + "|" + enumKey + "|" + type;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = load(key);
+    }
+    if (entry != null && !isExpired(entry)) {
+      return entry.options;
+    }
+
+    Map<String, String> options;
+    try {
+      options = fetch(trackerService, projectId, enumKey, type);
+    } catch (RemoteException e) {
+      if (entry == null) {
+        throw e;
+      }
+      LOG.warn("Unable to refresh the options of Polarion enumeration " + enumKey + ", using the ones fetched before", e);
+      return entry.options;
+    }
+
+    if (entry != null && entry.options.equals(options)) {
+      LOG.debug("Options of Polarion enumeration {} did not change", enumKey);
+      options = entry.options;
+    }
+    Entry refreshed = new Entry(options, now());
+    entries.put(key, refreshed);
+    store(key, refreshed);
+    return options;
+  }
+
+  private Map<String, String> fetch(TrackerWebService trackerService, String projectId, String enumKey, String type) throws RemoteException {
+    Map<String, String> options = Maps.newLinkedHashMap();
+    EnumOption[] configuredOptions = trackerService.getEnumOptionsForKeyWithControl(projectId, enumKey, type);
+    if (configuredOptions != null) {
+      for (EnumOption configuredOption : configuredOptions) {
+        options.put(configuredOption.getId(), configuredOption.getName());
+      }
+    }
+    return Collections.unmodifiableMap(options);
+  }
+
+  private boolean isExpired(Entry entry) {
+    int ttl = settings.hasKey(PolarionConstants.ENUM_CACHE_TTL_PROPERTY) ?
+      settings.getInt(PolarionConstants.ENUM_CACHE_TTL_PROPERTY) : PolarionConstants.DEFAULT_ENUM_CACHE_TTL;
+    return now() - entry.fetchedAt >= TimeUnit.SECONDS.toMillis(ttl * 60L);
+  }
+
+  private Entry load(String key) {
+    java.util.Properties stored = PolarionWorkDirectory.loadProperties(cacheFile(key));
+    if (stored == null || !key.equals(stored.getProperty(KEY))) {
+      return null;
+    }
+
+    Map<String, String> options = Maps.newLinkedHashMap();
+    int count = Integer.parseInt(stored.getProperty(OPTION_COUNT, "0"));
+    for (int i = 0; i < count; i++) {
+      options.put(stored.getProperty(OPTION_ID + i), stored.getProperty(OPTION_NAME + i));
+    }
+    Entry entry = new Entry(Collections.unmodifiableMap(options), Long.parseLong(stored.getProperty(FETCHED_AT, "0")));
+    entries.putIfAbsent(key, entry);
+    return entry;
+  }
+
+  private void store(String key, Entry entry) {
+    java.util.Properties stored = new java.util.Properties();
+    stored.setProperty(KEY, key);
+    stored.setProperty(FETCHED_AT, String.valueOf(entry.fetchedAt));
+    stored.setProperty(OPTION_COUNT, String.valueOf(entry.options.size()));
+    int i = 0;
+    for (Map.Entry<String, String> option : entry.options.entrySet()) {
+      stored.setProperty(OPTION_ID + i, option.getKey());
+      if (option.getValue() != null) {
+        stored.setProperty(OPTION_NAME + i, option.getValue());
+      }
+      i++;
+    }
+
+    File file = cacheFile(key);
+    try {
+      PolarionWorkDirectory.storeProperties(file, stored, "Polarion enumeration options");
+    } catch (IOException e) {
+      LOG.warn("Unable to cache Polarion enumeration " + file.getAbsolutePath(), e);
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to cache Polarion enumeration " + file.getAbsolutePath(), e);
+    }
+  }
+
+  private File cacheFile(String key) {
+    return new File(PolarionWorkDirectory.get(settings, CACHE_DIR), key.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+  }
+
+  @VisibleForTesting
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static final class Entry {
+    private final Map<String, String> options;
+    private final long fetchedAt;
+
+    Entry(Map<String, String> options, long fetchedAt) {
+      this.options = options;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import com.polarion.alm.ws.client.internal.connection.CommonsHTTPSender;
+import org.apache.axis.AxisEngine;
+import org.apache.axis.AxisFault;
+import org.apache.axis.ConfigurationException;
+import org.apache.axis.Handler;
+import org.apache.axis.MessageContext;
+import org.apache.axis.SimpleTargetedChain;
+import org.apache.axis.client.AxisClient;
+import org.apache.axis.client.Service;
+import org.apache.axis.client.Stub;
+import org.apache.axis.configuration.SimpleProvider;
+import org.apache.axis.transport.http.HTTPConstants;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+/**
+ * HTTP transport shared by all the Polarion web services: keeps alive a bounded number of connections per host,
+ * applies the connect and read timeouts and compresses requests and responses with gzip.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY,
+    name = "HTTP Connections per Host",
+    description = "Maximum number of HTTP connections kept open to the Polarion server.",
+    defaultValue = "" + PolarionConstants.DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.HTTP_CONNECT_TIMEOUT_PROPERTY,
+    name = "HTTP Connect Timeout",
+    description = "Number of seconds to wait for a connection to the Polarion server.",
+    defaultValue = "" + PolarionConstants.DEFAULT_HTTP_CONNECT_TIMEOUT,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.HTTP_READ_TIMEOUT_PROPERTY,
+    name = "HTTP Read Timeout",
+    description = "Number of seconds to wait for data from the Polarion server before a call fails.",
+    defaultValue = "" + PolarionConstants.DEFAULT_HTTP_READ_TIMEOUT,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.HTTP_COMPRESSION_PROPERTY,
+    name = "HTTP Compression",
+    description = "Compress the SOAP requests and ask the Polarion server to compress its responses with gzip.",
+    defaultValue = "true",
+    type = PropertyType.BOOLEAN,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionHttpTransport implements BatchExtension, ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionHttpTransport.class);
+  private static final String HTTP_TRANSPORT = "http";
+
+  private final Settings settings;
+  private PooledHttpSender sender;
+  private SimpleTargetedChain transport;
+
+  public PolarionHttpTransport(Settings settings) {
+    this.settings = settings;
+  }
+
+  public void stop() {
+    PooledHttpSender stopped;
+    synchronized (this) {
+      stopped = sender;
+      sender = null;
+      transport = null;
+    }
+    if (stopped != null) {
+      stopped.shutdown();
+    }
+  }
+
+  /**
+   * Makes the given Polarion web service send its calls through this transport. Services which are not Axis stubs
+   * are left as they are.
+   */
+  public void install(Object service) {
+    if (!(service instanceof Stub)) {
+      return;
+    }
+    javax.xml.rpc.Service jaxrpcService = ((Stub) service)._getService();
+    if (!(jaxrpcService instanceof Service)) {
+      return;
+    }
+    Service axisService = (Service) jaxrpcService;
+    Handler httpTransport = getTransport();
+    AxisEngine engine = axisService.getEngine();
+    try {
+      if (engine.getTransport(HTTP_TRANSPORT) == httpTransport) {
+        return;
+      }
+      // the options of the Polarion client configuration are kept, it only declares the HTTP transport besides them
+      SimpleProvider config = new SimpleProvider();
+      config.setGlobalOptions(engine.getConfig().getGlobalOptions());
+      config.deployTransport(HTTP_TRANSPORT, httpTransport);
+      axisService.setEngine(new AxisClient(config));
+    } catch (AxisFault e) {
+      LOG.warn("Unable to configure the HTTP transport of a Polarion web service, the default one is used", e);
+    } catch (ConfigurationException e) {
+      LOG.warn("Unable to configure the HTTP transport of a Polarion web service, the default one is used", e);
+    }
+  }
+
+  synchronized int getConnectionsInPool() {
+    return sender == null ? 0 : sender.getConnectionsInPool();
+  }
+
+  private synchronized Handler getTransport() {
+    if (transport == null) {
+      sender = new PooledHttpSender(getMaxConnectionsPerHost(), getConnectTimeoutMs(), getReadTimeoutMs(), isCompressionEnabled());
+      transport = new SimpleTargetedChain(sender);
+      LOG.debug("Polarion HTTP transport: {} connections per host, compression {}", getMaxConnectionsPerHost(),
+        isCompressionEnabled() ? "on" : "off");
+    }
+    return transport;
+  }
+
+  private int getMaxConnectionsPerHost() {
+    return positiveIntOrDefault(PolarionConstants.HTTP_MAX_CONNECTIONS_PER_HOST_PROPERTY, PolarionConstants.DEFAULT_HTTP_MAX_CONNECTIONS_PER_HOST);
+  }
+
+  public int getConnectTimeoutMs() {
+    return positiveIntOrDefault(PolarionConstants.HTTP_CONNECT_TIMEOUT_PROPERTY, PolarionConstants.DEFAULT_HTTP_CONNECT_TIMEOUT) * 1000;
+  }
+
+  public int getReadTimeoutMs() {
+    return positiveIntOrDefault(PolarionConstants.HTTP_READ_TIMEOUT_PROPERTY, PolarionConstants.DEFAULT_HTTP_READ_TIMEOUT) * 1000;
+  }
+
+  private boolean isCompressionEnabled() {
+    return !settings.hasKey(PolarionConstants.HTTP_COMPRESSION_PROPERTY) || settings.getBoolean(PolarionConstants.HTTP_COMPRESSION_PROPERTY);
+  }
+
+  private int positiveIntOrDefault(String key, int defaultValue) {
+    int value = settings.getInt(key);
+    return value > 0 ? value : defaultValue;
+  }
+
+  /**
+   * The commons-httpclient sender of the Polarion client, configured from the plugin settings instead of the
+   * global Axis properties.
+   */
+  private static final class PooledHttpSender extends CommonsHTTPSender {
+    private final boolean compression;
+
+    private PooledHttpSender(int maxConnectionsPerHost, int connectTimeoutMs, int readTimeoutMs, boolean compression) {
+      this.compression = compression;
+      HttpConnectionManagerParams params = connectionManager.getParams();
+      params.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+      params.setMaxTotalConnections(Math.max(params.getMaxTotalConnections(), maxConnectionsPerHost));
+      params.setConnectionTimeout(connectTimeoutMs);
+      params.setSoTimeout(readTimeoutMs);
+    }
+
+    @Override
+    public void invoke(MessageContext msgContext) throws AxisFault {
+      // a message timeout would replace both the connect and the read timeout of the connection manager
+      msgContext.setTimeout(0);
+      msgContext.setProperty(HTTPConstants.MC_ACCEPT_GZIP, Boolean.valueOf(compression));
+      msgContext.setProperty(HTTPConstants.MC_GZIP_REQUEST, Boolean.valueOf(compression));
+      super.invoke(msgContext);
+    }
+
+    private int getConnectionsInPool() {
+      return ((MultiThreadedHttpConnectionManager) connectionManager).getConnectionsInPool();
+    }
+
+    private void shutdown() {
+      ((MultiThreadedHttpConnectionManager) connectionManager).shutdown();
+    }
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.soap;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.polarion.alm.ws.client.projects.ProjectWebService;
+import com.polarion.alm.ws.client.types.projects.Project;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.PolarionWorkDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the Polarion projects looked up to check that they exist and to create work items in them, keyed by server
+ * and project ID. Unknown project IDs are cached as well, for a shorter time. The most recently used projects are kept
+ * in memory, and in the work directory between analyses.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.PROJECT_CACHE_TTL_PROPERTY,
+    name = "Project Cache Time To Live",
+    description = "Number of minutes a Polarion project is reused before it is looked up again. 0 looks it up every time.",
+    defaultValue = "" + PolarionConstants.DEFAULT_PROJECT_CACHE_TTL,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.PROJECT_CACHE_UNKNOWN_TTL_PROPERTY,
+    name = "Unknown Project Cache Time To Live",
+    description = "Number of minutes a Polarion project ID is known not to exist before it is looked up again.",
+    defaultValue = "" + PolarionConstants.DEFAULT_PROJECT_CACHE_UNKNOWN_TTL,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionProjectCache implements BatchExtension, ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionProjectCache.class);
+
+  private static final String CACHE_DIR = "projects";
+  private static final String KEY = "key";
+  private static final String FETCHED_AT = "fetchedAt";
+  private static final String UNRESOLVABLE = "unresolvable";
+  private static final String[] FIELDS = {"id", "uri", "name", "location", "trackerPrefix", "projectGroupURI"};
+
+  private final Settings settings;
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > PolarionConstants.PROJECT_CACHE_MAX_SIZE;
+    }
+  };
+
+  public PolarionProjectCache(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Returns the project with the given ID, which is unresolvable if it does not exist. If it can not be looked up
+   * again, the project which is out of date is returned rather than failing. Cached projects only carry their
+   * identifying fields: ID, URI, name, location, tracker prefix and project group.
+   */
+  public Project getProject(ProjectWebService projectService, String serverUrl, String projectId) throws RemoteException {
+    String key = serverUrl + "|" + projectId;
+    Entry entry = get(key);
+    if (entry != null && !isExpired(entry)) {
+      return entry.project;
+    }
+
+    Project project;
+    try {
+      project = projectService.getProject(projectId);
+    } catch (RemoteException e) {
+      if (entry == null) {
+        throw e;
+      }
+      LOG.warn("Unable to look up Polarion project " + projectId + " again, using the one looked up before", e);
+      return entry.project;
+    }
+
+    Entry refreshed = new Entry(project, now());
+    synchronized (entries) {
+      entries.put(key, refreshed);
+    }
+    store(key, refreshed);
+    return project;
+  }
+
+  private Entry get(String key) {
+    Entry entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      entry = load(key);
+      if (entry != null) {
+        synchronized (entries) {
+          entries.put(key, entry);
+        }
+      }
+    }
+    return entry;
+  }
+
+  private boolean isExpired(Entry entry) {
+    String property = entry.project.isUnresolvable() ? PolarionConstants.PROJECT_CACHE_UNKNOWN_TTL_PROPERTY : PolarionConstants.PROJECT_CACHE_TTL_PROPERTY;
+    int defaultTtl = entry.project.isUnresolvable() ? PolarionConstants.DEFAULT_PROJECT_CACHE_UNKNOWN_TTL : PolarionConstants.DEFAULT_PROJECT_CACHE_TTL;
+    int ttl = settings.hasKey(property) ? settings.getInt(property) : defaultTtl;
+    return now() - entry.fetchedAt >= TimeUnit.SECONDS.toMillis(ttl * 60L);
+  }
+
+  private Entry load(String key) {
+    java.util.Properties stored = PolarionWorkDirectory.loadProperties(cacheFile(key));
+    if (stored == null || !key.equals(stored.getProperty(KEY))) {
+      return null;
+    }
+    Project project = new Project();
+    project.setUnresolvable(Boolean.parseBoolean(stored.getProperty(UNRESOLVABLE)));
+    project.setId(stored.getProperty("id"));
+    project.setUri(stored.getProperty("uri"));
+    project.setName(stored.getProperty("name"));
+    project.setLocation(stored.getProperty("location"));
+    project.setTrackerPrefix(stored.getProperty("trackerPrefix"));
+    project.setProjectGroupURI(stored.getProperty("projectGroupURI"));
+    return new Entry(project, Long.parseLong(stored.getProperty(FETCHED_AT, "0")));
+  }
+
+  private void store(String key, Entry entry) {
+    Project project = entry.project;
+    String[] values = {project.getId(), project.getUri(), project.getName(), project.getLocation(), project.getTrackerPrefix(),
+      project.getProjectGroupURI()};
+    java.util.Properties stored = new java.util.Properties();
+    stored.setProperty(KEY, key);
+    stored.setProperty(FETCHED_AT, String.valueOf(entry.fetchedAt));
+    stored.setProperty(UNRESOLVABLE, String.valueOf(project.isUnresolvable()));
+    for (int i = 0; i < FIELDS.length; i++) {
+      if (values[i] != null) {
+        stored.setProperty(FIELDS[i], values[i]);
+      }
+    }
+
+    File file = cacheFile(key);
+    try {
+      PolarionWorkDirectory.storeProperties(file, stored, "Polarion project");
+    } catch (IOException e) {
+      LOG.warn("Unable to cache Polarion project " + file.getAbsolutePath(), e);
+    } catch (IllegalStateException e) {
+      LOG.warn("Unable to cache Polarion project " + file.getAbsolutePath(), e);
+    }
+  }
+
+  private File cacheFile(String key) {
+    return new File(PolarionWorkDirectory.get(settings, CACHE_DIR), key.replaceAll("[^A-Za-z0-9._-]", "_") + ".properties");
+  }
+
+  @VisibleForTesting
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private static final class Entry {
+    private final Project project;
+    private final long fetchedAt;
+
+    Entry(Project project, long fetchedAt) {
+      this.project = project;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+}
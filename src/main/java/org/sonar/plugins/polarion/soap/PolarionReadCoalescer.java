@@ -0,0 +1,170 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.soap;
+
+import org.sonar.api.BatchExtension;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces identical reads of the Polarion web services, see {@link #coalesce(Class, Object, PolarionSession)}.
+ * Concurrent calls of a read with the same arguments by the same user of the same server share one SOAP call, whose
+ * result is then reused for a few seconds. Changes are never coalesced, failed reads are not reused.
+ * Results are shared between callers, which must not modify them.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.READ_CACHE_TTL_PROPERTY,
+    name = "Read Cache Time To Live",
+    description = "Number of seconds the result of a Polarion read is reused by identical reads of the same user. " +
+      "0 only shares the reads made at the same time.",
+    defaultValue = "" + PolarionConstants.DEFAULT_READ_CACHE_TTL,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionReadCoalescer implements BatchExtension, ServerExtension {
+
+  private final Settings settings;
+  private final ConcurrentMap<String, Read> reads = new ConcurrentHashMap<String, Read>();
+
+  public PolarionReadCoalescer(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Wraps a Polarion web service of the given session so that its reads are coalesced with the identical reads
+   * of all the sessions of the same user.
+   */
+  public <T> T coalesce(Class<T> serviceInterface, final T service, final PolarionSession session) {
+    Object proxy = Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] {serviceInterface}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class || !PolarionResilience.isRead(method)) {
+          try {
+            return method.invoke(service, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+        String key = session.getServerAddress() + "|" + session.getUserName() + "|" + method.getDeclaringClass().getSimpleName()
+          + "." + method.getName() + Arrays.deepToString(args);
+        return read(key, service, method, args);
+      }
+    });
+    return serviceInterface.cast(proxy);
+  }
+
+  private Object read(String key, Object service, Method method, Object[] args) throws Throwable {
+    long ttl = getTimeToLiveMs();
+    while (true) {
+      Read read = reads.get(key);
+      if (read == null || read.isExpired(ttl)) {
+        Read created = new Read(service, method, args);
+        boolean added = read == null ? reads.putIfAbsent(key, created) == null : reads.replace(key, read, created);
+        if (!added) {
+          // another caller started the same read in the meantime
+          continue;
+        }
+        removeExpired(ttl);
+        created.run();
+        if (ttl <= 0) {
+          reads.remove(key, created);
+        }
+        read = created;
+      }
+
+      try {
+        return read.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RemoteException("Interrupted while waiting for Polarion call " + method.getName(), e);
+      } catch (ExecutionException e) {
+        reads.remove(key, read);
+        throw e.getCause();
+      }
+    }
+  }
+
+  private void removeExpired(long ttl) {
+    for (Iterator<Read> it = reads.values().iterator(); it.hasNext();) {
+      if (it.next().isExpired(ttl)) {
+        it.remove();
+      }
+    }
+  }
+
+  int getNumberOfReads() {
+    return reads.size();
+  }
+
+  private long getTimeToLiveMs() {
+    int seconds = settings.hasKey(PolarionConstants.READ_CACHE_TTL_PROPERTY) ?
+      settings.getInt(PolarionConstants.READ_CACHE_TTL_PROPERTY) : PolarionConstants.DEFAULT_READ_CACHE_TTL;
+    return TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  private static final class Read extends FutureTask<Object> {
+    private volatile long completedAt;
+
+    Read(final Object service, final Method method, final Object[] args) {
+      super(new Callable<Object>() {
+        public Object call() throws Exception {
+          try {
+            return method.invoke(service, args);
+          } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Error) {
+              throw (Error) e.getCause();
+            }
+            throw (Exception) e.getCause();
+          }
+        }
+      });
+    }
+
+    @Override
+    protected void done() {
+      completedAt = System.currentTimeMillis();
+    }
+
+    boolean isExpired(long ttl) {
+      return isDone() && System.currentTimeMillis() - completedAt >= ttl;
+    }
+  }
+}
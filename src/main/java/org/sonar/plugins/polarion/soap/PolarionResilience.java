@@ -0,0 +1,238 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.BatchExtension;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.w3c.dom.Element;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Retries the reads of the Polarion web services when the server could not be reached, and stops calling a server
+ * through its {@link PolarionCircuitBreaker} once it keeps failing, see {@link #protect(Class, Object, String)}.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.RETRY_MAX_ATTEMPTS_PROPERTY,
+    name = "Read Attempts",
+    description = "Maximum number of attempts of a Polarion read which fails because the server can not be reached. Changes are never retried.",
+    defaultValue = "" + PolarionConstants.DEFAULT_RETRY_MAX_ATTEMPTS,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.RETRY_BACKOFF_PROPERTY,
+    name = "Retry Backoff",
+    description = "Number of milliseconds before the first retry of a Polarion read. The wait doubles with every retry and is randomized.",
+    defaultValue = "" + PolarionConstants.DEFAULT_RETRY_BACKOFF,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.CIRCUIT_BREAKER_THRESHOLD_PROPERTY,
+    name = "Circuit Breaker Threshold",
+    description = "Number of consecutive failed Polarion calls after which calls to the server are suspended.",
+    defaultValue = "" + PolarionConstants.DEFAULT_CIRCUIT_BREAKER_THRESHOLD,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.CIRCUIT_BREAKER_OPEN_PERIOD_PROPERTY,
+    name = "Circuit Breaker Open Period",
+    description = "Number of seconds during which calls to a failing Polarion server are suspended before it is tried again.",
+    defaultValue = "" + PolarionConstants.DEFAULT_CIRCUIT_BREAKER_OPEN_PERIOD,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionResilience implements BatchExtension, ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionResilience.class);
+  private static final long MAX_BACKOFF_MS = 30 * 1000L;
+  private static final String[] READ_PREFIXES = {"get", "query", "has"};
+
+  private final Settings settings;
+  private final ConcurrentMap<String, PolarionCircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, PolarionCircuitBreaker>();
+  private final Random random = new Random();
+
+  public PolarionResilience(Settings settings) {
+    this.settings = settings;
+  }
+
+  /**
+   * Wraps a Polarion web service so that its calls go through the circuit breaker of the server and its reads are
+   * retried with a randomized exponential backoff.
+   */
+  public <T> T protect(Class<T> serviceInterface, final T service, String serverUrl) {
+    final PolarionCircuitBreaker circuitBreaker = getCircuitBreaker(serverUrl);
+    Object proxy = Proxy.newProxyInstance(serviceInterface.getClassLoader(), new Class<?>[] {serviceInterface}, new InvocationHandler() {
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+          return method.invoke(service, args);
+        }
+        return call(circuitBreaker, service, method, args);
+      }
+    });
+    return serviceInterface.cast(proxy);
+  }
+
+  private Object call(PolarionCircuitBreaker circuitBreaker, Object service, Method method, Object[] args) throws Throwable {
+    int maxAttempts = isRead(method) ? getMaxAttempts() : 1;
+    for (int attempt = 1;; attempt++) {
+      circuitBreaker.acquire();
+      Throwable failure;
+      try {
+        Object result = method.invoke(service, args);
+        circuitBreaker.onSuccess();
+        return result;
+      } catch (InvocationTargetException e) {
+        failure = e.getCause();
+      }
+      if (!isTransient(failure)) {
+        circuitBreaker.onSuccess();
+        throw failure;
+      }
+      circuitBreaker.onFailure();
+      if (attempt >= maxAttempts) {
+        throw failure;
+      }
+      long backoff = backoffMillis(attempt);
+      LOG.debug("Polarion call " + method.getName() + " failed, attempt " + (attempt + 1) + " in " + backoff + " ms", failure);
+      try {
+        sleep(backoff);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw failure;
+      }
+    }
+  }
+
+  public PolarionCircuitBreaker getCircuitBreaker(String serverUrl) {
+    PolarionCircuitBreaker circuitBreaker = circuitBreakers.get(serverUrl);
+    if (circuitBreaker == null) {
+      circuitBreakers.putIfAbsent(serverUrl, new PolarionCircuitBreaker(serverUrl, getFailureThreshold(), getOpenPeriodMs()));
+      circuitBreaker = circuitBreakers.get(serverUrl);
+    }
+    return circuitBreaker;
+  }
+
+  public boolean isOpen(String serverUrl) {
+    PolarionCircuitBreaker circuitBreaker = circuitBreakers.get(serverUrl);
+    return circuitBreaker != null && circuitBreaker.isOpen();
+  }
+
+  /**
+   * Only reads are safe to repeat: a change whose answer got lost may have been applied.
+   */
+  static boolean isRead(Method method) {
+    for (String prefix : READ_PREFIXES) {
+      if (method.getName().startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Failures to reach the server or to get its answer are transient, SOAP faults returned by Polarion are not.
+   */
+  public static boolean isTransient(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+      if (cause instanceof IOException && !(cause instanceof RemoteException)) {
+        return true;
+      }
+      if (cause instanceof AxisFault && isServerError((AxisFault) cause)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isServerError(AxisFault fault) {
+    Element statusCode = fault.lookupFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE);
+    if (statusCode == null) {
+      return false;
+    }
+    try {
+      return Integer.parseInt(statusCode.getTextContent().trim()) >= 500;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Full jitter: a random wait up to an exponentially growing bound.
+   */
+  long backoffMillis(int attempt) {
+    long bound = Math.min(MAX_BACKOFF_MS, (long) getInitialBackoffMs() << Math.min(attempt - 1, 20));
+    return (long) (random.nextDouble() * bound);
+  }
+
+  protected void sleep(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+  }
+
+  private int getMaxAttempts() {
+    return positiveIntOrDefault(PolarionConstants.RETRY_MAX_ATTEMPTS_PROPERTY, PolarionConstants.DEFAULT_RETRY_MAX_ATTEMPTS);
+  }
+
+  private int getInitialBackoffMs() {
+    return positiveIntOrDefault(PolarionConstants.RETRY_BACKOFF_PROPERTY, PolarionConstants.DEFAULT_RETRY_BACKOFF);
+  }
+
+  private int getFailureThreshold() {
+    return positiveIntOrDefault(PolarionConstants.CIRCUIT_BREAKER_THRESHOLD_PROPERTY, PolarionConstants.DEFAULT_CIRCUIT_BREAKER_THRESHOLD);
+  }
+
+  private long getOpenPeriodMs() {
+    return positiveIntOrDefault(PolarionConstants.CIRCUIT_BREAKER_OPEN_PERIOD_PROPERTY, PolarionConstants.DEFAULT_CIRCUIT_BREAKER_OPEN_PERIOD) * 1000L;
+  }
+
+  private int positiveIntOrDefault(String key, int defaultValue) {
+    int value = settings.getInt(key);
+    return value > 0 ? value : defaultValue;
+  }
+}
@@ -39,12 +39,38 @@ import java.rmi.RemoteException;
 public class PolarionSession {
   private static final Logger LOG = LoggerFactory.getLogger(PolarionSession.class);
 
+  private final String serverAddress;
+  private final PolarionCallMetrics callMetrics;
+  private final PolarionHttpTransport transport;
+  private final PolarionResilience resilience;
+  private final PolarionReadCoalescer readCoalescer;
   private WebServiceFactory factory;
   private SessionWebService sessionService;
   private TrackerWebService trackerService;
   private ProjectWebService projectService;
+  private String userName;
+  private String password;
 
+  /**
+   * Session without instrumentation, with the default Axis transport.
+   */
   public PolarionSession(String serverAdress) throws MalformedURLException{
+      this(serverAdress, null, null, null, null);
+  }
+
+  /**
+   * @param callMetrics records every call of the services of this session, may be null
+   * @param transport carries the calls of the services of this session, may be null for the default Axis transport
+   * @param resilience retries the reads and applies the circuit breaker of the server, may be null
+   * @param readCoalescer shares the reads of the tracker and project services with other sessions of the same user, may be null
+   */
+  public PolarionSession(String serverAdress, PolarionCallMetrics callMetrics, PolarionHttpTransport transport,
+      PolarionResilience resilience, PolarionReadCoalescer readCoalescer) throws MalformedURLException{
+      this.serverAddress = serverAdress;
+      this.callMetrics = callMetrics;
+      this.transport = transport;
+      this.resilience = resilience;
+      this.readCoalescer = readCoalescer;
       String polarionServices = serverAdress+ "/polarion/ws/services/";
       factory = new WebServiceFactory(polarionServices);
       LOG.info("SOAP Session service endpoint at " + polarionServices);
@@ -53,19 +79,78 @@ public class PolarionSession {
   public void connect(String userName, String password) throws ServiceException, RemoteException {
     LOG.debug("Connnecting via SOAP as : {}", userName);
 
-    sessionService = factory.getSessionService();
-    trackerService = factory.getTrackerService();
-    projectService = factory.getProjectService();
+    if (sessionService == null) {
+      sessionService = instrument(SessionWebService.class, factory.getSessionService());
+      trackerService = coalesce(TrackerWebService.class, instrument(TrackerWebService.class, factory.getTrackerService()));
+      projectService = coalesce(ProjectWebService.class, instrument(ProjectWebService.class, factory.getProjectService()));
+    }
 
     sessionService.logIn(userName, password);
+    this.userName = userName;
+    this.password = password;
 
     LOG.debug("Connected to Polarion Server");
   }
 
+  /**
+   * Every attempt of a retried call is recorded by the call metrics.
+   */
+  private <T> T instrument(Class<T> serviceInterface, T service) {
+    if (transport != null) {
+      transport.install(service);
+    }
+    T instrumented = callMetrics == null ? service : callMetrics.instrument(serviceInterface, service);
+    return resilience == null ? instrumented : resilience.protect(serviceInterface, instrumented, serverAddress);
+  }
+
+  /**
+   * Coalescing comes last, so that a shared read is recorded and retried once for all of its callers.
+   */
+  private <T> T coalesce(Class<T> serviceInterface, T service) {
+    return readCoalescer == null ? service : readCoalescer.coalesce(serviceInterface, service, this);
+  }
+
+  /**
+   * Logs in again with the credentials of the last successful login, reusing the existing service stubs.
+   */
+  public void reconnect() throws ServiceException, RemoteException {
+    if (userName == null) {
+      throw new IllegalStateException("Cannot reconnect a Polarion session that has never been connected");
+    }
+    connect(userName, password);
+  }
+
   public void disconnect() throws RemoteException {
     sessionService.endSession();
   }
 
+  /**
+   * Asks the server whether this session is still logged in. Any remote problem is reported as not logged in.
+   */
+  public boolean isLoggedIn() {
+    if (sessionService == null) {
+      return false;
+    }
+    try {
+      return sessionService.hasSubject();
+    } catch (RemoteException e) {
+      LOG.debug("Polarion session check failed", e);
+      return false;
+    }
+  }
+
+  public String getServerAddress() {
+    return serverAddress;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  boolean hasPassword(String password) {
+    return this.password == null ? password == null : this.password.equals(password);
+  }
+
   public TrackerWebService getTrackerService() {
     return trackerService;
   }
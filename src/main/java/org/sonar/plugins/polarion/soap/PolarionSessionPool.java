@@ -0,0 +1,372 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import javax.xml.rpc.ServiceException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.api.Properties;
+import org.sonar.api.Property;
+import org.sonar.api.PropertyType;
+import org.sonar.api.ServerExtension;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.net.MalformedURLException;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of logged-in Polarion sessions, keyed by server URL and user, so that server extensions
+ * do not log in again for every request. A session is leased to a single caller at a time.
+ */
+@Properties({
+  @Property(
+    key = PolarionConstants.SESSION_POOL_MAX_SIZE_PROPERTY,
+    name = "Session Pool Size",
+    description = "Maximum number of Polarion sessions open at the same time per server and user.",
+    defaultValue = "" + PolarionConstants.DEFAULT_SESSION_POOL_MAX_SIZE,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.SESSION_POOL_IDLE_TIMEOUT_PROPERTY,
+    name = "Session Idle Timeout",
+    description = "Number of seconds after which an unused Polarion session is logged out and removed from the pool.",
+    defaultValue = "" + PolarionConstants.DEFAULT_SESSION_POOL_IDLE_TIMEOUT,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  ),
+  @Property(
+    key = PolarionConstants.SESSION_POOL_BORROW_TIMEOUT_PROPERTY,
+    name = "Session Wait Timeout",
+    description = "Number of seconds to wait for a Polarion session when all sessions of the pool are in use.",
+    defaultValue = "" + PolarionConstants.DEFAULT_SESSION_POOL_BORROW_TIMEOUT,
+    type = PropertyType.INTEGER,
+    global = true,
+    project = false,
+    module = false
+  )
+})
+public class PolarionSessionPool implements ServerExtension {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionSessionPool.class);
+  private static final long HEALTH_CHECK_INTERVAL_MS = 60 * 1000L;
+
+  private final Settings settings;
+  private final PolarionCallMetrics callMetrics;
+  private final PolarionHttpTransport transport;
+  private final PolarionResilience resilience;
+  private final PolarionReadCoalescer readCoalescer;
+  private final Map<String, LinkedList<PooledSession>> idleSessions = Maps.newHashMap();
+  private final Map<PolarionSession, String> leasedSessions = Maps.newIdentityHashMap();
+  private final Map<String, Integer> reservedSlots = Maps.newHashMap();
+  private ScheduledExecutorService evictor;
+
+  public PolarionSessionPool(Settings settings) {
+    this(settings, null, null, null, null);
+  }
+
+  public PolarionSessionPool(Settings settings, PolarionCallMetrics callMetrics, PolarionHttpTransport transport,
+      PolarionResilience resilience, PolarionReadCoalescer readCoalescer) {
+    this.settings = settings;
+    this.callMetrics = callMetrics;
+    this.transport = transport;
+    this.resilience = resilience;
+    this.readCoalescer = readCoalescer;
+  }
+
+  public void start() {
+    evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "polarion-session-evictor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    evictor.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        evictIdleSessions();
+      }
+    }, 60, 60, TimeUnit.SECONDS);
+  }
+
+  public void stop() {
+    if (evictor != null) {
+      evictor.shutdownNow();
+    }
+    List<PolarionSession> sessions = Lists.newArrayList();
+    synchronized (this) {
+      for (LinkedList<PooledSession> pooledSessions : idleSessions.values()) {
+        for (PooledSession pooledSession : pooledSessions) {
+          sessions.add(pooledSession.session);
+        }
+      }
+      idleSessions.clear();
+    }
+    for (PolarionSession session : sessions) {
+      closeQuietly(session);
+    }
+  }
+
+  /**
+   * Leases a logged-in session. Idle sessions are reused after a health check; a new session is only opened
+   * while fewer than the maximum number of sessions are in use for this server and user.
+   * Every leased session must be handed back with {@link #releaseSession} or {@link #invalidateSession}.
+   */
+  public PolarionSession borrowSession(String serverUrl, String userName, String password)
+      throws MalformedURLException, ServiceException, RemoteException {
+    String key = key(serverUrl, userName);
+    PooledSession pooledSession = leaseIdleOrReserve(key);
+
+    while (pooledSession != null) {
+      if (checkHealth(pooledSession, password)) {
+        return pooledSession.session;
+      }
+      closeQuietly(pooledSession.session);
+      pooledSession = leaseIdleOrReserve(key, pooledSession.session);
+    }
+
+    boolean connected = false;
+    PolarionSession session = null;
+    try {
+      session = newSession(serverUrl);
+      session.connect(userName, password);
+      connected = true;
+      LOG.debug("Opened new pooled Polarion session for {}", key);
+    } finally {
+      synchronized (this) {
+        reservedSlots.put(key, reservedSlots.get(key) - 1);
+        if (connected) {
+          leasedSessions.put(session, key);
+        } else {
+          notifyAll();
+        }
+      }
+    }
+    return session;
+  }
+
+  /**
+   * Hands a healthy session back to the pool for reuse.
+   */
+  public void releaseSession(PolarionSession session) {
+    synchronized (this) {
+      String key = leasedSessions.remove(session);
+      if (key == null) {
+        throw new IllegalStateException("This Polarion session has not been leased from the pool");
+      }
+      idleSessions(key).addFirst(new PooledSession(session, now()));
+      notifyAll();
+    }
+  }
+
+  /**
+   * Closes a session that failed while it was leased instead of returning it to the pool.
+   */
+  public void invalidateSession(PolarionSession session) {
+    synchronized (this) {
+      if (leasedSessions.remove(session) == null) {
+        throw new IllegalStateException("This Polarion session has not been leased from the pool");
+      }
+      notifyAll();
+    }
+    closeQuietly(session);
+  }
+
+  /**
+   * Logs out and drops the sessions which have not been used for longer than the idle timeout.
+   */
+  public void evictIdleSessions() {
+    long oldestAllowed = now() - getIdleTimeoutMs();
+    List<PolarionSession> evicted = Lists.newArrayList();
+    synchronized (this) {
+      for (LinkedList<PooledSession> pooledSessions : idleSessions.values()) {
+        Iterator<PooledSession> iterator = pooledSessions.iterator();
+        while (iterator.hasNext()) {
+          PooledSession pooledSession = iterator.next();
+          if (pooledSession.lastUsed < oldestAllowed) {
+            iterator.remove();
+            evicted.add(pooledSession.session);
+          }
+        }
+      }
+    }
+    for (PolarionSession session : evicted) {
+      closeQuietly(session);
+    }
+    if (!evicted.isEmpty()) {
+      LOG.debug("Evicted {} idle Polarion sessions", evicted.size());
+    }
+  }
+
+  synchronized int getNumberOfIdleSessions() {
+    int numberOfIdleSessions = 0;
+    for (LinkedList<PooledSession> pooledSessions : idleSessions.values()) {
+      numberOfIdleSessions += pooledSessions.size();
+    }
+    return numberOfIdleSessions;
+  }
+
+  synchronized int getNumberOfLeasedSessions() {
+    return leasedSessions.size();
+  }
+
+  protected PolarionSession newSession(String serverUrl) throws MalformedURLException {
+    return new PolarionSession(serverUrl, callMetrics, transport, resilience, readCoalescer);
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  private PooledSession leaseIdleOrReserve(String key) {
+    return leaseIdleOrReserve(key, null);
+  }
+
+  /**
+   * Returns an idle session which is leased to the caller, or null once a slot for a new session
+   * has been reserved; the caller opens the new session outside of the lock. Waits while the pool
+   * is exhausted for this key.
+   *
+   * @param discarded a previously leased session that turned out to be unhealthy and frees its slot
+   */
+  private synchronized PooledSession leaseIdleOrReserve(String key, PolarionSession discarded) {
+    if (discarded != null) {
+      leasedSessions.remove(discarded);
+    }
+    long deadline = System.currentTimeMillis() + getBorrowTimeoutMs();
+    while (true) {
+      LinkedList<PooledSession> pooledSessions = idleSessions(key);
+      if (!pooledSessions.isEmpty()) {
+        PooledSession pooledSession = pooledSessions.removeFirst();
+        leasedSessions.put(pooledSession.session, key);
+        return pooledSession;
+      }
+      int reserved = reservedSlots.containsKey(key) ? reservedSlots.get(key) : 0;
+      if (countLeasedSessions(key) + reserved < getMaxSize()) {
+        reservedSlots.put(key, reserved + 1);
+        return null;
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        throw new IllegalStateException("No Polarion session available for " + key + " after waiting " + getBorrowTimeoutMs() + " ms");
+      }
+      try {
+        wait(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for a Polarion session", e);
+      }
+    }
+  }
+
+  private boolean checkHealth(PooledSession pooledSession, String password) {
+    PolarionSession session = pooledSession.session;
+    if (!session.hasPassword(password)) {
+      LOG.debug("Credentials changed, discarding pooled Polarion session");
+      return false;
+    }
+    if (now() - pooledSession.lastUsed < HEALTH_CHECK_INTERVAL_MS || session.isLoggedIn()) {
+      return true;
+    }
+    try {
+      LOG.debug("Pooled Polarion session expired, logging in again");
+      session.reconnect();
+      return true;
+    } catch (Exception e) {
+      LOG.warn("Unable to log in again with pooled Polarion session", e);
+      return false;
+    }
+  }
+
+  private int countLeasedSessions(String key) {
+    int count = 0;
+    for (String leasedKey : leasedSessions.values()) {
+      if (key.equals(leasedKey)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private LinkedList<PooledSession> idleSessions(String key) {
+    LinkedList<PooledSession> pooledSessions = idleSessions.get(key);
+    if (pooledSessions == null) {
+      pooledSessions = new LinkedList<PooledSession>();
+      idleSessions.put(key, pooledSessions);
+    }
+    return pooledSessions;
+  }
+
+  private int getMaxSize() {
+    return positiveIntOrDefault(PolarionConstants.SESSION_POOL_MAX_SIZE_PROPERTY, PolarionConstants.DEFAULT_SESSION_POOL_MAX_SIZE);
+  }
+
+  private long getIdleTimeoutMs() {
+    return positiveIntOrDefault(PolarionConstants.SESSION_POOL_IDLE_TIMEOUT_PROPERTY, PolarionConstants.DEFAULT_SESSION_POOL_IDLE_TIMEOUT) * 1000L;
+  }
+
+  private long getBorrowTimeoutMs() {
+    return positiveIntOrDefault(PolarionConstants.SESSION_POOL_BORROW_TIMEOUT_PROPERTY, PolarionConstants.DEFAULT_SESSION_POOL_BORROW_TIMEOUT) * 1000L;
+  }
+
+  private int positiveIntOrDefault(String key, int defaultValue) {
+    int value = settings.getInt(key);
+    return value > 0 ? value : defaultValue;
+  }
+
+  private static String key(String serverUrl, String userName) {
+    return userName + "@" + serverUrl;
+  }
+
+  private static void closeQuietly(PolarionSession session) {
+    try {
+      session.disconnect();
+    } catch (Exception e) {
+      LOG.debug("Unable to end Polarion session", e);
+    }
+  }
+
+  private static final class PooledSession {
+    private final PolarionSession session;
+    private final long lastUsed;
+
+    private PooledSession(PolarionSession session, long lastUsed) {
+      this.session = session;
+      this.lastUsed = lastUsed;
+    }
+  }
+}
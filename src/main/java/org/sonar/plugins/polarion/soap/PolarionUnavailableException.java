@@ -0,0 +1,35 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown instead of calling a Polarion server while its circuit breaker is open.
+ */
+public class PolarionUnavailableException extends RemoteException {
+  private static final long serialVersionUID = 1L;
+
+  public PolarionUnavailableException(String serverUrl, long retryInMillis) {
+    super("Calls to the Polarion server " + serverUrl + " are suspended after repeated failures, next attempt in "
+      + (retryInMillis + 999) / 1000 + " s");
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Call counts, latency histogram and payload sizes of one Polarion SOAP operation. Safe for concurrent recording.
+ */
+public class SoapOperationStats implements SoapOperationStatsMBean {
+  static final long[] LATENCY_BUCKETS_MILLIS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+  private final String operation;
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+  private final AtomicLong requestBytes = new AtomicLong();
+  private final AtomicLong responseBytes = new AtomicLong();
+  // the last bucket counts the calls slower than the largest bound
+  private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKETS_MILLIS.length + 1);
+
+  public SoapOperationStats(String operation) {
+    this.operation = operation;
+  }
+
+  /**
+   * @param sentBytes size of the request, or a negative value if unknown
+   * @param receivedBytes size of the response, or a negative value if unknown
+   */
+  public void record(long durationNanos, boolean failed, long sentBytes, long receivedBytes) {
+    calls.incrementAndGet();
+    if (failed) {
+      errors.incrementAndGet();
+    }
+    totalNanos.addAndGet(durationNanos);
+    long max = maxNanos.get();
+    while (durationNanos > max && !maxNanos.compareAndSet(max, durationNanos)) {
+      max = maxNanos.get();
+    }
+    if (sentBytes > 0) {
+      requestBytes.addAndGet(sentBytes);
+    }
+    if (receivedBytes > 0) {
+      responseBytes.addAndGet(receivedBytes);
+    }
+    histogram.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMillis(durationNanos)));
+  }
+
+  private static int bucket(long millis) {
+    int bucket = 0;
+    while (bucket < LATENCY_BUCKETS_MILLIS.length && millis > LATENCY_BUCKETS_MILLIS[bucket]) {
+      bucket++;
+    }
+    return bucket;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public long getCallCount() {
+    return calls.get();
+  }
+
+  public long getErrorCount() {
+    return errors.get();
+  }
+
+  public long getTotalTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(totalNanos.get());
+  }
+
+  public double getMeanTimeMillis() {
+    long count = calls.get();
+    return count == 0 ? 0.0 : totalNanos.get() / 1000000.0 / count;
+  }
+
+  public long getMaxTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+  }
+
+  public long getRequestBytes() {
+    return requestBytes.get();
+  }
+
+  public long getResponseBytes() {
+    return responseBytes.get();
+  }
+
+  public long getLatencyPercentileMillis(double percentile) {
+    long count = 0;
+    for (int i = 0; i < histogram.length(); i++) {
+      count += histogram.get(i);
+    }
+    if (count == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(percentile * count);
+    long seen = 0;
+    for (int i = 0; i < LATENCY_BUCKETS_MILLIS.length; i++) {
+      seen += histogram.get(i);
+      if (seen >= rank) {
+        return LATENCY_BUCKETS_MILLIS[i];
+      }
+    }
+    return getMaxTimeMillis();
+  }
+
+  public String getLatencyHistogram() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < histogram.length(); i++) {
+      if (text.length() > 0) {
+        text.append(", ");
+      }
+      text.append(i < LATENCY_BUCKETS_MILLIS.length ? "<=" + LATENCY_BUCKETS_MILLIS[i] : ">" + LATENCY_BUCKETS_MILLIS[i - 1])
+        .append("ms: ").append(histogram.get(i));
+    }
+    return text.toString();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d calls, %d errors, %d ms total, %.1f ms mean, p50 <= %d ms, p99 <= %d ms, %d ms max, %d bytes sent, %d bytes received",
+      operation, getCallCount(), getErrorCount(), getTotalTimeMillis(), getMeanTimeMillis(), getLatencyPercentileMillis(0.5),
+      getLatencyPercentileMillis(0.99), getMaxTimeMillis(), getRequestBytes(), getResponseBytes());
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.rmi.RemoteException;
+
+/**
+ * Fetches the work items of a query page by page, so that only one page of work items is held in memory at a time.
+ * Only the URIs of all matching work items are retrieved up front; each page is then fetched with a single query on their ids.
+ */
+public class WorkItemPager {
+  private static final Logger LOG = LoggerFactory.getLogger(WorkItemPager.class);
+  private static final String ID_SEPARATOR = "}";
+
+  /**
+   * Largest page, whose ids are queried as one clause each: Lucene rejects queries with more than 1024 clauses, and the
+   * query of the work items takes a few of them.
+   */
+  public static final int MAX_PAGE_SIZE = 1000;
+
+  private final TrackerWebService trackerService;
+  private final String query;
+  private final String sort;
+  private final String[] fields;
+  private final int pageSize;
+
+  public WorkItemPager(TrackerWebService trackerService, String query, String sort, String[] fields, int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+    }
+    this.trackerService = trackerService;
+    this.query = query;
+    this.sort = sort;
+    this.fields = fields;
+    if (pageSize > MAX_PAGE_SIZE) {
+      LOG.debug("Page size " + pageSize + " is reduced to " + MAX_PAGE_SIZE);
+    }
+    this.pageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+  }
+
+  /**
+   * Hands the work items matching the query to the handler, one page at a time.
+   *
+   * @return the total number of work items handed to the handler
+   */
+  public int forEachPage(PageHandler handler) throws RemoteException {
+    String[] uris = trackerService.queryWorkItemUris(query, sort);
+    if (uris == null) {
+      LOG.warn("No Polarion work items were found for query: " + query);
+      return 0;
+    }
+
+    int numberOfWorkItems = 0;
+    for (int from = 0; from < uris.length; from += pageSize) {
+      String[] pageUris = new String[Math.min(pageSize, uris.length - from)];
+      System.arraycopy(uris, from, pageUris, 0, pageUris.length);
+      WorkItem[] page = fetchPage(pageUris);
+      LOG.debug("Fetched page of " + page.length + " work items starting at " + from);
+      handler.handlePage(page);
+      numberOfWorkItems += page.length;
+    }
+    return numberOfWorkItems;
+  }
+
+  protected WorkItem[] fetchPage(String[] pageUris) throws RemoteException {
+    StringBuilder ids = new StringBuilder();
+    for (String uri : pageUris) {
+      String id = extractId(uri);
+      if (id == null) {
+        return fetchPageByUri(pageUris);
+      }
+      if (ids.length() > 0) {
+        ids.append(' ');
+      }
+      ids.append(id);
+    }
+
+    WorkItem[] page = trackerService.queryWorkItems("(" + query + ") AND id:(" + ids + ")", sort, fields);
+    return page == null ? new WorkItem[0] : page;
+  }
+
+  private WorkItem[] fetchPageByUri(String[] pageUris) throws RemoteException {
+    WorkItem[] page = new WorkItem[pageUris.length];
+    for (int i = 0; i < pageUris.length; i++) {
+      page[i] = trackerService.getWorkItemByUriWithFields(pageUris[i], fields);
+    }
+    return page;
+  }
+
+  /**
+   * Work item URIs end with the work item id, e.g. <code>subterra:data-service:objects:/default/elibrary${WorkItem}EL-42</code>.
+   */
+  public static String extractId(String uri) {
+    int separator = uri.lastIndexOf(ID_SEPARATOR);
+    if (separator < 0 || separator == uri.length() - 1) {
+      return null;
+    }
+    return uri.substring(separator + 1);
+  }
+
+  public interface PageHandler {
+    void handlePage(WorkItem[] page);
+  }
+}
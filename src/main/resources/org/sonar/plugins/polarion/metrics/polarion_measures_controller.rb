@@ -0,0 +1,70 @@
+#
+# Sonar, open source software quality management tool.
+# Copyright (C) 2009 SonarSource
+# mailto:contact AT sonarsource DOT com
+#
+# Sonar is free software; you can redistribute it and/or
+# modify it under the terms of the GNU Lesser General Public
+# License as published by the Free Software Foundation; either
+# version 3 of the License, or (at your option) any later version.
+#
+# Sonar is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+# Lesser General Public License for more details.
+#
+# You should have received a copy of the GNU Lesser General Public
+# License along with Sonar; if not, write to the Free Software
+# Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+#
+class Api::PolarionMeasuresController < Api::ApiController
+
+  #
+  # GET /api/plugins/polarion_measures/show?projects=<comma-separated Polarion project IDs>
+  #
+  # Returns the defect measures of the Polarion projects in the Java properties format, computed at most once per
+  # time to live for all the analyses of these projects. Only the Polarion projects configured in SonarQube projects
+  # the user can browse are accepted.
+  #
+  def show
+    require_parameters :projects
+    return access_denied unless polarion_projects_allowed?
+
+    render :text => shared_measures.getMeasures(params[:projects]), :content_type => 'text/plain'
+  end
+
+  #
+  # GET /api/plugins/polarion_measures/history?projects=<comma-separated Polarion project IDs>[&from=yyyy-MM-dd][&to=yyyy-MM-dd]
+  #
+  # Returns the number of defects per metric and enum option id counted by the server over time, as [timestamp, count] points,
+  # along with the latest name of the option.
+  #
+  def history
+    require_parameters :projects
+    return access_denied unless polarion_projects_allowed?
+
+    series = shared_measures.getHistory(params[:projects], params[:from], params[:to]).map do |trend|
+      {:metric => trend.getMetricKey(), :bucket => trend.getBucket(), :name => trend.getName(), :points => trend.getTimestamps().to_a.zip(trend.getCounts().to_a)}
+    end
+
+    respond_to do |format|
+      format.json { render :json => jsonp({:series => series}) }
+    end
+  end
+
+  private
+
+  def shared_measures
+    java_facade.getComponentByClassname('polarion', 'org.sonar.plugins.polarion.metrics.PolarionSharedMeasures')
+  end
+
+  def polarion_projects_allowed?
+    return false unless logged_in?
+    configured_project_ids = Property.find(:all, :conditions => ['prop_key=? AND user_id IS NULL AND resource_id IS NOT NULL', 'sonar.polarion.fetch.project.id']).select do |property|
+      project = Project.find_by_id(property.resource_id)
+      project && has_role?(:user, project)
+    end.map { |property| property.text_value }
+    shared_measures.isAllowed(params[:projects], configured_project_ids)
+  end
+
+end
@@ -0,0 +1,64 @@
+#
+# Sonar, open source software quality management tool.
+# Copyright (C) 2009 SonarSource
+# mailto:contact AT sonarsource DOT com
+#
+# Sonar is free software; you can redistribute it and/or
+# modify it under the terms of the GNU Lesser General Public
+# License as published by the Free Software Foundation; either
+# version 3 of the License, or (at your option) any later version.
+#
+# Sonar is distributed in the hope that it will be useful,
+# but WITHOUT ANY WARRANTY; without even the implied warranty of
+# MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+# Lesser General Public License for more details.
+#
+# You should have received a copy of the GNU Lesser General Public
+# License along with Sonar; if not, write to the Free Software
+# Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+#
+class Api::PolarionBulkLinkController < Api::ApiController
+
+  #
+  # POST /api/plugins/polarion_bulk_link/link?issues=<comma-separated issue keys>
+  #
+  # Creates the Polarion work items of all the issues with one Polarion session per worker,
+  # then links every created work item through the standard 'link-to-polarion' action.
+  #
+  def link
+    verify_post_request
+    require_parameters :issues
+
+    result = Internal.issues.find({'issues' => params[:issues], 'pageSize' => -1})
+    report = []
+    result.issues.group_by { |issue| result.project(issue).key }.each do |project_key, issues|
+      project = Project.by_key(project_key)
+      return access_denied unless project && has_role?(:user, project)
+
+      project_properties = java.util.HashMap.new
+      Property.find(:all, :conditions => ['resource_id=? AND user_id IS NULL AND prop_key LIKE ?', project.id, 'sonar.polarion.%']).each do |property|
+        project_properties.put(property.key, property.text_value)
+      end
+
+      linker = java_facade.getComponentByClassname('polarion', 'org.sonar.plugins.polarion.reviews.PolarionBulkLinker')
+      linker.createIssues(issues, project_properties).each do |link|
+        if link.isSuccess()
+          action_result = Internal.issues.executeAction(link.getIssueKey(), 'link-to-polarion')
+          if action_result.ok
+            report << {:issue => link.getIssueKey(), :polarion => link.getDefectId()}
+          else
+            report << {:issue => link.getIssueKey(), :polarion => link.getDefectId(), :error => action_result.errors.map { |error| error.text || error.l10nKey }.join(', ')}
+          end
+        else
+          report << {:issue => link.getIssueKey(), :error => link.getError()}
+        end
+      end
+    end
+
+    respond_to do |format|
+      format.json { render :json => jsonp({:links => report}) }
+      format.xml { render :xml => {:links => report}.to_xml(:skip_types => true, :root => 'links') }
+    end
+  end
+
+end
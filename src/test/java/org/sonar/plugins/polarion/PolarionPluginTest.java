@@ -27,7 +27,7 @@ import static org.fest.assertions.Assertions.assertThat;
 public class PolarionPluginTest {
   @Test
   public void testGetExtensions() throws Exception {
-    assertThat(new PolarionPlugin().getExtensions().size()).isEqualTo(7);
+    assertThat(new PolarionPlugin().getExtensions().size()).isEqualTo(22);
   }
 
 
@@ -0,0 +1,50 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Properties;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PolarionWorkDirectoryTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  @Test
+  public void shouldReplaceStoredPropertiesWithoutLeavingTemporaryFiles() throws Exception {
+    File dir = temp.newFolder();
+    File file = new File(dir, "measures.properties");
+    Properties properties = new Properties();
+    properties.setProperty("value", "1");
+    PolarionWorkDirectory.storeProperties(file, properties, null);
+
+    properties.setProperty("value", "2");
+    PolarionWorkDirectory.storeProperties(file, properties, null);
+
+    assertThat(PolarionWorkDirectory.loadProperties(file).getProperty("value")).isEqualTo("2");
+    assertThat(dir.list()).containsOnly("measures.properties");
+  }
+}
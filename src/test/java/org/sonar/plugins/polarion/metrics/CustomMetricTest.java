@@ -0,0 +1,99 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import com.polarion.alm.ws.client.types.tracker.EnumOptionId;
+import com.polarion.alm.ws.client.types.tracker.PriorityOptionId;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.measures.CoreMetrics;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CustomMetricTest {
+
+  @Test
+  public void shouldReadTheMetricsOfThePropertySet() {
+    Settings settings = new Settings();
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY, "1,2,3,4");
+    define(settings, "1", "openTasks", "task", "!resolved", "status");
+    define(settings, "2", "open-tasks", "task", null, "status");
+    define(settings, "3", "openIssues", "defect", null, "severity");
+    define(settings, "4", "regressions", "defect", "regression:true", "title");
+
+    List<CustomMetric> metrics = CustomMetric.fromSettings(settings);
+
+    assertThat(metrics).hasSize(1);
+    assertThat(metrics.get(0).getMetric().getKey()).isEqualTo("openTasks");
+    assertThat(metrics.get(0).getMetric().getName()).isEqualTo("openTasks");
+    assertThat(metrics.get(0).getMetric().getDomain()).isEqualTo(PolarionMetrics.ISSUES_DOMAIN);
+    assertThat(metrics.get(0).getBaseQuery()).isEqualTo("type:task AND (!resolved)");
+  }
+
+  @Test
+  public void shouldIgnoreTheMetricsReusingTheKeyOfACoreMetric() {
+    Settings settings = new Settings();
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY, "1,2");
+    define(settings, "1", CoreMetrics.COVERAGE_KEY, "task", null, "status");
+    define(settings, "2", CoreMetrics.NCLOC_KEY, "task", null, "status");
+
+    assertThat(CustomMetric.fromSettings(settings)).isEmpty();
+  }
+
+  @Test
+  public void shouldFetchTheWorkItemsOfMetricsSharingAQueryOnce() {
+    CustomMetric bySeverity = new CustomMetric("bySeverity", null, "defect", "!resolved", "severity");
+    CustomMetric byPriority = new CustomMetric("byPriority", null, "defect", " !resolved ", "priority");
+    CustomMetric requirements = new CustomMetric("requirements", null, "requirement", null, "status");
+
+    List<CustomMetric.Fetch> fetches = CustomMetric.plan(Arrays.asList(bySeverity, requirements, byPriority));
+
+    assertThat(fetches).hasSize(2);
+    assertThat(fetches.get(0).getBaseQuery()).isEqualTo("type:defect AND (!resolved)");
+    assertThat(fetches.get(0).getMetrics()).containsExactly(bySeverity, byPriority);
+    assertThat(fetches.get(0).getFields()).containsOnly("severity", "priority");
+    assertThat(fetches.get(1).getBaseQuery()).isEqualTo("type:requirement");
+    assertThat(fetches.get(1).getFields()).containsOnly("status");
+  }
+
+  @Test
+  public void shouldGroupWorkItemsByTheOptionOfTheirField() {
+    WorkItem workItem = new WorkItem();
+    workItem.setPriority(new PriorityOptionId("high"));
+    workItem.setStatus(new EnumOptionId("open"));
+
+    assertThat(new CustomMetric("m", null, "task", null, "priority").groupOf(workItem)).isEqualTo("high");
+    assertThat(new CustomMetric("m", null, "task", null, "status").groupOf(workItem)).isEqualTo("open");
+    assertThat(new CustomMetric("m", null, "task", null, "severity").groupOf(workItem)).isNull();
+  }
+
+  private static void define(Settings settings, String id, String key, String type, String query, String groupBy) {
+    String prefix = PolarionConstants.CUSTOM_METRICS_PROPERTY + "." + id + ".";
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_KEY_FIELD, key);
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_TYPE_FIELD, type);
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_QUERY_FIELD, query);
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_GROUP_BY_FIELD, groupBy);
+  }
+}
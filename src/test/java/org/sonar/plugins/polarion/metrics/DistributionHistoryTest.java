@@ -0,0 +1,135 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+import org.sonar.api.utils.KeyValueFormat;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class DistributionHistoryTest {
+  private static final long DAY = 24 * 3600 * 1000L;
+  private static final long HOUR = 3600 * 1000L;
+  private static final Map<String, String> NO_NAMES = Collections.emptyMap();
+
+  @Test
+  public void shouldDecodeTheEncodedHistory() throws Exception {
+    DistributionHistory history = new DistributionHistory();
+    history.add(measures(1000L, "critical=2;major=5", "done=1"));
+    history.add(measures(2000L, "critical=3;major=5;minor=1", "done=1"));
+    history.add(measures(3000L, "major=4", "done=2"));
+
+    List<TrendSeries> series = DistributionHistory.decode(history.encode()).getSeries(0, Long.MAX_VALUE);
+
+    assertThat(series).hasSize(4);
+    assertThat(series.get(0).getMetricKey()).isEqualTo(PolarionMetrics.OPENISSUES.getKey());
+    assertThat(series.get(0).getBucket()).isEqualTo("critical");
+    assertThat(series.get(0).getName()).isEqualTo("CRITICAL");
+    assertThat(series.get(0).getTimestamps()).containsExactly(1000L, 2000L, 3000L);
+    assertThat(series.get(0).getCounts()).containsExactly(2, 3, 0);
+    assertThat(series.get(1).getCounts()).containsExactly(5, 5, 4);
+    assertThat(series.get(2).getBucket()).isEqualTo("done");
+    assertThat(series.get(2).getCounts()).containsExactly(1, 1, 2);
+    assertThat(series.get(3).getBucket()).isEqualTo("minor");
+    assertThat(series.get(3).getCounts()).containsExactly(0, 1, 0);
+  }
+
+  @Test
+  public void unchangedSamplesShallOnlyCostTheirTime() {
+    DistributionHistory history = new DistributionHistory();
+    long start = 1400000000000L;
+    history.add(measures(start, "critical=200;major=5000", "done=10000"));
+    int firstSampleSize = history.encode().length;
+
+    for (int i = 1; i <= 100; i++) {
+      history.add(measures(start + i * 5 * 60 * 1000L, "critical=200;major=5000", "done=10000"));
+    }
+
+    assertThat(history.encode().length - firstSampleSize).isLessThanOrEqualTo(100 * 4);
+  }
+
+  @Test
+  public void renamedOptionsShallKeepTheirSeries() throws Exception {
+    DistributionHistory history = new DistributionHistory();
+    LastKnownMeasures before = new LastKnownMeasures(1000L);
+    before.addDistribution(PolarionMetrics.OPENISSUES.getKey(), ImmutableMap.of("critical", "Critical"), ImmutableMap.of("critical", 2));
+    history.add(before);
+    LastKnownMeasures after = new LastKnownMeasures(2000L);
+    after.addDistribution(PolarionMetrics.OPENISSUES.getKey(), ImmutableMap.of("critical", "Blocker"), ImmutableMap.of("critical", 3));
+    history.add(after);
+
+    List<TrendSeries> series = DistributionHistory.decode(history.encode()).getSeries(0, Long.MAX_VALUE);
+
+    assertThat(series).hasSize(1);
+    assertThat(series.get(0).getBucket()).isEqualTo("critical");
+    assertThat(series.get(0).getName()).isEqualTo("Blocker");
+    assertThat(series.get(0).getCounts()).containsExactly(2, 3);
+  }
+
+  @Test
+  public void shouldIgnoreSamplesWhichAreNotNewer() {
+    DistributionHistory history = new DistributionHistory();
+
+    assertThat(history.add(2000L, ImmutableMap.of("openIssues:critical", 1), NO_NAMES)).isTrue();
+    assertThat(history.add(2000L, ImmutableMap.of("openIssues:critical", 2), NO_NAMES)).isFalse();
+    assertThat(history.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldKeepTheLastSampleOfEveryDayBeforeTheGivenTime() {
+    DistributionHistory history = new DistributionHistory();
+    for (int hour = 0; hour < 72; hour += 6) {
+      history.add(hour * HOUR, ImmutableMap.of("openIssues:critical", hour), NO_NAMES);
+    }
+
+    history.downsample(2 * DAY);
+
+    TrendSeries series = history.getSeries(0, Long.MAX_VALUE).get(0);
+    assertThat(series.getTimestamps()).containsExactly(18 * HOUR, 42 * HOUR, 48 * HOUR, 54 * HOUR, 60 * HOUR, 66 * HOUR);
+    assertThat(history.getSeries(DAY, 2 * DAY).get(0).getCounts()).containsExactly(42, 48);
+  }
+
+  private static LastKnownMeasures measures(long timestamp, String openDistribution, String resolvedDistribution) {
+    LastKnownMeasures measures = new LastKnownMeasures(timestamp);
+    addDistribution(measures, PolarionMetrics.OPENISSUES.getKey(), openDistribution);
+    addDistribution(measures, PolarionMetrics.RESOLVEDISSUES.getKey(), resolvedDistribution);
+    return measures;
+  }
+
+  /**
+   * Adds the distribution of counts per option id, named after their id in upper case.
+   */
+  private static void addDistribution(LastKnownMeasures measures, String metricKey, String distribution) {
+    Map<String, Integer> counts = KeyValueFormat.parseStringInt(distribution);
+    Map<String, String> options = new LinkedHashMap<String, String>();
+    for (String optionId : counts.keySet()) {
+      options.put(optionId, optionId.toUpperCase(Locale.ENGLISH));
+    }
+    measures.addDistribution(metricKey, options, counts);
+  }
+}
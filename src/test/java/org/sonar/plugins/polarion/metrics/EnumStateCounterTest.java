@@ -0,0 +1,66 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.metrics;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class EnumStateCounterTest {
+
+  @Test
+  public void shouldCountPerEnumState() {
+    EnumStateCounter counter = new EnumStateCounter();
+    counter.increment("critical");
+    counter.increment("minor");
+    counter.increment("critical");
+    counter.add("major", 5);
+
+    assertThat(counter.get("critical")).isEqualTo(2);
+    assertThat(counter.get("minor")).isEqualTo(1);
+    assertThat(counter.get("major")).isEqualTo(5);
+    assertThat(counter.get("unknown")).isEqualTo(0);
+  }
+
+  @Test
+  public void shouldGrowBeyondInitialCapacity() {
+    EnumStateCounter counter = new EnumStateCounter();
+    for (int i = 0; i < 100; i++) {
+      counter.increment("state" + i);
+      counter.increment("state" + i);
+    }
+
+    Map<String, Integer> defectsPerEnumState = counter.toMap();
+
+    assertThat(defectsPerEnumState).hasSize(100);
+    assertThat(defectsPerEnumState.get("state0")).isEqualTo(2);
+    assertThat(defectsPerEnumState.get("state99")).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldBeEmptyUntilSomethingIsCounted() {
+    EnumStateCounter counter = new EnumStateCounter();
+
+    assertThat(counter.isEmpty()).isTrue();
+    assertThat(counter.toMap()).isEmpty();
+  }
+}
@@ -21,7 +21,9 @@
 package org.sonar.plugins.polarion.metrics;
 
 import org.junit.Test;
+import org.sonar.api.config.Settings;
 import org.sonar.api.measures.Metric;
+import org.sonar.plugins.polarion.PolarionConstants;
 
 import java.util.List;
 
@@ -36,4 +38,18 @@ public class PolarionMetricsTest {
       assertThat(metric.getDomain()).isEqualTo(PolarionMetrics.ISSUES_DOMAIN);
     }
   }
+
+  @Test
+  public void shouldAddTheCustomMetrics() {
+    Settings settings = new Settings();
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY, "1");
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY + ".1.key", "openRequirements");
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY + ".1.type", "requirement");
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY + ".1.groupBy", "status");
+
+    List<Metric> metrics = new PolarionMetrics(settings).getMetrics();
+
+    assertThat(metrics).hasSize(3);
+    assertThat(metrics.get(2).getKey()).isEqualTo("openRequirements");
+  }
 }
@@ -0,0 +1,98 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.standin.PolarionStandInServer;
+import org.sonar.plugins.polarion.standin.SyntheticDataset;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PolarionPollerTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private PolarionStandInServer server;
+  private Settings settings;
+  private PolarionSharedMeasures sharedMeasures;
+  private PolarionPoller poller;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new PolarionStandInServer(new SyntheticDataset(3, 20, 1L));
+    server.start();
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, server.getServerUrl());
+    settings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.getRoot().getAbsolutePath());
+    // a single fetch thread logs in once per count
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PARALLELISM_PROPERTY, "1");
+    sharedMeasures = new PolarionSharedMeasures(settings);
+    poller = new PolarionPoller(settings, sharedMeasures);
+  }
+
+  @After
+  public void tearDown() {
+    poller.stop();
+    server.stop();
+  }
+
+  @Test
+  public void shouldPollTheConfiguredAndTheRequestedProjects() {
+    settings.setProperty(PolarionConstants.POLLER_PROJECT_IDS_PROPERTY, "PROJ1, PROJ2");
+    sharedMeasures.getMeasures("PROJ3,PROJ2");
+    assertThat(server.getRequestCount("logIn")).isEqualTo(1);
+
+    poller.poll();
+
+    assertThat(server.getRequestCount("logIn")).isEqualTo(4);
+    sharedMeasures.getMeasures("PROJ1");
+    sharedMeasures.getMeasures("PROJ2,PROJ3");
+    assertThat(server.getRequestCount("logIn")).isEqualTo(4);
+  }
+
+  @Test
+  public void shouldServeThePreviousMeasuresWhenAPollFails() {
+    String measures = sharedMeasures.getMeasures("PROJ1");
+    server.setErrorRate(1.0);
+
+    poller.poll();
+
+    assertThat(sharedMeasures.getMeasures("PROJ1")).isEqualTo(measures);
+  }
+
+  @Test
+  public void shouldNotPollWithoutInterval() {
+    settings.setProperty(PolarionConstants.POLLER_PROJECT_IDS_PROPERTY, "PROJ1");
+
+    poller.start();
+
+    assertThat(server.getRequestCount("logIn")).isEqualTo(0);
+  }
+}
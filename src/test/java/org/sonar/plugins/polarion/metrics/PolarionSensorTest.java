@@ -22,6 +22,7 @@ package org.sonar.plugins.polarion.metrics;
 
 import org.sonar.plugins.polarion.metrics.PolarionSensor.DefectPerEnumState;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import com.polarion.alm.ws.client.projects.ProjectWebService;
@@ -37,22 +38,36 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sonar.api.batch.SensorContext;
 import org.sonar.api.config.Settings;
 import org.sonar.api.resources.Project;
 import org.sonar.api.test.IsMeasure;
 import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionCallMetrics;
+import org.sonar.plugins.polarion.soap.PolarionHttpTransport;
+import org.sonar.plugins.polarion.soap.PolarionResilience;
 import org.sonar.plugins.polarion.soap.PolarionSession;
 
 import java.rmi.RemoteException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.lang.String;
 
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -61,6 +76,8 @@ public class PolarionSensorTest {
 
   @Rule
   public ExpectedException thrown = ExpectedException.none();
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
 
   private PolarionSensor sensor;
   private Settings settings;
@@ -73,6 +90,7 @@ public class PolarionSensorTest {
     settings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "adminPwd");
     settings.setProperty(PolarionConstants.POLARION_FETCH_PROJECT_ID, "test1");
     settings.setProperty(PolarionConstants.POLARION_CREATE_PROJECT_ID, "test2");
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.getRoot().getAbsolutePath());
     sensor = new PolarionSensor(settings);
   }
 
@@ -190,7 +208,7 @@ public class PolarionSensorTest {
     when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
     when(polarionSoapService.getProjectService()).thenReturn(projectService);
     when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
-    String[] fields = { "id", "title", "severity", "priority", "status", "resolution"};
+    String[] fields = {"severity"};
     String query="type:defect AND !resolved AND project.id:" + settings.getString(PolarionConstants.POLARION_FETCH_PROJECT_ID);
     when(trackerService.queryWorkItems(query, null, fields)).thenReturn(new WorkItem[] {issue1, issue2, issue3});
 
@@ -218,7 +236,7 @@ public class PolarionSensorTest {
     when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
     when(polarionSoapService.getProjectService()).thenReturn(projectService);
     when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
-    String[] fields = { "id", "title", "severity", "priority", "status", "resolution"};
+    String[] fields = {"resolution"};
     String query="type:defect AND resolved AND project.id:" + settings.getString(PolarionConstants.POLARION_FETCH_PROJECT_ID);
     when(trackerService.queryWorkItems(query, null, fields)).thenReturn(new WorkItem[] {issue1, issue2, issue3});
 
@@ -228,6 +246,365 @@ public class PolarionSensorTest {
     assertThat(foundIssues.get("done")).isEqualTo(1);
   }
 
+  @Test
+  public void shouldCountDefectsPerEnumStateInCountMode() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_COUNT);
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    String query = "type:defect AND !resolved AND project.id:test1";
+    when(trackerService.getWorkItemsCount(query + " AND severity:critical")).thenReturn(2);
+    when(trackerService.getWorkItemsCount(query + " AND severity:minor")).thenReturn(0);
+
+    Map<String, String> severities = Maps.newHashMap();
+    severities.put("critical", "Critical");
+    severities.put("minor", "Minor");
+    Map<String, Integer> foundIssues = sensor.collectDefectsBySeverity(polarionSoapService, "test1", severities);
+
+    assertThat(foundIssues.size()).isEqualTo(1);
+    assertThat(foundIssues.get("critical")).isEqualTo(2);
+    verify(trackerService, never()).queryWorkItems(anyString(), anyString(), any(String[].class));
+  }
+
+  @Test
+  public void shouldEscapeEnumOptionIdsInCountQueries() throws Exception {
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(trackerService.getWorkItemsCount("type:defect AND severity:must\\ have\\:\\(1\\)")).thenReturn(3);
+
+    Map<String, Integer> foundIssues = sensor.countDefectsPerEnumState(polarionSoapService, "type:defect", "severity",
+      ImmutableMap.of("must have:(1)", "Must Have"));
+
+    assertThat(foundIssues.get("must have:(1)")).isEqualTo(3);
+    assertThat(PolarionSensor.luceneTerm("critical")).isEqualTo("critical");
+    assertThat(PolarionSensor.luceneTerm("a\\b\"c")).isEqualTo("a\\\\b\\\"c");
+  }
+
+  @Test
+  public void shouldFetchDefectsInAutoModeIfCountingIsMoreExpensive() throws Exception {
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    WorkItem issue1 = new WorkItem();
+    issue1.setResolution(new EnumOptionId("done"));
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    String query = "type:defect AND resolved AND project.id:test1";
+    when(trackerService.getWorkItemsCount(query)).thenReturn(1);
+    when(trackerService.queryWorkItems(anyString(), anyString(), any(String[].class))).thenReturn(new WorkItem[] {issue1});
+
+    Map<String, String> resolutions = Maps.newHashMap();
+    resolutions.put("done", "Done");
+    resolutions.put("rejected", "Rejected");
+    Map<String, Integer> foundIssues = sensor.collectDefectsByResolution(polarionSoapService, "test1", resolutions);
+
+    assertThat(foundIssues.get("done")).isEqualTo(1);
+    verify(trackerService).getWorkItemsCount(query);
+    verify(trackerService).queryWorkItems(anyString(), anyString(), any(String[].class));
+    verifyNoMoreInteractions(trackerService);
+  }
+
+  @Test
+  public void shouldCountFetchedDefectsPageByPage() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_FETCH);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "1");
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    WorkItem issue1 = new WorkItem();
+    issue1.setSeverity(new EnumOptionId("critical"));
+    WorkItem issue2 = new WorkItem();
+    issue2.setSeverity(new EnumOptionId("critical"));
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    String query = "type:defect AND !resolved AND project.id:test1";
+    when(trackerService.queryWorkItemUris(query, null)).thenReturn(new String[] {"uri}T-1", "uri}T-2"});
+    when(trackerService.queryWorkItems("(" + query + ") AND id:(T-1)", null, new String[] {"severity"})).thenReturn(new WorkItem[] {issue1});
+    when(trackerService.queryWorkItems("(" + query + ") AND id:(T-2)", null, new String[] {"severity"})).thenReturn(new WorkItem[] {issue2});
+
+    Map<String, Integer> foundIssues = sensor.collectDefectsBySeverity(polarionSoapService, "test1", Maps.<String, String>newHashMap());
+
+    assertThat(foundIssues.size()).isEqualTo(1);
+    assertThat(foundIssues.get("critical")).isEqualTo(2);
+  }
+
+  @Test
+  public void shouldSplitOpenAndResolvedDefectsInSinglePass() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_SINGLE_PASS);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "0");
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    SensorContext context = mock(SensorContext.class);
+    WorkItem openIssue = new WorkItem();
+    openIssue.setSeverity(new EnumOptionId("critical"));
+    WorkItem resolvedIssue = new WorkItem();
+    resolvedIssue.setSeverity(new EnumOptionId("minor"));
+    resolvedIssue.setResolution(new EnumOptionId("done"));
+    EnumOption critical = new EnumOption();
+    critical.setId("critical");
+    critical.setName("Critical");
+    EnumOption done = new EnumOption();
+    done.setId("done");
+    done.setName("Done");
+
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "severity", "defect")).thenReturn(new EnumOption[] {critical});
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "resolution", "defect")).thenReturn(new EnumOption[] {done});
+    when(trackerService.queryWorkItems("type:defect AND project.id:test1", null, new String[] {"severity", "resolution"}))
+        .thenReturn(new WorkItem[] {openIssue, resolvedIssue});
+
+    sensor.runAnalysis(context, polarionSoapService, "test1");
+
+    verify(projectService).getProject("test1");
+    verify(trackerService).queryWorkItems(anyString(), anyString(), any(String[].class));
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, 1.0)));
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.RESOLVEDISSUES, 1.0)));
+  }
+
+  @Test
+  public void shouldCountOpenDefectsWithoutSeverity() {
+    WorkItem withoutSeverity = new WorkItem();
+    WorkItem critical = new WorkItem();
+    critical.setSeverity(new EnumOptionId("critical"));
+    EnumStateCounter openDefectsBySeverity = new EnumStateCounter();
+    EnumStateCounter resolvedDefectsByResolution = new EnumStateCounter();
+
+    sensor.splitDefectsByResolution(new WorkItem[] {withoutSeverity, critical}, openDefectsBySeverity, resolvedDefectsByResolution);
+
+    assertThat(openDefectsBySeverity.get("")).isEqualTo(1);
+    assertThat(openDefectsBySeverity.get("critical")).isEqualTo(1);
+    assertThat(resolvedDefectsByResolution.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void shouldSaveTheMeasuresOfTheLastSuccessfulAnalysisAgain() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_SINGLE_PASS);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "0");
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    WorkItem openIssue = new WorkItem();
+    openIssue.setSeverity(new EnumOptionId("critical"));
+    EnumOption critical = new EnumOption();
+    critical.setId("critical");
+    critical.setName("Critical");
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "severity", "defect")).thenReturn(new EnumOption[] {critical});
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "resolution", "defect")).thenReturn(new EnumOption[0]);
+    when(trackerService.queryWorkItems(anyString(), anyString(), any(String[].class))).thenReturn(new WorkItem[] {openIssue});
+    assertThat(sensor.loadLastKnownMeasures(Arrays.asList("test1"))).isNull();
+
+    sensor.runAnalysis(mock(SensorContext.class), polarionSoapService, "test1");
+    SensorContext context = mock(SensorContext.class);
+    settings.setProperty(PolarionConstants.MEASURES_FRESHNESS_PROPERTY, "60");
+    PolarionCallMetrics callMetrics = new PolarionCallMetrics();
+    new PolarionSensor(settings, null, callMetrics, new PolarionHttpTransport(settings), new PolarionResilience(settings), null, null).analyse(null, context);
+
+    assertThat(callMetrics.getAllStats()).isEmpty();
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, 1.0, "Critical=1")));
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.RESOLVEDISSUES, 0.0)));
+    assertThat(sensor.loadLastKnownMeasures(Arrays.asList("test1", "test2"))).isNull();
+  }
+
+  @Test
+  public void shouldFallBackToTheLastSuccessfulAnalysisOnAnyFailure() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_SINGLE_PASS);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "0");
+    final PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    WorkItem openIssue = new WorkItem();
+    openIssue.setSeverity(new EnumOptionId("critical"));
+    EnumOption critical = new EnumOption();
+    critical.setId("critical");
+    critical.setName("Critical");
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "severity", "defect")).thenReturn(new EnumOption[] {critical});
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "resolution", "defect")).thenReturn(new EnumOption[0]);
+    when(trackerService.queryWorkItems(anyString(), anyString(), any(String[].class)))
+      .thenReturn(new WorkItem[] {openIssue})
+      .thenThrow(new IllegalStateException("Unexpected answer"));
+    sensor.runAnalysis(mock(SensorContext.class), polarionSoapService, "test1");
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(settings) {
+      @Override
+      protected PolarionSession openSession() {
+        return polarionSoapService;
+      }
+    }.analyse(null, context);
+
+    verify(polarionSoapService).disconnect();
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, 1.0, "Critical=1")));
+  }
+
+  @Test
+  public void incrementalModeShallOnlyFetchDefectsUpdatedSinceLastAnalysis() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_INCREMENTAL);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "0");
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.newFolder().getAbsolutePath());
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    EnumOption critical = new EnumOption();
+    critical.setId("critical");
+    critical.setName("Critical");
+    EnumOption done = new EnumOption();
+    done.setId("done");
+    done.setName("Done");
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "severity", "defect")).thenReturn(new EnumOption[] {critical});
+    when(trackerService.getEnumOptionsForKeyWithControl("test1", "resolution", "defect")).thenReturn(new EnumOption[] {done});
+    WorkItem openIssue = new WorkItem();
+    openIssue.setId("TEST-1");
+    openIssue.setSeverity(new EnumOptionId("critical"));
+    WorkItem resolvedIssue = new WorkItem();
+    resolvedIssue.setId("TEST-2");
+    resolvedIssue.setSeverity(new EnumOptionId("critical"));
+    resolvedIssue.setResolution(new EnumOptionId("done"));
+    when(trackerService.queryWorkItems(eq("type:defect AND project.id:test1"), anyString(), any(String[].class)))
+        .thenReturn(new WorkItem[] {openIssue, resolvedIssue});
+    SensorContext firstContext = mock(SensorContext.class);
+
+    sensor.runAnalysis(firstContext, polarionSoapService, "test1");
+
+    verify(firstContext).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, 1.0)));
+    verify(firstContext).saveMeasure(argThat(new IsMeasure(PolarionMetrics.RESOLVEDISSUES, 1.0)));
+
+    WorkItem nowResolvedIssue = new WorkItem();
+    nowResolvedIssue.setId("TEST-1");
+    nowResolvedIssue.setSeverity(new EnumOptionId("critical"));
+    nowResolvedIssue.setResolution(new EnumOptionId("done"));
+    when(trackerService.queryWorkItems(startsWith("type:defect AND project.id:test1 AND updated:["), anyString(), any(String[].class)))
+        .thenReturn(new WorkItem[] {nowResolvedIssue});
+    SensorContext secondContext = mock(SensorContext.class);
+
+    sensor.runAnalysis(secondContext, polarionSoapService, "test1");
+
+    verify(trackerService, times(1)).queryWorkItems(eq("type:defect AND project.id:test1"), anyString(), any(String[].class));
+    verify(secondContext).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, 0.0)));
+    verify(secondContext).saveMeasure(argThat(new IsMeasure(PolarionMetrics.RESOLVEDISSUES, 2.0)));
+  }
+
+  @Test
+  public void defectsOfSeveralProjectsShallBeAddedUp() throws Exception {
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_SINGLE_PASS);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "0");
+    // both projects are queried at the same time, the second one with a session of its own
+    CountDownLatch bothQueried = new CountDownLatch(2);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    when(projectService.getProject(anyString())).thenReturn(new com.polarion.alm.ws.client.types.projects.Project());
+    TrackerWebService trackerService = mockSeveralProjectsTrackerService(bothQueried);
+    TrackerWebService workerTrackerService = mockSeveralProjectsTrackerService(bothQueried);
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    final PolarionSession workerSession = mock(PolarionSession.class);
+    when(workerSession.getTrackerService()).thenReturn(workerTrackerService);
+    when(workerSession.getProjectService()).thenReturn(projectService);
+    sensor = new PolarionSensor(settings) {
+      @Override
+      protected PolarionSession openSession() {
+        return workerSession;
+      }
+    };
+    SensorContext context = mock(SensorContext.class);
+
+    sensor.runAnalysis(context, polarionSoapService, Arrays.asList("p1", "p2"));
+
+    verify(projectService).getProject("p1");
+    verify(projectService).getProject("p2");
+    verify(trackerService, times(1)).queryWorkItems(anyString(), anyString(), any(String[].class));
+    verify(workerTrackerService, times(1)).queryWorkItems(anyString(), anyString(), any(String[].class));
+    verify(workerSession).disconnect();
+    verify(polarionSoapService, never()).disconnect();
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, 2.0)));
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.RESOLVEDISSUES, 1.0)));
+  }
+
+  private static TrackerWebService mockSeveralProjectsTrackerService(final CountDownLatch bothQueried) throws RemoteException {
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    EnumOption critical = new EnumOption();
+    critical.setId("critical");
+    critical.setName("Critical");
+    EnumOption major = new EnumOption();
+    major.setId("major");
+    major.setName("Major");
+    EnumOption done = new EnumOption();
+    done.setId("done");
+    done.setName("Done");
+    when(trackerService.getEnumOptionsForKeyWithControl("p1", "severity", "defect")).thenReturn(new EnumOption[] {critical});
+    when(trackerService.getEnumOptionsForKeyWithControl("p2", "severity", "defect")).thenReturn(new EnumOption[] {critical, major});
+    when(trackerService.getEnumOptionsForKeyWithControl(anyString(), eq("resolution"), eq("defect"))).thenReturn(new EnumOption[] {done});
+    final WorkItem openIssue = new WorkItem();
+    openIssue.setSeverity(new EnumOptionId("critical"));
+    WorkItem resolvedIssue = new WorkItem();
+    resolvedIssue.setSeverity(new EnumOptionId("major"));
+    resolvedIssue.setResolution(new EnumOptionId("done"));
+    when(trackerService.queryWorkItems(eq("type:defect AND project.id:p1"), anyString(), any(String[].class)))
+        .thenAnswer(new AwaitingAnswer(bothQueried, new WorkItem[] {openIssue}));
+    when(trackerService.queryWorkItems(eq("type:defect AND project.id:p2"), anyString(), any(String[].class)))
+        .thenAnswer(new AwaitingAnswer(bothQueried, new WorkItem[] {openIssue, resolvedIssue}));
+    return trackerService;
+  }
+
+  /**
+   * Answers once the latch is released, so that the queries of all projects are in flight at the same time.
+   */
+  private static class AwaitingAnswer implements Answer<WorkItem[]> {
+    private final CountDownLatch latch;
+    private final WorkItem[] workItems;
+
+    AwaitingAnswer(CountDownLatch latch, WorkItem[] workItems) {
+      this.latch = latch;
+      this.workItems = workItems;
+    }
+
+    public WorkItem[] answer(InvocationOnMock invocation) throws InterruptedException {
+      latch.countDown();
+      assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+      return workItems;
+    }
+  }
+
+  @Test
+  public void projectDefectsShallBeMergedByEnumStateId() throws Exception {
+    PolarionSensor.ProjectDefects first = new PolarionSensor.ProjectDefects();
+    first.getOpenDefectsBySeverity().put("critical", 2);
+    PolarionSensor.ProjectDefects second = new PolarionSensor.ProjectDefects();
+    second.getOpenDefectsBySeverity().put("critical", 3);
+    second.getOpenDefectsBySeverity().put("minor", 1);
+
+    first.add(second);
+
+    assertThat(first.getOpenDefectsBySeverity().get("critical")).isEqualTo(5);
+    assertThat(first.getOpenDefectsBySeverity().get("minor")).isEqualTo(1);
+  }
+
+  @Test
+  public void countingShallBeCheaperOnlyForManyDefects() throws Exception {
+    assertThat(sensor.isCountingCheaperThanFetching(5, 10)).isFalse();
+    assertThat(sensor.isCountingCheaperThanFetching(5, 40000)).isTrue();
+
+    settings.setProperty(PolarionConstants.POLARION_ITEMS_PER_ROUND_TRIP_PROPERTY, "1");
+    assertThat(sensor.isCountingCheaperThanFetching(5, 10)).isTrue();
+  }
+
   @Test
   public void distributionForEmptyEnumStateShouldBeZero() throws Exception {
     Map<String, String> enumStates = Maps.newHashMap();
@@ -289,7 +666,26 @@ public class PolarionSensorTest {
     when(projectService.getProject(anyString())).thenReturn(polarionProject);
     String polarionProjectId = "test";
     String query = "testQuery";
-    sensor.getDefectsForProject(query, service, polarionProjectId);
+    sensor.getDefectsForProject(query, service, polarionProjectId, new String[] {"severity"});
+  }
+
+  @Test
+  public void shouldOnlyFetchTheFieldsOfTheComputedMetrics() {
+    assertThat(PolarionSensor.fieldsToFetch(false, PolarionMetrics.OPENISSUES)).containsOnly("severity");
+    assertThat(PolarionSensor.fieldsToFetch(false, PolarionMetrics.RESOLVEDISSUES)).containsOnly("resolution");
+    assertThat(PolarionSensor.fieldsToFetch(false, PolarionMetrics.OPENISSUES, PolarionMetrics.RESOLVEDISSUES))
+      .containsOnly("severity", "resolution");
+    assertThat(PolarionSensor.fieldsToFetch(true, PolarionMetrics.RESOLVEDISSUES)).containsOnly("id", "resolution");
+  }
+
+  @Test
+  public void shouldQueryTheDefectsOfAnEnumOptionWithSql() {
+    assertThat(PolarionSensor.defectsSql("PROJ'1", "severity", "critical")).isEqualTo(
+      "SELECT WORKITEM.C_URI FROM WORKITEM INNER JOIN PROJECT ON PROJECT.C_URI = WORKITEM.FK_URI_PROJECT"
+        + " WHERE PROJECT.C_ID = 'PROJ''1' AND WORKITEM.C_TYPE = 'defect'"
+        + " AND WORKITEM.C_RESOLUTION IS NULL AND WORKITEM.C_SEVERITY = 'critical'");
+    assertThat(PolarionSensor.defectsSql("PROJ1", "resolution", "done")).endsWith(
+      "WORKITEM.C_TYPE = 'defect' AND WORKITEM.C_RESOLUTION = 'done'");
   }
 
   @Test
@@ -0,0 +1,255 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.metrics;
+
+import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.config.Settings;
+import org.sonar.api.resources.Project;
+import org.sonar.api.test.IsMeasure;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.standin.PolarionStandInServer;
+import org.sonar.plugins.polarion.standin.SyntheticDataset;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+public class PolarionSharedMeasuresTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private SyntheticDataset dataset;
+  private PolarionStandInServer server;
+  private HttpServer sonarServer;
+  private Settings settings;
+  private PolarionSharedMeasures sharedMeasures;
+
+  @Before
+  public void setUp() throws Exception {
+    dataset = new SyntheticDataset(2, 50, 1L);
+    server = new PolarionStandInServer(dataset);
+    server.start();
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, server.getServerUrl());
+    settings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.newFolder().getAbsolutePath());
+    // a single fetch thread logs in once per count
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PARALLELISM_PROPERTY, "1");
+    sharedMeasures = new PolarionSharedMeasures(settings);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+    if (sonarServer != null) {
+      sonarServer.stop(0);
+    }
+  }
+
+  @Test
+  public void concurrentRequestsShallShareOneCount() throws Exception {
+    server.setLatency(100, 100);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<String>> requests = Lists.newArrayList();
+    for (int i = 0; i < 4; i++) {
+      final String projectIds = i % 2 == 0 ? "PROJ1,PROJ2" : "PROJ2, PROJ1";
+      requests.add(executor.submit(new Callable<String>() {
+        public String call() {
+          return sharedMeasures.getMeasures(projectIds);
+        }
+      }));
+    }
+
+    String first = requests.get(0).get();
+    for (Future<String> request : requests) {
+      assertThat(request.get()).isEqualTo(first);
+    }
+    executor.shutdown();
+    assertThat(server.getRequestCount("logIn")).isEqualTo(1);
+    assertThat(first).doesNotMatch("(?s)^#.*");
+    java.util.Properties shared = new java.util.Properties();
+    shared.load(new java.io.ByteArrayInputStream(first.getBytes("ISO-8859-1")));
+    assertThat(shared.getProperty(PolarionSharedMeasures.SERVER_KEY)).isEqualTo(server.getServerUrl());
+    assertThat(shared.getProperty(PolarionMetrics.OPENISSUES.getKey() + ".value"))
+      .isEqualTo(String.valueOf((double) dataset.query("!resolved").size()));
+  }
+
+  @Test
+  public void shouldCountTheDefectsAgainOnceExpired() {
+    sharedMeasures.getMeasures("PROJ1");
+    sharedMeasures.getMeasures("PROJ1");
+    assertThat(server.getRequestCount("logIn")).isEqualTo(1);
+
+    settings.setProperty(PolarionConstants.SHARED_MEASURES_TTL_PROPERTY, "0");
+    sharedMeasures.getMeasures("PROJ1");
+    assertThat(server.getRequestCount("logIn")).isEqualTo(2);
+  }
+
+  @Test
+  public void everyCountShallBeRecordedInTheHistory() {
+    sharedMeasures.refresh("PROJ1,PROJ2");
+    sharedMeasures.refresh("PROJ2,PROJ1");
+
+    List<TrendSeries> history = sharedMeasures.getHistory("PROJ2, PROJ1", "2000-01-01", null);
+    assertThat(history).isNotEmpty();
+    int openDefects = 0;
+    for (TrendSeries series : history) {
+      assertThat(series.getTimestamps()).hasSize(2);
+      if (PolarionMetrics.OPENISSUES.getKey().equals(series.getMetricKey())) {
+        openDefects += series.getCounts().get(1);
+      }
+    }
+    assertThat(openDefects).isEqualTo(dataset.query("!resolved").size());
+    assertThat(sharedMeasures.getHistory("PROJ1,PROJ2", null, "2000-01-01").get(0).getTimestamps()).isEmpty();
+  }
+
+  @Test
+  public void historyOfProjectsNeverCountedShallBeEmpty() {
+    assertThat(sharedMeasures.getHistory("PROJ1", null, null)).isEmpty();
+  }
+
+  @Test
+  public void historiesShallBeKeptPerPolarionServer() {
+    sharedMeasures.refresh("PROJ1");
+    assertThat(sharedMeasures.getHistory("PROJ1", null, null)).isNotEmpty();
+
+    settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, "http://other-polarion");
+    assertThat(sharedMeasures.getHistory("PROJ1", null, null)).isEmpty();
+  }
+
+  @Test
+  public void onlyProjectsConfiguredInBrowsableProjectsShallBeAllowed() {
+    List<String> configured = Lists.newArrayList("PROJ1", "PROJ2, PROJ3", null);
+
+    assertThat(sharedMeasures.isAllowed("PROJ3,PROJ1", configured)).isTrue();
+    assertThat(sharedMeasures.isAllowed("PROJ1,PROJ4", configured)).isFalse();
+    assertThat(sharedMeasures.isAllowed(" , ", configured)).isFalse();
+    assertThat(sharedMeasures.isAllowed("PROJ1", Collections.<String>emptyList())).isFalse();
+  }
+
+  @Test
+  public void requestsOlderThanTheActivePeriodShallBeEvicted() {
+    final long[] now = {1000L};
+    sharedMeasures = new PolarionSharedMeasures(settings) {
+      @Override
+      protected long now() {
+        return now[0];
+      }
+    };
+    sharedMeasures.getMeasures("PROJ1");
+    now[0] += PolarionSharedMeasures.ACTIVE_PERIOD_MS / 2;
+    sharedMeasures.getMeasures("PROJ2");
+    assertThat(sharedMeasures.getRequestedProjectIds(0L)).containsOnly("PROJ1", "PROJ2");
+
+    now[0] += PolarionSharedMeasures.ACTIVE_PERIOD_MS + 1;
+    sharedMeasures.getMeasures("PROJ1");
+    assertThat(sharedMeasures.getRequestedProjectIds(0L)).containsOnly("PROJ1");
+  }
+
+  @Test
+  public void sensorsShallSaveTheMeasuresSharedByTheServer() throws Exception {
+    startSonarServer();
+    Settings sensorSettings = sensorSettings();
+    sensorSettings.setProperty(PolarionConstants.SONAR_HOST_URL_PROPERTY, "http://localhost:" + sonarServer.getAddress().getPort() + "/");
+
+    for (int i = 0; i < 3; i++) {
+      SensorContext context = mock(SensorContext.class);
+      new PolarionSensor(sensorSettings).analyse(new Project("sonar-project"), context);
+      verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, (double) dataset.query("!resolved").size())));
+      verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.RESOLVEDISSUES, (double) dataset.query("resolved").size())));
+    }
+    assertThat(server.getRequestCount("logIn")).isEqualTo(1);
+  }
+
+  @Test
+  public void sensorShallQueryPolarionWhenTheServerDoesNotShareMeasures() throws Exception {
+    Settings sensorSettings = sensorSettings();
+    sensorSettings.setProperty(PolarionConstants.SONAR_HOST_URL_PROPERTY, "http://localhost:" + freePort());
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(sensorSettings).analyse(new Project("sonar-project"), context);
+
+    verify(context).saveMeasure(argThat(new IsMeasure(PolarionMetrics.OPENISSUES, (double) dataset.query("!resolved").size())));
+    assertThat(server.getRequestCount("logIn")).isEqualTo(1);
+  }
+
+  private Settings sensorSettings() throws IOException {
+    Settings sensorSettings = new Settings();
+    sensorSettings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, server.getServerUrl());
+    sensorSettings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "admin");
+    sensorSettings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "admin");
+    sensorSettings.setProperty(PolarionConstants.POLARION_FETCH_PROJECT_ID, "PROJ1,PROJ2");
+    sensorSettings.setProperty(PolarionConstants.SHARED_MEASURES_PROPERTY, "true");
+    sensorSettings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.newFolder().getAbsolutePath());
+    sensorSettings.setProperty(PolarionConstants.POLARION_FETCH_PARALLELISM_PROPERTY, "1");
+    return sensorSettings;
+  }
+
+  /**
+   * Stands in for the web service of the SonarQube server.
+   */
+  private void startSonarServer() throws IOException {
+    sonarServer = HttpServer.create(new InetSocketAddress(0), 0);
+    sonarServer.createContext(PolarionConstants.SHARED_MEASURES_WS_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        byte[] body = sharedMeasures.getMeasures(query.substring(query.indexOf('=') + 1)).getBytes("ISO-8859-1");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream output = exchange.getResponseBody();
+        output.write(body);
+        output.close();
+      }
+    });
+    sonarServer.start();
+  }
+
+  private static int freePort() throws IOException {
+    java.net.ServerSocket socket = new java.net.ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
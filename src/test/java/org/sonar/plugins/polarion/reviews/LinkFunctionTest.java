@@ -77,6 +77,47 @@ public class LinkFunctionTest {
     function.createPolarionIssue(context);
   }
 
+  @Test
+  public void should_queue_link_in_async_mode() throws Exception {
+    PolarionLinkOutbox outbox = mock(PolarionLinkOutbox.class);
+    when(outbox.enqueue(sonarIssue, settings)).thenReturn("ticket");
+    settings.setProperty(PolarionConstants.LINK_ASYNC_PROPERTY, "true");
+    function = new LinkFunction(polarionIssueCreator, outbox);
+
+    function.queuePolarionIssue(context);
+
+    verify(context).setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, "pending:ticket");
+    verify(polarionIssueCreator, never()).createIssue(sonarIssue, settings);
+  }
+
+  @Test
+  public void should_complete_pending_link() throws Exception {
+    PolarionLinkOutbox outbox = mock(PolarionLinkOutbox.class);
+    when(outbox.getState("ticket")).thenReturn(PolarionLinkOutbox.State.DONE);
+    when(outbox.getDefectId("ticket")).thenReturn("FOO-15");
+    ((DefaultIssue) sonarIssue).setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, "pending:ticket");
+    function = new LinkFunction(polarionIssueCreator, outbox);
+
+    function.execute(context);
+
+    verify(context).setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, "FOO-15");
+    verify(context).addComment(anyString());
+    verify(outbox).acknowledge("ticket");
+  }
+
+  @Test
+  public void should_fail_to_complete_link_still_in_progress() throws Exception {
+    PolarionLinkOutbox outbox = mock(PolarionLinkOutbox.class);
+    when(outbox.getState("ticket")).thenReturn(PolarionLinkOutbox.State.PENDING);
+    ((DefaultIssue) sonarIssue).setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, "pending:ticket");
+    function = new LinkFunction(polarionIssueCreator, outbox);
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("still being linked");
+
+    function.execute(context);
+  }
+
   @Test
   public void test_create_comment() throws Exception {
     settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, "http://my.polarion.server");
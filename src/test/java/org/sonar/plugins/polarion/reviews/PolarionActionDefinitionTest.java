@@ -40,6 +40,10 @@ public class PolarionActionDefinitionTest {
     assertThat(action.key()).isEqualTo("link-to-polarion");
     assertThat(action.functions().get(0)).isEqualTo(function);
     assertThat(action.conditions()).isNotEmpty();
+
+    Action update = actions.list().get(1);
+    assertThat(update.key()).isEqualTo("update-polarion-link");
+    assertThat(update.functions().get(0)).isEqualTo(function);
   }
 }
 
@@ -0,0 +1,160 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+import com.google.common.collect.ImmutableMap;
+import com.polarion.alm.ws.client.projects.ProjectWebService;
+import com.polarion.alm.ws.client.types.projects.Project;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionSession;
+
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.*;
+
+public class PolarionBulkLinkerTest {
+
+  private PolarionIssueCreator polarionIssueCreator;
+  private PolarionLinkOutbox outbox;
+  private PolarionSession soapSession;
+  private Project polarionProject;
+  private Settings settings;
+  private PolarionBulkLinker linker;
+  private Map<String, String> projectProperties;
+
+  @Before
+  public void init() throws Exception {
+    polarionIssueCreator = mock(PolarionIssueCreator.class);
+    outbox = mock(PolarionLinkOutbox.class);
+    soapSession = mock(PolarionSession.class);
+    polarionProject = mock(Project.class);
+    when(polarionIssueCreator.openSession(any(Settings.class))).thenReturn(soapSession);
+    when(soapSession.getProjectService()).thenReturn(mock(ProjectWebService.class));
+    when(polarionIssueCreator.lookupPolarionProject(any(ProjectWebService.class), any(Settings.class))).thenReturn(polarionProject);
+
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.BULK_LINK_PARALLELISM_PROPERTY, 1);
+    projectProperties = ImmutableMap.of(PolarionConstants.POLARION_CREATE_PROJECT_ID, "TEST");
+    linker = new PolarionBulkLinker(polarionIssueCreator, outbox, settings);
+  }
+
+  @Test
+  public void should_link_all_issues_with_one_session_and_one_project_lookup() throws Exception {
+    Issue first = new DefaultIssue().setKey("ABCD");
+    Issue second = new DefaultIssue().setKey("EFGH");
+    when(polarionIssueCreator.createWorkItem(same(first), same(soapSession), same(polarionProject), any(Settings.class))).thenReturn("TEST-1");
+    when(polarionIssueCreator.createWorkItem(same(second), same(soapSession), same(polarionProject), any(Settings.class))).thenReturn("TEST-2");
+
+    List<BulkLinkResult> results = linker.createIssues(Arrays.asList(first, second), projectProperties);
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).isSuccess()).isTrue();
+    assertThat(results.get(0).getDefectId()).isEqualTo("TEST-1");
+    assertThat(results.get(1).getDefectId()).isEqualTo("TEST-2");
+    verify(polarionIssueCreator, times(1)).openSession(any(Settings.class));
+    verify(polarionIssueCreator, times(1)).lookupPolarionProject(any(ProjectWebService.class), any(Settings.class));
+    verify(polarionIssueCreator).closeSession(soapSession, true);
+    verify(outbox).recordCompleted("ABCD", "TEST-1");
+    verify(outbox).recordCompleted("EFGH", "TEST-2");
+  }
+
+  @Test
+  public void should_report_failed_issue_and_continue() throws Exception {
+    Issue first = new DefaultIssue().setKey("ABCD");
+    Issue second = new DefaultIssue().setKey("EFGH");
+    when(polarionIssueCreator.createWorkItem(same(first), same(soapSession), same(polarionProject), any(Settings.class)))
+      .thenThrow(new RemoteException("Server Error"));
+    when(polarionIssueCreator.createWorkItem(same(second), same(soapSession), same(polarionProject), any(Settings.class))).thenReturn("TEST-2");
+
+    List<BulkLinkResult> results = linker.createIssues(Arrays.asList(first, second), projectProperties);
+
+    assertThat(results.get(0).isSuccess()).isFalse();
+    assertThat(results.get(0).getError()).isEqualTo("Server Error");
+    assertThat(results.get(1).isSuccess()).isTrue();
+    verify(outbox, never()).recordCompleted(eq("ABCD"), anyString());
+    verify(polarionIssueCreator).closeSession(soapSession, true);
+  }
+
+  @Test
+  public void should_skip_issues_already_linked() throws Exception {
+    Issue linked = new DefaultIssue().setKey("ABCD").setAttribute(PolarionConstants.SONAR_ISSUE_DATA_PROPERTY_KEY, "TEST-1");
+
+    List<BulkLinkResult> results = linker.createIssues(Collections.singletonList(linked), projectProperties);
+
+    assertThat(results).hasSize(1);
+    assertThat(results.get(0).isSuccess()).isFalse();
+    verify(polarionIssueCreator, never()).openSession(any(Settings.class));
+  }
+
+  @Test
+  public void should_skip_resolved_issues() throws Exception {
+    Issue resolved = new DefaultIssue().setKey("ABCD").setResolution(Issue.RESOLUTION_FIXED);
+
+    List<BulkLinkResult> results = linker.createIssues(Collections.singletonList(resolved), projectProperties);
+
+    assertThat(results).hasSize(1);
+    assertThat(results.get(0).isSuccess()).isFalse();
+    assertThat(results.get(0).getError()).isEqualTo("Issue is resolved");
+    verify(polarionIssueCreator, never()).openSession(any(Settings.class));
+  }
+
+  @Test
+  public void should_leave_issues_to_the_workers_which_could_connect() throws Exception {
+    settings.setProperty(PolarionConstants.BULK_LINK_PARALLELISM_PROPERTY, 2);
+    when(polarionIssueCreator.openSession(any(Settings.class))).thenThrow(new IllegalStateException("Connection refused")).thenReturn(soapSession);
+    Issue first = new DefaultIssue().setKey("ABCD");
+    Issue second = new DefaultIssue().setKey("EFGH");
+    when(polarionIssueCreator.createWorkItem(same(first), same(soapSession), same(polarionProject), any(Settings.class))).thenReturn("TEST-1");
+    when(polarionIssueCreator.createWorkItem(same(second), same(soapSession), same(polarionProject), any(Settings.class))).thenReturn("TEST-2");
+
+    List<BulkLinkResult> results = linker.createIssues(Arrays.asList(first, second), projectProperties);
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).isSuccess()).isTrue();
+    assertThat(results.get(1).isSuccess()).isTrue();
+  }
+
+  @Test
+  public void should_report_remaining_issues_when_no_worker_could_connect() throws Exception {
+    when(polarionIssueCreator.openSession(any(Settings.class))).thenThrow(new IllegalStateException("Connection refused"));
+
+    List<BulkLinkResult> results = linker.createIssues(Arrays.<Issue>asList(new DefaultIssue().setKey("ABCD"), new DefaultIssue().setKey("EFGH")),
+      projectProperties);
+
+    assertThat(results).hasSize(2);
+    assertThat(results.get(0).isSuccess()).isFalse();
+    assertThat(results.get(0).getError()).isEqualTo("Connection refused");
+    assertThat(results.get(1).getIssueKey()).isEqualTo("EFGH");
+  }
+}
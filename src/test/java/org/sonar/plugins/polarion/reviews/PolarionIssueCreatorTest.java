@@ -36,6 +36,7 @@ import com.polarion.alm.ws.client.projects.ProjectWebService;
 import com.polarion.alm.ws.client.tracker.TrackerWebService;
 import com.polarion.alm.ws.client.types.tracker.WorkItem;
 import org.sonar.plugins.polarion.soap.PolarionSession;
+import org.sonar.plugins.polarion.soap.PolarionSessionPool;
 import org.sonar.plugins.polarion.PolarionConstants;
 
 import org.junit.Before;
@@ -58,8 +59,11 @@ import java.util.Date;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -171,7 +175,7 @@ public class PolarionIssueCreatorTest {
     when(trackerService.createWorkItem(any(WorkItem.class))).thenReturn("hejsan");
     WorkItem wi = new WorkItem();
     wi.setId("wiId");
-    when(trackerService.getWorkItemByUri(anyString())).thenReturn(wi);
+    when(trackerService.getWorkItemByUriWithFields(anyString(), any(String[].class))).thenReturn(wi);
 
     // Verify
     String returnedIssue = polarionIssueCreator.doCreateIssue(sonarIssue, polarionSoapService, settings);
@@ -182,6 +186,91 @@ public class PolarionIssueCreatorTest {
     assertThat(returnedIssue).isEqualTo(wi.getId());
   }
 
+  @Test
+  public void shouldCreateIssueWithPooledSession() throws Exception {
+    PolarionSessionPool sessionPool = mock(PolarionSessionPool.class);
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    when(sessionPool.borrowSession("http://my.polarion.com", "foo", "bar")).thenReturn(polarionSoapService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenReturn(mock(Project.class));
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    when(trackerService.createWorkItem(any(WorkItem.class))).thenReturn("subterra:data-service:objects:/default/TEST${WorkItem}wiId");
+
+    String returnedIssue = new PolarionIssueCreator(ruleFinder, sessionPool, null).createIssue(sonarIssue, settings);
+
+    assertThat(returnedIssue).isEqualTo("wiId");
+    verify(trackerService, never()).getWorkItemByUriWithFields(anyString(), any(String[].class));
+    verify(sessionPool).releaseSession(polarionSoapService);
+    verify(polarionSoapService, never()).disconnect();
+  }
+
+  @Test
+  public void shouldInvalidatePooledSessionIfCreationFails() throws Exception {
+    PolarionSessionPool sessionPool = mock(PolarionSessionPool.class);
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    when(sessionPool.borrowSession("http://my.polarion.com", "foo", "bar")).thenReturn(polarionSoapService);
+    when(polarionSoapService.getProjectService()).thenReturn(projectService);
+    when(projectService.getProject(anyString())).thenThrow(new RemoteException("Server Error"));
+
+    try {
+      new PolarionIssueCreator(ruleFinder, sessionPool, null).createIssue(sonarIssue, settings);
+    } catch (RemoteException e) {
+      // expected
+    }
+
+    verify(sessionPool).invalidateSession(polarionSoapService);
+    verify(sessionPool, never()).releaseSession(polarionSoapService);
+  }
+
+  @Test
+  public void shouldAddReviewThreadAsOneComment() throws Exception {
+    DefaultIssueComment secondComment = new DefaultIssueComment();
+    secondComment.setUserLogin("john");
+    secondComment.setMarkdownText("done");
+    secondComment.setCreatedAt(new Date());
+    ((DefaultIssue) sonarIssue).addComment(secondComment);
+    settings.setProperty(PolarionConstants.LINK_COMMENTS_MODE_PROPERTY, PolarionConstants.COMMENTS_MODE_COMBINED);
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    String wiUri = "subterra:data-service:objects:/default/TEST${WorkItem}TEST-1";
+    when(trackerService.createWorkItem(any(WorkItem.class))).thenReturn(wiUri);
+
+    String returnedIssue = polarionIssueCreator.createWorkItem(sonarIssue, polarionSoapService, mock(Project.class), settings);
+
+    assertThat(returnedIssue).isEqualTo("TEST-1");
+    verify(trackerService, times(1)).createCommentNew(eq(wiUri), anyString(), any(Text.class), any(String[].class));
+  }
+
+  @Test
+  public void shouldAddOneCommentPerReviewCommentInSeparateMode() throws Exception {
+    DefaultIssueComment secondComment = new DefaultIssueComment();
+    secondComment.setUserLogin("john");
+    secondComment.setMarkdownText("done");
+    ((DefaultIssue) sonarIssue).addComment(secondComment);
+    settings.setProperty(PolarionConstants.LINK_COMMENTS_MODE_PROPERTY, PolarionConstants.COMMENTS_MODE_SEPARATE);
+    PolarionSession polarionSoapService = mock(PolarionSession.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    when(polarionSoapService.getTrackerService()).thenReturn(trackerService);
+    String wiUri = "subterra:data-service:objects:/default/TEST${WorkItem}TEST-1";
+    when(trackerService.createWorkItem(any(WorkItem.class))).thenReturn(wiUri);
+
+    polarionIssueCreator.createWorkItem(sonarIssue, polarionSoapService, mock(Project.class), settings);
+
+    verify(trackerService, times(2)).createCommentNew(eq(wiUri), anyString(), any(Text.class), any(String[].class));
+  }
+
+  @Test
+  public void shouldLookUpRuleNameOnce() throws Exception {
+    assertThat(polarionIssueCreator.generateIssueSummary(sonarIssue)).isEqualTo("Sonar Issue #ABCD - Avoid cycle between java packages");
+    assertThat(polarionIssueCreator.generateIssueSummary(sonarIssue)).isEqualTo("Sonar Issue #ABCD - Avoid cycle between java packages");
+
+    verify(ruleFinder, times(1)).findByKey(RuleKey.of("squid", "CycleBetweenPackages"));
+  }
+
 /*  @Test
   public void shouldInitRemoteIssue() throws Exception {
     // Given that
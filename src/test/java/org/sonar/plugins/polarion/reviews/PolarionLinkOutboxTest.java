@@ -0,0 +1,217 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.reviews;
+
+import com.polarion.alm.ws.client.projects.ProjectWebService;
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import com.polarion.alm.ws.client.types.Text;
+import com.polarion.alm.ws.client.types.projects.Project;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.config.Settings;
+import org.sonar.api.issue.Issue;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.api.issue.internal.DefaultIssueComment;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rules.RuleFinder;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.soap.PolarionSession;
+import org.sonar.plugins.polarion.soap.PolarionSessionPool;
+
+import java.rmi.RemoteException;
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionLinkOutboxTest {
+
+  private static final String WORK_ITEM_URI = "subterra:data-service:objects:/default/TEST${WorkItem}TEST-1";
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private PolarionIssueCreator polarionIssueCreator;
+  private Settings settings;
+  private Settings projectSettings;
+  private Issue sonarIssue;
+  private RecordingOutbox outbox;
+
+  @Before
+  public void setUp() throws Exception {
+    polarionIssueCreator = mock(PolarionIssueCreator.class);
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(PolarionConstants.OUTBOX_MAX_ATTEMPTS_PROPERTY, "2");
+    projectSettings = new Settings();
+    projectSettings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, "http://my.polarion.com");
+    projectSettings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "secret");
+    DefaultIssueComment comment = new DefaultIssueComment();
+    comment.setMarkdownText("remove code");
+    sonarIssue = new DefaultIssue()
+      .setKey("ABCD")
+      .setMessage("Message")
+      .addComment(comment)
+      .setRuleKey(RuleKey.of("squid", "CycleBetweenPackages"));
+
+    outbox = new RecordingOutbox(polarionIssueCreator, settings);
+    outbox.start();
+  }
+
+  @After
+  public void tearDown() {
+    outbox.stop();
+  }
+
+  @Test
+  public void shouldQueueRequestDurably() throws Exception {
+    String ticket = outbox.enqueue(sonarIssue, projectSettings);
+
+    assertThat(outbox.scheduled).containsExactly(ticket);
+    assertThat(outbox.getState(ticket)).isEqualTo(PolarionLinkOutbox.State.PENDING);
+
+    RecordingOutbox restarted = new RecordingOutbox(polarionIssueCreator, settings);
+    restarted.start();
+    assertThat(restarted.scheduled).containsExactly(ticket);
+    restarted.stop();
+  }
+
+  @Test
+  public void shouldRecordCreatedDefect() throws Exception {
+    when(polarionIssueCreator.createIssue(any(Issue.class), any(Settings.class), any(PolarionIssueCreator.LinkProgress.class)))
+      .thenReturn("TEST-1");
+    String ticket = outbox.enqueue(sonarIssue, projectSettings);
+
+    outbox.process(ticket);
+
+    assertThat(outbox.getState(ticket)).isEqualTo(PolarionLinkOutbox.State.DONE);
+    assertThat(outbox.getDefectId(ticket)).isEqualTo("TEST-1");
+
+    outbox.acknowledge(ticket);
+    assertThat(outbox.getState(ticket)).isNull();
+  }
+
+  @Test
+  public void shouldRetryUntilMaxAttempts() throws Exception {
+    when(polarionIssueCreator.createIssue(any(Issue.class), any(Settings.class), any(PolarionIssueCreator.LinkProgress.class)))
+      .thenThrow(new RemoteException("Server Error"));
+    String ticket = outbox.enqueue(sonarIssue, projectSettings);
+
+    outbox.process(ticket);
+    assertThat(outbox.getState(ticket)).isEqualTo(PolarionLinkOutbox.State.PENDING);
+    assertThat(outbox.scheduled).hasSize(2);
+
+    outbox.process(ticket);
+    assertThat(outbox.getState(ticket)).isEqualTo(PolarionLinkOutbox.State.FAILED);
+    assertThat(outbox.getError(ticket)).isEqualTo("Server Error");
+  }
+
+  @Test
+  public void shouldResumeFromCreatedWorkItemOnRetry() throws Exception {
+    TrackerWebService trackerService = startOutboxWithTrackerService();
+    when(trackerService.createCommentNew(anyString(), anyString(), any(Text.class), any(String[].class)))
+      .thenThrow(new RemoteException("Server Error"))
+      .thenReturn("comment");
+    String ticket = outbox.enqueue(sonarIssue, projectSettings);
+
+    outbox.process(ticket);
+    assertThat(outbox.getState(ticket)).isEqualTo(PolarionLinkOutbox.State.PENDING);
+
+    outbox.process(ticket);
+    assertThat(outbox.getState(ticket)).isEqualTo(PolarionLinkOutbox.State.DONE);
+    assertThat(outbox.getDefectId(ticket)).isEqualTo("TEST-1");
+    verify(trackerService, times(1)).createWorkItem(any(WorkItem.class));
+    verify(trackerService, times(2)).createCommentNew(eq(WORK_ITEM_URI), anyString(), any(Text.class), any(String[].class));
+  }
+
+  @Test
+  public void shouldKeepCommentAuthorsAndDatesInCombinedComment() throws Exception {
+    TrackerWebService trackerService = startOutboxWithTrackerService();
+    DefaultIssueComment secondComment = new DefaultIssueComment();
+    secondComment.setUserLogin("john");
+    secondComment.setMarkdownText("done");
+    secondComment.setCreatedAt(new SimpleDateFormat("yyyy-MM-dd HH:mm").parse("2013-11-05 10:30"));
+    ((DefaultIssue) sonarIssue).addComment(secondComment);
+    projectSettings.setProperty(PolarionConstants.LINK_COMMENTS_MODE_PROPERTY, PolarionConstants.COMMENTS_MODE_COMBINED);
+    String ticket = outbox.enqueue(sonarIssue, projectSettings);
+
+    outbox.process(ticket);
+
+    ArgumentCaptor<Text> content = ArgumentCaptor.forClass(Text.class);
+    verify(trackerService, times(1)).createCommentNew(eq(WORK_ITEM_URI), anyString(), content.capture(), any(String[].class));
+    assertThat(content.getValue().getContent()).isEqualTo("remove code\n\njohn (2013-11-05 10:30):\ndone");
+  }
+
+  @Test
+  public void backoffShallGrowAndBeCapped() {
+    assertThat(PolarionLinkOutbox.backoff(1)).isLessThanOrEqualTo(5000L);
+    assertThat(PolarionLinkOutbox.backoff(3)).isGreaterThanOrEqualTo(10000L);
+    assertThat(PolarionLinkOutbox.backoff(30)).isLessThanOrEqualTo(10 * 60 * 1000L);
+  }
+
+  /**
+   * Restarts the outbox with an issue creator talking to a mocked Polarion server.
+   */
+  private TrackerWebService startOutboxWithTrackerService() throws Exception {
+    PolarionSessionPool sessionPool = mock(PolarionSessionPool.class);
+    PolarionSession session = mock(PolarionSession.class);
+    ProjectWebService projectService = mock(ProjectWebService.class);
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    when(sessionPool.borrowSession(anyString(), anyString(), anyString())).thenReturn(session);
+    when(session.getProjectService()).thenReturn(projectService);
+    when(session.getTrackerService()).thenReturn(trackerService);
+    when(projectService.getProject(anyString())).thenReturn(mock(Project.class));
+    when(trackerService.createWorkItem(any(WorkItem.class))).thenReturn(WORK_ITEM_URI);
+    RuleFinder ruleFinder = mock(RuleFinder.class);
+    when(ruleFinder.findByKey(RuleKey.of("squid", "CycleBetweenPackages"))).thenReturn(org.sonar.api.rules.Rule.create().setName("Avoid cycle between java packages"));
+    outbox.stop();
+    outbox = new RecordingOutbox(new PolarionIssueCreator(ruleFinder, sessionPool, null), settings);
+    outbox.start();
+    projectSettings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "foo");
+    return trackerService;
+  }
+
+  private static class RecordingOutbox extends PolarionLinkOutbox {
+    private final List<String> scheduled = Lists.newArrayList();
+
+    RecordingOutbox(PolarionIssueCreator polarionIssueCreator, Settings settings) {
+      super(polarionIssueCreator, settings);
+    }
+
+    @Override
+    protected void schedule(String ticket, long delayMs) {
+      scheduled.add(ticket);
+    }
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import org.junit.Test;
+import org.sonar.plugins.polarion.standin.PolarionStandInServer;
+import org.sonar.plugins.polarion.standin.SyntheticDataset;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import java.rmi.RemoteException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PolarionCallMetricsTest {
+
+  private final PolarionCallMetrics metrics = new PolarionCallMetrics();
+
+  @Test
+  public void shouldRecordCallsAndErrorsPerOperation() throws Exception {
+    TrackerWebService trackerService = mock(TrackerWebService.class);
+    when(trackerService.getWorkItemsCount("type:defect")).thenReturn(3);
+    when(trackerService.getWorkItemsCount("type:task")).thenThrow(new RemoteException("Server Error"));
+    TrackerWebService instrumented = metrics.instrument(TrackerWebService.class, trackerService);
+
+    assertThat(instrumented.getWorkItemsCount("type:defect")).isEqualTo(3);
+    try {
+      instrumented.getWorkItemsCount("type:task");
+      fail();
+    } catch (RemoteException e) {
+      assertThat(e.getMessage()).isEqualTo("Server Error");
+    }
+
+    SoapOperationStats stats = metrics.getStats("getWorkItemsCount");
+    assertThat(stats.getCallCount()).isEqualTo(2);
+    assertThat(stats.getErrorCount()).isEqualTo(1);
+    assertThat(metrics.getAllStats()).containsExactly(stats);
+    assertThat(metrics.summary()).contains("getWorkItemsCount: 2 calls, 1 errors");
+  }
+
+  @Test
+  public void shouldBucketLatencies() {
+    SoapOperationStats stats = new SoapOperationStats("queryWorkItems");
+    assertThat(stats.getLatencyPercentileMillis(0.5)).isEqualTo(0);
+
+    for (int i = 0; i < 9; i++) {
+      stats.record(20 * 1000000L, false, 100, 1000);
+    }
+    stats.record(700 * 1000000L, false, -1, -1);
+
+    assertThat(stats.getLatencyPercentileMillis(0.5)).isEqualTo(25);
+    assertThat(stats.getLatencyPercentileMillis(0.99)).isEqualTo(1000);
+    assertThat(stats.getMaxTimeMillis()).isEqualTo(700);
+    assertThat(stats.getRequestBytes()).isEqualTo(900);
+    assertThat(stats.getResponseBytes()).isEqualTo(9000);
+    assertThat(stats.getLatencyHistogram()).startsWith("<=10ms: 0, <=25ms: 9, ");
+  }
+
+  @Test
+  public void shouldExportOperationsAsMBeans() throws Exception {
+    MBeanServer mbeanServer = MBeanServerFactory.newMBeanServer();
+    metrics.getStats("logIn").record(1000000L, false, 10, 10);
+
+    metrics.exportTo(mbeanServer);
+    metrics.getStats("getProject").record(1000000L, true, 10, 10);
+
+    ObjectName logIn = new ObjectName("org.sonar.plugins.polarion:type=SoapOperation,name=logIn");
+    assertThat(mbeanServer.getAttribute(logIn, "CallCount")).isEqualTo(1L);
+    ObjectName getProject = new ObjectName("org.sonar.plugins.polarion:type=SoapOperation,name=getProject");
+    assertThat(mbeanServer.getAttribute(getProject, "ErrorCount")).isEqualTo(1L);
+
+    metrics.unexport();
+    assertThat(mbeanServer.isRegistered(logIn)).isFalse();
+    assertThat(mbeanServer.isRegistered(getProject)).isFalse();
+  }
+
+  @Test
+  public void shouldMeasurePayloadsOfPolarionClient() throws Exception {
+    PolarionStandInServer server = new PolarionStandInServer(new SyntheticDataset(1, 20, 1L));
+    server.start();
+    try {
+      PolarionSession session = new PolarionSession(server.getServerUrl(), metrics, null, null, null);
+      session.connect("admin", "admin");
+      session.getTrackerService().queryWorkItems("project.id:PROJ1", null, new String[] {"severity"});
+      session.disconnect();
+    } finally {
+      server.stop();
+    }
+
+    assertThat(metrics.getStats("logIn").getCallCount()).isEqualTo(1);
+    SoapOperationStats query = metrics.getStats("queryWorkItems");
+    assertThat(query.getCallCount()).isEqualTo(1);
+    assertThat(query.getRequestBytes()).isGreaterThan(0);
+    assertThat(query.getResponseBytes()).isGreaterThan(0);
+    assertThat(metrics.getStats("endSession").getCallCount()).isEqualTo(1);
+  }
+}
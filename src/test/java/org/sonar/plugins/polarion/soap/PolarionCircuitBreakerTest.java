@@ -0,0 +1,80 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class PolarionCircuitBreakerTest {
+
+  private long now = 0;
+  private final PolarionCircuitBreaker circuitBreaker = new PolarionCircuitBreaker("http://polarion", 2, 60000L) {
+    @Override
+    protected long now() {
+      return now;
+    }
+  };
+
+  @Test
+  public void shouldOpenAfterConsecutiveFailures() throws Exception {
+    circuitBreaker.onFailure();
+    circuitBreaker.onSuccess();
+    circuitBreaker.onFailure();
+    circuitBreaker.acquire();
+    assertThat(circuitBreaker.getState()).isEqualTo(PolarionCircuitBreaker.State.CLOSED);
+
+    circuitBreaker.onFailure();
+
+    assertThat(circuitBreaker.isOpen()).isTrue();
+    now = 45000L;
+    try {
+      circuitBreaker.acquire();
+      fail();
+    } catch (PolarionUnavailableException e) {
+      assertThat(e.getMessage()).contains("next attempt in 15 s");
+    }
+  }
+
+  @Test
+  public void shouldLetASingleTrialCallThroughAfterTheOpenPeriod() throws Exception {
+    circuitBreaker.onFailure();
+    circuitBreaker.onFailure();
+    now = 60000L;
+
+    circuitBreaker.acquire();
+    assertThat(circuitBreaker.getState()).isEqualTo(PolarionCircuitBreaker.State.HALF_OPEN);
+    try {
+      circuitBreaker.acquire();
+      fail();
+    } catch (PolarionUnavailableException e) {
+      // the trial call is still running
+    }
+
+    circuitBreaker.onFailure();
+    assertThat(circuitBreaker.getState()).isEqualTo(PolarionCircuitBreaker.State.OPEN);
+    now = 120000L;
+    circuitBreaker.acquire();
+    circuitBreaker.onSuccess();
+    assertThat(circuitBreaker.isOpen()).isFalse();
+  }
+}
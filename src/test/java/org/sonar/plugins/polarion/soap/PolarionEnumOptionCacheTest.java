@@ -0,0 +1,141 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.soap;
+
+import com.google.common.collect.Lists;
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import com.polarion.alm.ws.client.types.tracker.EnumOption;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.rmi.RemoteException;
+import java.util.Map;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionEnumOptionCacheTest {
+
+  private static final String SERVER = "http://my.polarion.com";
+  private static final long ONE_HOUR = 60L * 60 * 1000;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private Settings settings;
+  private TrackerWebService trackerService;
+
+  @Before
+  public void setUp() throws Exception {
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.newFolder().getAbsolutePath());
+    settings.setProperty(PolarionConstants.ENUM_CACHE_TTL_PROPERTY, "60");
+    trackerService = mock(TrackerWebService.class);
+    when(trackerService.getEnumOptionsForKeyWithControl("elibrary", "severity", "defect"))
+      .thenReturn(new EnumOption[] {option("critical", "Critical"), option("minor", "Minor")});
+  }
+
+  @Test
+  public void should_reuse_options_persisted_by_a_previous_analysis() throws Exception {
+    Map<String, String> fetched = new FakeClockCache(settings, 0).getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+    Map<String, String> cached = new FakeClockCache(settings, ONE_HOUR - 1).getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+
+    assertThat(fetched).hasSize(2);
+    assertThat(cached).isEqualTo(fetched);
+    assertThat(Lists.newArrayList(cached.keySet())).containsExactly("critical", "minor");
+    verify(trackerService, times(1)).getEnumOptionsForKeyWithControl("elibrary", "severity", "defect");
+  }
+
+  @Test
+  public void should_fetch_options_again_once_expired() throws Exception {
+    FakeClockCache cache = new FakeClockCache(settings, 0);
+    cache.getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+    when(trackerService.getEnumOptionsForKeyWithControl("elibrary", "severity", "defect"))
+      .thenReturn(new EnumOption[] {option("blocker", "Blocker")});
+
+    cache.time = ONE_HOUR;
+    Map<String, String> refreshed = cache.getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+
+    assertThat(Lists.newArrayList(refreshed.keySet())).containsExactly("blocker");
+  }
+
+  @Test
+  public void should_keep_expired_options_if_refresh_fails() throws Exception {
+    FakeClockCache cache = new FakeClockCache(settings, 0);
+    cache.getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+    when(trackerService.getEnumOptionsForKeyWithControl("elibrary", "severity", "defect")).thenThrow(new RemoteException("Server Error"));
+
+    cache.time = 2 * ONE_HOUR;
+    Map<String, String> stale = cache.getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+
+    assertThat(Lists.newArrayList(stale.keySet())).containsExactly("critical", "minor");
+  }
+
+  @Test
+  public void should_fail_if_options_were_never_fetched() throws Exception {
+    when(trackerService.getEnumOptionsForKeyWithControl("elibrary", "resolution", "defect")).thenThrow(new RemoteException("Server Error"));
+
+    thrown.expect(RemoteException.class);
+
+    new FakeClockCache(settings, 0).getEnumOptions(trackerService, SERVER, "elibrary", "resolution", "defect");
+  }
+
+  @Test
+  public void should_cache_options_per_project() throws Exception {
+    FakeClockCache cache = new FakeClockCache(settings, 0);
+    when(trackerService.getEnumOptionsForKeyWithControl("other", "severity", "defect")).thenReturn(new EnumOption[0]);
+
+    cache.getEnumOptions(trackerService, SERVER, "elibrary", "severity", "defect");
+    Map<String, String> other = cache.getEnumOptions(trackerService, SERVER, "other", "severity", "defect");
+
+    assertThat(other).isEmpty();
+  }
+
+  private static EnumOption option(String id, String name) {
+    EnumOption option = new EnumOption();
+    option.setId(id);
+    option.setName(name);
+    return option;
+  }
+
+  private static class FakeClockCache extends PolarionEnumOptionCache {
+    private long time;
+
+    FakeClockCache(Settings settings, long time) {
+      super(settings);
+      this.time = time;
+    }
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+}
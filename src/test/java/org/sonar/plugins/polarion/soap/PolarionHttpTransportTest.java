@@ -0,0 +1,107 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.standin.PolarionStandInServer;
+import org.sonar.plugins.polarion.standin.SyntheticDataset;
+
+import java.rmi.RemoteException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class PolarionHttpTransportTest {
+
+  private final Settings settings = new Settings();
+  private PolarionStandInServer server;
+  private PolarionHttpTransport transport;
+
+  @Before
+  public void startServer() throws Exception {
+    server = new PolarionStandInServer(new SyntheticDataset(1, 200, 1L));
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    if (transport != null) {
+      transport.stop();
+    }
+    server.stop();
+  }
+
+  @Test
+  public void shouldKeepOneConnectionAliveForAllServices() throws Exception {
+    transport = new PolarionHttpTransport(settings);
+    PolarionSession session = new PolarionSession(server.getServerUrl(), null, transport, null, null);
+    session.connect("admin", "admin");
+    session.getTrackerService().getWorkItemsCount("project.id:PROJ1");
+    session.getProjectService().getProject("PROJ1");
+    session.disconnect();
+
+    assertThat(transport.getConnectionsInPool()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldCompressRequestsAndResponses() throws Exception {
+    long compressedBytes = queryAllFields();
+    assertThat(server.getCompressedRequestCount()).isEqualTo(3);
+    transport.stop();
+
+    settings.setProperty(PolarionConstants.HTTP_COMPRESSION_PROPERTY, false);
+    long uncompressedBytes = queryAllFields();
+    assertThat(server.getCompressedRequestCount()).isEqualTo(3);
+
+    assertThat(compressedBytes * 5).isLessThan(uncompressedBytes);
+  }
+
+  @Test
+  public void shouldFailCallsExceedingTheReadTimeout() throws Exception {
+    settings.setProperty(PolarionConstants.HTTP_READ_TIMEOUT_PROPERTY, 1);
+    server.setLatency(3000, 3000);
+    transport = new PolarionHttpTransport(settings);
+    PolarionSession session = new PolarionSession(server.getServerUrl(), null, transport, null, null);
+
+    long start = System.currentTimeMillis();
+    try {
+      session.connect("admin", "admin");
+      fail();
+    } catch (RemoteException e) {
+      assertThat(e.getMessage()).contains("SocketTimeoutException");
+    }
+    assertThat(System.currentTimeMillis() - start).isLessThan(2500);
+  }
+
+  private long queryAllFields() throws Exception {
+    PolarionCallMetrics metrics = new PolarionCallMetrics();
+    transport = new PolarionHttpTransport(settings);
+    PolarionSession session = new PolarionSession(server.getServerUrl(), metrics, transport, null, null);
+    session.connect("admin", "admin");
+    session.getTrackerService().queryWorkItems("project.id:PROJ1", null, null);
+    session.disconnect();
+    return metrics.getStats("queryWorkItems").getResponseBytes();
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.soap;
+
+import com.polarion.alm.ws.client.projects.ProjectWebService;
+import com.polarion.alm.ws.client.types.projects.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.rmi.RemoteException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionProjectCacheTest {
+
+  private static final String SERVER = "http://my.polarion.com";
+  private static final long ONE_MINUTE = 60L * 1000;
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private Settings settings;
+  private ProjectWebService projectService;
+
+  @Before
+  public void setUp() throws Exception {
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.newFolder().getAbsolutePath());
+    projectService = mock(ProjectWebService.class);
+    when(projectService.getProject("elibrary")).thenReturn(project("elibrary", false));
+    when(projectService.getProject("unknown")).thenReturn(project(null, true));
+  }
+
+  @Test
+  public void should_reuse_projects_persisted_by_a_previous_analysis() throws Exception {
+    Project fetched = new FakeClockCache(settings, 0).getProject(projectService, SERVER, "elibrary");
+    Project cached = new FakeClockCache(settings, 60 * ONE_MINUTE - 1).getProject(projectService, SERVER, "elibrary");
+
+    assertThat(fetched.getUri()).isEqualTo("subterra:data-service:objects:/default/elibrary${Project}elibrary");
+    assertThat(cached.getId()).isEqualTo("elibrary");
+    assertThat(cached.getUri()).isEqualTo(fetched.getUri());
+    assertThat(cached.isUnresolvable()).isFalse();
+    verify(projectService, times(1)).getProject("elibrary");
+  }
+
+  @Test
+  public void should_look_up_unknown_projects_again_sooner() throws Exception {
+    FakeClockCache cache = new FakeClockCache(settings, 0);
+    cache.getProject(projectService, SERVER, "unknown");
+    cache.getProject(projectService, SERVER, "elibrary");
+
+    cache.time = 5 * ONE_MINUTE;
+    assertThat(cache.getProject(projectService, SERVER, "unknown").isUnresolvable()).isTrue();
+    cache.getProject(projectService, SERVER, "elibrary");
+
+    verify(projectService, times(2)).getProject("unknown");
+    verify(projectService, times(1)).getProject("elibrary");
+  }
+
+  @Test
+  public void should_keep_expired_project_if_lookup_fails() throws Exception {
+    FakeClockCache cache = new FakeClockCache(settings, 0);
+    cache.getProject(projectService, SERVER, "elibrary");
+    when(projectService.getProject("elibrary")).thenThrow(new RemoteException("Server Error"));
+
+    cache.time = 120 * ONE_MINUTE;
+
+    assertThat(cache.getProject(projectService, SERVER, "elibrary").getId()).isEqualTo("elibrary");
+  }
+
+  @Test
+  public void should_fail_if_project_was_never_looked_up() throws Exception {
+    when(projectService.getProject("other")).thenThrow(new RemoteException("Server Error"));
+
+    thrown.expect(RemoteException.class);
+
+    new FakeClockCache(settings, 0).getProject(projectService, SERVER, "other");
+  }
+
+  private static Project project(String id, boolean unresolvable) {
+    Project project = new Project();
+    project.setId(id);
+    if (id != null) {
+      project.setUri("subterra:data-service:objects:/default/" + id + "${Project}" + id);
+    }
+    project.setUnresolvable(unresolvable);
+    return project;
+  }
+
+  private static class FakeClockCache extends PolarionProjectCache {
+    private long time;
+
+    FakeClockCache(Settings settings, long time) {
+      super(settings);
+      this.time = time;
+    }
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.soap;
+
+import com.google.common.collect.Lists;
+import com.polarion.alm.ws.client.projects.ProjectWebService;
+import com.polarion.alm.ws.client.types.projects.Project;
+import com.polarion.alm.ws.client.types.projects.User;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionReadCoalescerTest {
+
+  private final Settings settings = new Settings();
+  private final PolarionReadCoalescer coalescer = new PolarionReadCoalescer(settings);
+  private final ProjectWebService projectService = mock(ProjectWebService.class);
+
+  @Test
+  public void concurrentIdenticalReadsShallShareOneCall() throws Exception {
+    final Project project = new Project();
+    final CountDownLatch released = new CountDownLatch(1);
+    when(projectService.getProject("PROJ1")).thenAnswer(new Answer<Project>() {
+      public Project answer(InvocationOnMock invocation) throws Throwable {
+        released.await(5, TimeUnit.SECONDS);
+        return project;
+      }
+    });
+    final ProjectWebService coalesced = coalescer.coalesce(ProjectWebService.class, projectService, session("alice"));
+
+    ExecutorService executor = Executors.newFixedThreadPool(5);
+    List<Future<Project>> results = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      results.add(executor.submit(new Callable<Project>() {
+        public Project call() throws RemoteException {
+          return coalesced.getProject("PROJ1");
+        }
+      }));
+    }
+    Thread.sleep(200);
+    released.countDown();
+    for (Future<Project> result : results) {
+      assertThat(result.get()).isSameAs(project);
+    }
+    executor.shutdown();
+
+    assertThat(coalesced.getProject("PROJ1")).isSameAs(project);
+    verify(projectService, times(1)).getProject("PROJ1");
+  }
+
+  @Test
+  public void readsShallBeKeyedByArgumentsAndUser() throws Exception {
+    ProjectWebService aliceService = coalescer.coalesce(ProjectWebService.class, projectService, session("alice"));
+    ProjectWebService bobService = coalescer.coalesce(ProjectWebService.class, projectService, session("bob"));
+
+    aliceService.getProject("PROJ1");
+    aliceService.getProject("PROJ2");
+    bobService.getProject("PROJ1");
+    aliceService.getProject("PROJ1");
+
+    verify(projectService, times(2)).getProject("PROJ1");
+    verify(projectService, times(1)).getProject("PROJ2");
+  }
+
+  @Test
+  public void failedReadsShallNotBeReused() throws Exception {
+    when(projectService.getProject("PROJ1")).thenThrow(new RemoteException("boom")).thenReturn(new Project());
+    ProjectWebService coalesced = coalescer.coalesce(ProjectWebService.class, projectService, session("alice"));
+
+    try {
+      coalesced.getProject("PROJ1");
+      fail();
+    } catch (RemoteException e) {
+      assertThat(e.getMessage()).isEqualTo("boom");
+    }
+    assertThat(coalesced.getProject("PROJ1")).isNotNull();
+    assertThat(coalescer.getNumberOfReads()).isEqualTo(1);
+  }
+
+  @Test
+  public void changesShallNotBeCoalesced() throws Exception {
+    ProjectWebService coalesced = coalescer.coalesce(ProjectWebService.class, projectService, session("alice"));
+
+    User user = new User();
+    coalesced.updateUser(user);
+    coalesced.updateUser(user);
+
+    verify(projectService, times(2)).updateUser(user);
+  }
+
+  @Test
+  public void readsShallNotBeReusedWithoutTimeToLive() throws Exception {
+    settings.setProperty(PolarionConstants.READ_CACHE_TTL_PROPERTY, "0");
+    ProjectWebService coalesced = coalescer.coalesce(ProjectWebService.class, projectService, session("alice"));
+
+    coalesced.getProject("PROJ1");
+    coalesced.getProject("PROJ1");
+
+    verify(projectService, times(2)).getProject("PROJ1");
+    assertThat(coalescer.getNumberOfReads()).isEqualTo(0);
+  }
+
+  private static PolarionSession session(String userName) {
+    PolarionSession session = mock(PolarionSession.class);
+    when(session.getServerAddress()).thenReturn("http://polarion");
+    when(session.getUserName()).thenReturn(userName);
+    return session;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import com.google.common.collect.Lists;
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import org.apache.axis.AxisFault;
+import org.apache.axis.Constants;
+import org.junit.Test;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.rmi.RemoteException;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionResilienceTest {
+
+  private static final String SERVER = "http://polarion";
+
+  private final Settings settings = new Settings();
+  private final List<Long> backoffs = Lists.newArrayList();
+  private final PolarionResilience resilience = new PolarionResilience(settings) {
+    @Override
+    protected void sleep(long millis) {
+      backoffs.add(millis);
+    }
+  };
+  private final TrackerWebService trackerService = mock(TrackerWebService.class);
+
+  @Test
+  public void shouldRetryReadsWhichCouldNotReachTheServer() throws Exception {
+    when(trackerService.getWorkItemsCount("type:defect"))
+      .thenThrow(AxisFault.makeFault(new ConnectException("Connection refused")))
+      .thenThrow(AxisFault.makeFault(new SocketTimeoutException("Read timed out")))
+      .thenReturn(3);
+    TrackerWebService protectedService = resilience.protect(TrackerWebService.class, trackerService, SERVER);
+
+    assertThat(protectedService.getWorkItemsCount("type:defect")).isEqualTo(3);
+    assertThat(backoffs).hasSize(2);
+    assertThat(backoffs.get(0)).isLessThan(500L);
+    assertThat(backoffs.get(1)).isLessThan(1000L);
+    assertThat(resilience.isOpen(SERVER)).isFalse();
+  }
+
+  @Test
+  public void shouldGiveUpAfterTheMaximumNumberOfAttempts() throws Exception {
+    when(trackerService.getWorkItemsCount("type:defect")).thenThrow(serverError(503));
+    TrackerWebService protectedService = resilience.protect(TrackerWebService.class, trackerService, SERVER);
+
+    try {
+      protectedService.getWorkItemsCount("type:defect");
+      fail();
+    } catch (AxisFault e) {
+      assertThat(e.getFaultString()).contains("Service Unavailable");
+    }
+    verify(trackerService, times(PolarionConstants.DEFAULT_RETRY_MAX_ATTEMPTS)).getWorkItemsCount("type:defect");
+  }
+
+  @Test
+  public void shouldNotRetryChangesNorFaultsOfPolarion() throws Exception {
+    when(trackerService.createWorkItem(null)).thenThrow(AxisFault.makeFault(new SocketTimeoutException("Read timed out")));
+    when(trackerService.getWorkItemsCount("type:")).thenThrow(new AxisFault("Invalid query"));
+    TrackerWebService protectedService = resilience.protect(TrackerWebService.class, trackerService, SERVER);
+
+    try {
+      protectedService.createWorkItem(null);
+      fail();
+    } catch (RemoteException e) {
+      verify(trackerService, times(1)).createWorkItem(null);
+    }
+    try {
+      protectedService.getWorkItemsCount("type:");
+      fail();
+    } catch (RemoteException e) {
+      verify(trackerService, times(1)).getWorkItemsCount("type:");
+    }
+    assertThat(backoffs).isEmpty();
+  }
+
+  @Test
+  public void shouldFailFastOnceTheCircuitBreakerIsOpen() throws Exception {
+    settings.setProperty(PolarionConstants.CIRCUIT_BREAKER_THRESHOLD_PROPERTY, 4);
+    when(trackerService.getWorkItemsCount("type:defect")).thenThrow(AxisFault.makeFault(new ConnectException("Connection refused")));
+    TrackerWebService protectedService = resilience.protect(TrackerWebService.class, trackerService, SERVER);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        protectedService.getWorkItemsCount("type:defect");
+        fail();
+      } catch (RemoteException e) {
+        // expected
+      }
+    }
+
+    assertThat(resilience.isOpen(SERVER)).isTrue();
+    verify(trackerService, times(4)).getWorkItemsCount("type:defect");
+    try {
+      resilience.protect(TrackerWebService.class, trackerService, SERVER).queryWorkItems("type:defect", null, null);
+      fail();
+    } catch (PolarionUnavailableException e) {
+      assertThat(e.getMessage()).contains(SERVER);
+    }
+    assertThat(resilience.isOpen("http://other.polarion")).isFalse();
+  }
+
+  @Test
+  public void shouldOnlyConsiderNetworkAndServerErrorsTransient() {
+    assertThat(PolarionResilience.isTransient(AxisFault.makeFault(new ConnectException()))).isTrue();
+    assertThat(PolarionResilience.isTransient(serverError(502))).isTrue();
+    assertThat(PolarionResilience.isTransient(serverError(404))).isFalse();
+    assertThat(PolarionResilience.isTransient(new AxisFault("Not authorized"))).isFalse();
+    assertThat(PolarionResilience.isTransient(new RemoteException("Server Error"))).isFalse();
+  }
+
+  private static AxisFault serverError(int statusCode) {
+    AxisFault fault = new AxisFault("HTTP", "(" + statusCode + ")Service Unavailable", null, null);
+    fault.addFaultDetail(Constants.QNAME_FAULTDETAIL_HTTPERRORCODE, Integer.toString(statusCode));
+    return fault;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.sonar.api.config.Settings;
+import org.sonar.plugins.polarion.PolarionConstants;
+
+import java.net.MalformedURLException;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionSessionPoolTest {
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private Settings settings;
+  private FakeClockPool pool;
+
+  @Before
+  public void setUp() {
+    settings = new Settings();
+    settings.setProperty(PolarionConstants.SESSION_POOL_MAX_SIZE_PROPERTY, "1");
+    settings.setProperty(PolarionConstants.SESSION_POOL_BORROW_TIMEOUT_PROPERTY, "1");
+    pool = new FakeClockPool(settings);
+  }
+
+  @Test
+  public void shouldReuseReleasedSession() throws Exception {
+    PolarionSession session = pool.borrowSession("http://polarion", "admin", "pwd");
+    pool.releaseSession(session);
+
+    assertThat(pool.borrowSession("http://polarion", "admin", "pwd")).isSameAs(session);
+    verify(session, times(1)).connect("admin", "pwd");
+    assertThat(pool.getNumberOfLeasedSessions()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldNotShareSessionsBetweenUsers() throws Exception {
+    settings.setProperty(PolarionConstants.SESSION_POOL_MAX_SIZE_PROPERTY, "2");
+    PolarionSession session = pool.borrowSession("http://polarion", "admin", "pwd");
+    pool.releaseSession(session);
+
+    assertThat(pool.borrowSession("http://polarion", "john", "pwd")).isNotSameAs(session);
+  }
+
+  @Test
+  public void shouldFailIfPoolIsExhausted() throws Exception {
+    pool.borrowSession("http://polarion", "admin", "pwd");
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("No Polarion session available");
+
+    pool.borrowSession("http://polarion", "admin", "pwd");
+  }
+
+  @Test
+  public void shouldReplaceInvalidatedSession() throws Exception {
+    PolarionSession session = pool.borrowSession("http://polarion", "admin", "pwd");
+    pool.invalidateSession(session);
+
+    verify(session).disconnect();
+    assertThat(pool.borrowSession("http://polarion", "admin", "pwd")).isNotSameAs(session);
+  }
+
+  @Test
+  public void shouldLogInAgainIfIdleSessionExpired() throws Exception {
+    PolarionSession session = pool.borrowSession("http://polarion", "admin", "pwd");
+    pool.releaseSession(session);
+    pool.time += 2 * 60 * 1000L;
+    when(session.isLoggedIn()).thenReturn(false);
+
+    assertThat(pool.borrowSession("http://polarion", "admin", "pwd")).isSameAs(session);
+    verify(session).reconnect();
+  }
+
+  @Test
+  public void shouldEvictIdleSessions() throws Exception {
+    PolarionSession session = pool.borrowSession("http://polarion", "admin", "pwd");
+    pool.releaseSession(session);
+    pool.evictIdleSessions();
+    assertThat(pool.getNumberOfIdleSessions()).isEqualTo(1);
+
+    pool.time += (PolarionConstants.DEFAULT_SESSION_POOL_IDLE_TIMEOUT + 1) * 1000L;
+    pool.evictIdleSessions();
+
+    assertThat(pool.getNumberOfIdleSessions()).isEqualTo(0);
+    verify(session).disconnect();
+  }
+
+  @Test
+  public void shouldDiscardIdleSessionIfPasswordChanged() throws Exception {
+    PolarionSession session = pool.borrowSession("http://polarion", "admin", "pwd");
+    pool.releaseSession(session);
+
+    PolarionSession newSession = pool.borrowSession("http://polarion", "admin", "newPwd");
+
+    assertThat(newSession).isNotSameAs(session);
+    verify(session).disconnect();
+    verify(newSession).connect("admin", "newPwd");
+    verify(newSession, never()).reconnect();
+  }
+
+  @Test
+  public void shouldFreeSlotIfLoginFails() throws Exception {
+    pool.failLogin = true;
+    try {
+      pool.borrowSession("http://polarion", "admin", "pwd");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    pool.failLogin = false;
+
+    assertThat(pool.borrowSession("http://polarion", "admin", "pwd")).isNotNull();
+  }
+
+  private static class FakeClockPool extends PolarionSessionPool {
+    private long time = 1000000L;
+    private boolean failLogin = false;
+
+    FakeClockPool(Settings settings) {
+      super(settings);
+    }
+
+    @Override
+    protected PolarionSession newSession(String serverUrl) throws MalformedURLException {
+      if (failLogin) {
+        throw new IllegalStateException("Login failed");
+      }
+      PolarionSession session = mock(PolarionSession.class);
+      when(session.hasPassword(anyString())).thenReturn(false);
+      when(session.hasPassword("pwd")).thenReturn(true);
+      return session;
+    }
+
+    @Override
+    protected long now() {
+      return time;
+    }
+  }
+}
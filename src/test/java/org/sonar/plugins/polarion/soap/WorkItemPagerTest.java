@@ -0,0 +1,126 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+
+package org.sonar.plugins.polarion.soap;
+
+import com.polarion.alm.ws.client.tracker.TrackerWebService;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class WorkItemPagerTest {
+
+  private static final String URI_PREFIX = "subterra:data-service:objects:/default/test${WorkItem}";
+  private static final String[] FIELDS = {"severity"};
+
+  private TrackerWebService trackerService;
+  private List<Integer> pageSizes;
+  private WorkItemPager.PageHandler handler;
+
+  @Before
+  public void setUp() {
+    trackerService = mock(TrackerWebService.class);
+    pageSizes = new ArrayList<Integer>();
+    handler = new WorkItemPager.PageHandler() {
+      public void handlePage(WorkItem[] page) {
+        pageSizes.add(page.length);
+      }
+    };
+  }
+
+  @Test
+  public void shouldFetchWorkItemsPageByPage() throws Exception {
+    when(trackerService.queryWorkItemUris("type:defect", null)).thenReturn(new String[] {URI_PREFIX + "T-1", URI_PREFIX + "T-2", URI_PREFIX + "T-3"});
+    when(trackerService.queryWorkItems("(type:defect) AND id:(T-1 T-2)", null, FIELDS)).thenReturn(new WorkItem[] {new WorkItem(), new WorkItem()});
+    when(trackerService.queryWorkItems("(type:defect) AND id:(T-3)", null, FIELDS)).thenReturn(new WorkItem[] {new WorkItem()});
+
+    int numberOfWorkItems = new WorkItemPager(trackerService, "type:defect", null, FIELDS, 2).forEachPage(handler);
+
+    assertThat(numberOfWorkItems).isEqualTo(3);
+    assertThat(pageSizes).containsExactly(2, 1);
+  }
+
+  @Test
+  public void shouldLimitThePageSizeToTheClausesOfALuceneQuery() throws Exception {
+    String[] uris = new String[WorkItemPager.MAX_PAGE_SIZE + 1];
+    for (int i = 0; i < uris.length; i++) {
+      uris[i] = URI_PREFIX + "T-" + i;
+    }
+    when(trackerService.queryWorkItemUris("type:defect", null)).thenReturn(uris);
+    when(trackerService.queryWorkItems(anyString(), anyString(), any(String[].class))).thenAnswer(new Answer<WorkItem[]>() {
+      public WorkItem[] answer(InvocationOnMock invocation) {
+        String query = (String) invocation.getArguments()[0];
+        return new WorkItem[query.split(" ").length - 2];
+      }
+    });
+
+    int numberOfWorkItems = new WorkItemPager(trackerService, "type:defect", null, FIELDS, 5000).forEachPage(handler);
+
+    assertThat(numberOfWorkItems).isEqualTo(WorkItemPager.MAX_PAGE_SIZE + 1);
+    assertThat(pageSizes).containsExactly(WorkItemPager.MAX_PAGE_SIZE, 1);
+  }
+
+  @Test
+  public void shouldFetchByUriIfIdCannotBeExtracted() throws Exception {
+    when(trackerService.queryWorkItemUris("type:defect", null)).thenReturn(new String[] {"unexpected-uri"});
+    when(trackerService.getWorkItemByUriWithFields("unexpected-uri", FIELDS)).thenReturn(new WorkItem());
+
+    int numberOfWorkItems = new WorkItemPager(trackerService, "type:defect", null, FIELDS, 10).forEachPage(handler);
+
+    assertThat(numberOfWorkItems).isEqualTo(1);
+    verify(trackerService, never()).queryWorkItems(anyString(), anyString(), any(String[].class));
+  }
+
+  @Test
+  public void shouldHandleNoPageIfNothingIsFound() throws Exception {
+    when(trackerService.queryWorkItemUris("type:defect", null)).thenReturn(null);
+
+    int numberOfWorkItems = new WorkItemPager(trackerService, "type:defect", null, FIELDS, 10).forEachPage(handler);
+
+    assertThat(numberOfWorkItems).isEqualTo(0);
+    assertThat(pageSizes).isEmpty();
+  }
+
+  @Test
+  public void shouldExtractIdFromUri() {
+    assertThat(WorkItemPager.extractId(URI_PREFIX + "T-42")).isEqualTo("T-42");
+    assertThat(WorkItemPager.extractId("no-id}")).isNull();
+    assertThat(WorkItemPager.extractId("no-separator")).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectNonPositivePageSize() {
+    new WorkItemPager(trackerService, "type:defect", null, FIELDS, 0);
+  }
+}
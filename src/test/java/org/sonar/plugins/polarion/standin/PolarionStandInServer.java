@@ -0,0 +1,569 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.standin;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sonar.plugins.polarion.standin.SyntheticDataset.Defect;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stands in for the SOAP web services of a Polarion server, so that the plugin can be load tested without one.
+ * Serves the Session, Tracker and Project operations used by the plugin from a {@link SyntheticDataset}, with
+ * configurable latency and an error rate for injected failures.
+ */
+public class PolarionStandInServer {
+  private static final Logger LOG = LoggerFactory.getLogger(PolarionStandInServer.class);
+
+  static final String SERVICES_PATH = "/polarion/ws/services/";
+  /**
+   * Pseudo operation counting the queries on the SQL layer, whatever the SOAP operation sending them.
+   */
+  public static final String SQL_QUERY = "SQL";
+  private static final String SOAP_ENV_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String SESSION_NS = "http://ws.polarion.com/session";
+  private static final String TRACKER_TYPES_NS = "http://ws.polarion.com/TrackerWebService-types";
+  private static final String PROJECT_TYPES_NS = "http://ws.polarion.com/ProjectWebService-types";
+  private static final String TYPES_NS = "http://ws.polarion.com/types";
+
+  private final SyntheticDataset dataset;
+  private final ConcurrentMap<String, String> sessions = new ConcurrentHashMap<String, String>();
+  private final AtomicLong sessionIds = new AtomicLong();
+  private final ConcurrentMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+  private final AtomicInteger compressedRequestCount = new AtomicInteger();
+  private final Random random = new Random();
+  private volatile int minLatencyMillis;
+  private volatile int maxLatencyMillis;
+  private volatile double errorRate;
+  private volatile boolean sqlSupported;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  public PolarionStandInServer(SyntheticDataset dataset) {
+    this.dataset = dataset;
+  }
+
+  /**
+   * Every request is delayed by a random duration between the given bounds.
+   */
+  public void setLatency(int minMillis, int maxMillis) {
+    if (minMillis < 0 || maxMillis < minMillis) {
+      throw new IllegalArgumentException("Invalid latency bounds: " + minMillis + ".." + maxMillis);
+    }
+    this.minLatencyMillis = minMillis;
+    this.maxLatencyMillis = maxMillis;
+  }
+
+  /**
+   * Fraction of the requests, between 0 and 1, answered with a SOAP fault instead of being served.
+   */
+  public void setErrorRate(double errorRate) {
+    if (errorRate < 0 || errorRate > 1) {
+      throw new IllegalArgumentException("Error rate must be between 0 and 1: " + errorRate);
+    }
+    this.errorRate = errorRate;
+  }
+
+  /**
+   * Whether SQL queries are answered, as Polarion servers whose index is backed by a database do. Otherwise they are
+   * answered with a SOAP fault like any operation the stand-in does not support.
+   */
+  public void setSqlSupported(boolean sqlSupported) {
+    this.sqlSupported = sqlSupported;
+  }
+
+  public SyntheticDataset getDataset() {
+    return dataset;
+  }
+
+  /**
+   * Starts serving on a free port.
+   */
+  public void start() throws IOException {
+    start(0);
+  }
+
+  public void start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext(SERVICES_PATH, new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        serve(exchange);
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+    LOG.info("Polarion stand-in listening at " + getServerUrl());
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  public String getServerUrl() {
+    return "http://localhost:" + server.getAddress().getPort();
+  }
+
+  /**
+   * @return how many times the given SOAP operation was requested, including requests that failed
+   */
+  public int getRequestCount(String operation) {
+    AtomicInteger count = requestCounts.get(operation);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * @return how many requests were sent with a gzip encoded body
+   */
+  public int getCompressedRequestCount() {
+    return compressedRequestCount.get();
+  }
+
+  public int getOpenSessionCount() {
+    return sessions.size();
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    int status = HttpURLConnection.HTTP_OK;
+    String response;
+    try {
+      String service = exchange.getRequestURI().getPath().substring(SERVICES_PATH.length());
+      if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+        compressedRequestCount.incrementAndGet();
+      }
+      Request request = parse(exchange);
+      count(request.operation);
+      delay();
+      if (errorRate > 0 && random.nextDouble() < errorRate) {
+        throw new IllegalStateException("Injected failure of " + request.operation);
+      }
+      response = dispatch(service, request);
+    } catch (RuntimeException e) {
+      LOG.debug("Polarion stand-in fault", e);
+      status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+      response = envelope("", "<soapenv:Fault><faultcode>soapenv:Server</faultcode><faultstring>" + escape(e.getMessage())
+        + "</faultstring></soapenv:Fault>");
+    }
+    write(exchange, status, response);
+  }
+
+  private void count(String operation) {
+    AtomicInteger count = requestCounts.get(operation);
+    if (count == null) {
+      requestCounts.putIfAbsent(operation, new AtomicInteger());
+      count = requestCounts.get(operation);
+    }
+    count.incrementAndGet();
+  }
+
+  private void delay() {
+    int latency = minLatencyMillis + (maxLatencyMillis > minLatencyMillis ? random.nextInt(maxLatencyMillis - minLatencyMillis + 1) : 0);
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private String dispatch(String service, Request request) {
+    if ("SessionWebService".equals(service)) {
+      return session(request);
+    }
+    if (request.sessionId == null || !sessions.containsKey(request.sessionId)) {
+      throw new IllegalStateException("Not authorized, log in first");
+    }
+    if ("TrackerWebService".equals(service)) {
+      return tracker(request);
+    }
+    if ("ProjectWebService".equals(service)) {
+      return project(request);
+    }
+    throw new IllegalArgumentException("Unknown service: " + service);
+  }
+
+  private String session(Request request) {
+    String op = request.operation;
+    if ("logIn".equals(op)) {
+      if (request.text("userName") == null) {
+        throw new IllegalArgumentException("Missing user name");
+      }
+      String sessionId = Long.toString(sessionIds.incrementAndGet());
+      sessions.put(sessionId, request.text("userName"));
+      return envelope("<s:sessionID xmlns:s=\"" + SESSION_NS + "\">" + sessionId + "</s:sessionID>", response(request, ""));
+    }
+    if ("endSession".equals(op)) {
+      if (request.sessionId != null) {
+        sessions.remove(request.sessionId);
+      }
+      return envelope("", response(request, ""));
+    }
+    if ("hasSubject".equals(op)) {
+      boolean loggedIn = request.sessionId != null && sessions.containsKey(request.sessionId);
+      return envelope("", response(request, simple(op, Boolean.toString(loggedIn))));
+    }
+    throw unsupported(request);
+  }
+
+  private String tracker(Request request) {
+    String op = request.operation;
+    StringBuilder xml = new StringBuilder();
+    if ("queryWorkItems".equals(op) || "queryWorkItemsLimited".equals(op)) {
+      Set<String> fields = fields(request.texts("fields"));
+      for (Defect defect : limit(dataset.query(request.text("query")), request.text("resultsLimit"))) {
+        appendWorkItem(xml, "impl:" + op + "Return", defect, fields);
+      }
+    } else if ("queryWorkItemUris".equals(op) || "queryWorkItemUrisLimited".equals(op)) {
+      for (Defect defect : limit(dataset.query(request.text("query")), request.text("resultsLimit"))) {
+        xml.append(simple(op, defect.getUri()));
+      }
+    } else if (sqlSupported && "queryWorkItemUrisBySQL".equals(op)) {
+      count(SQL_QUERY);
+      for (Defect defect : dataset.querySql(request.text("sqlQuery"))) {
+        xml.append(simple(op, defect.getUri()));
+      }
+    } else if ("getWorkItemsCount".equals(op)) {
+      xml.append(simple(op, Integer.toString(countWorkItems(request.text("query")))));
+    } else if ("getWorkItemByUri".equals(op) || "getWorkItemByUriWithFields".equals(op)) {
+      Defect defect = dataset.getDefect(request.text("uri"));
+      if (defect == null) {
+        throw new IllegalArgumentException("Unknown work item: " + request.text("uri"));
+      }
+      appendWorkItem(xml, "impl:" + op + "Return", defect, fields(request.texts("fields")));
+    } else if ("getEnumOptionsForKey".equals(op) || "getEnumOptionsForKeyWithControl".equals(op)) {
+      appendEnumOptions(xml, op, request.text("key"));
+    } else if ("createWorkItem".equals(op)) {
+      xml.append(simple(op, createWorkItem(request.child("content")).getUri()));
+    } else if ("createComment".equals(op) || "createCommentNew".equals(op)) {
+      Element content = request.child("content");
+      String text = content == null ? null : Request.text(content, "content");
+      xml.append(simple(op, dataset.addComment(request.text("parentURI"), request.text("title"), text)));
+    } else {
+      throw unsupported(request);
+    }
+    return envelope("", response(request, xml.toString()));
+  }
+
+  /**
+   * Lucene queries may embed a query on the SQL layer as {@code SQL:(SELECT ...)}.
+   */
+  private int countWorkItems(String query) {
+    if (!query.startsWith(SQL_QUERY + ":(") || !query.endsWith(")")) {
+      return dataset.query(query).size();
+    }
+    count(SQL_QUERY);
+    if (!sqlSupported) {
+      throw new IllegalArgumentException("SQL queries are not supported by the Polarion stand-in: " + query);
+    }
+    return dataset.querySql(query.substring(SQL_QUERY.length() + 2, query.length() - 1)).size();
+  }
+
+  private String project(Request request) {
+    if (!"getProject".equals(request.operation)) {
+      throw unsupported(request);
+    }
+    String projectId = request.text("projectID");
+    String element = "impl:getProjectReturn";
+    StringBuilder xml = new StringBuilder();
+    if (dataset.hasProject(projectId)) {
+      xml.append('<').append(element).append(" uri=\"").append(escape(SyntheticDataset.projectUri(projectId)))
+        .append("\" unresolvable=\"false\"><pt:id>").append(escape(projectId)).append("</pt:id><pt:name>")
+        .append(escape(projectId)).append("</pt:name></").append(element).append('>');
+    } else {
+      // Polarion answers unknown projects with an unresolvable project rather than a fault
+      xml.append('<').append(element).append(" unresolvable=\"true\"/>");
+    }
+    return envelope("", response(request, xml.toString()));
+  }
+
+  private Defect createWorkItem(Element content) {
+    if (content == null) {
+      throw new IllegalArgumentException("Missing work item content");
+    }
+    Element project = Request.child(content, "project");
+    String projectId = project == null ? null : SyntheticDataset.projectIdOfUri(project.getAttribute("uri"));
+    if (projectId == null) {
+      projectId = project == null ? null : Request.text(project, "id");
+    }
+    return dataset.createWorkItem(projectId, enumOptionId(content, "type"), Request.text(content, "title"),
+      enumOptionId(content, "severity"));
+  }
+
+  private static String enumOptionId(Element workItem, String field) {
+    Element enumOption = Request.child(workItem, field);
+    return enumOption == null ? null : Request.text(enumOption, "id");
+  }
+
+  private void appendEnumOptions(StringBuilder xml, String op, String key) {
+    List<String> ids;
+    if ("severity".equals(key)) {
+      ids = SyntheticDataset.SEVERITIES;
+    } else if ("resolution".equals(key)) {
+      ids = SyntheticDataset.RESOLUTIONS;
+    } else if ("type".equals(key)) {
+      ids = Collections.singletonList(SyntheticDataset.DEFECT_TYPE);
+    } else {
+      ids = Collections.emptyList();
+    }
+    String element = "impl:" + op + "Return";
+    for (int i = 0; i < ids.size(); i++) {
+      String id = ids.get(i);
+      xml.append('<').append(element).append("><tt:default>").append(i == 0).append("</tt:default><tt:enumId>")
+        .append(escape(key)).append("</tt:enumId><tt:hidden>false</tt:hidden><tt:id>").append(escape(id))
+        .append("</tt:id><tt:name>").append(escape(Character.toUpperCase(id.charAt(0)) + id.substring(1)))
+        .append("</tt:name><tt:phantom>false</tt:phantom><tt:sequenceNumber>").append(i)
+        .append("</tt:sequenceNumber></").append(element).append('>');
+    }
+  }
+
+  /**
+   * Like Polarion, only the requested fields are returned; no requested fields means all of them.
+   */
+  private static void appendWorkItem(StringBuilder xml, String element, Defect defect, Set<String> fields) {
+    xml.append('<').append(element).append(" uri=\"").append(escape(defect.getUri())).append("\" unresolvable=\"false\">");
+    xml.append("<tt:id>").append(escape(defect.getId())).append("</tt:id>");
+    if (wants(fields, "project")) {
+      xml.append("<tt:project uri=\"").append(escape(SyntheticDataset.projectUri(defect.getProjectId())))
+        .append("\" unresolvable=\"false\"/>");
+    }
+    if (wants(fields, "resolution") && defect.getResolution() != null) {
+      appendEnumOptionId(xml, "resolution", defect.getResolution());
+    }
+    if (wants(fields, "severity") && defect.getSeverity() != null) {
+      appendEnumOptionId(xml, "severity", defect.getSeverity());
+    }
+    if (wants(fields, "title") && defect.getTitle() != null) {
+      xml.append("<tt:title>").append(escape(defect.getTitle())).append("</tt:title>");
+    }
+    if (wants(fields, "type") && defect.getType() != null) {
+      appendEnumOptionId(xml, "type", defect.getType());
+    }
+    if (wants(fields, "updated")) {
+      SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      xml.append("<tt:updated>").append(format.format(new Date(defect.getUpdated()))).append("</tt:updated>");
+    }
+    xml.append("</").append(element).append('>');
+  }
+
+  private static void appendEnumOptionId(StringBuilder xml, String field, String id) {
+    xml.append("<tt:").append(field).append("><tt:id>").append(escape(id)).append("</tt:id></tt:").append(field).append('>');
+  }
+
+  private static boolean wants(Set<String> fields, String field) {
+    return fields.isEmpty() || fields.contains(field);
+  }
+
+  private static Set<String> fields(List<String> requested) {
+    return Sets.newHashSet(requested);
+  }
+
+  private static List<Defect> limit(List<Defect> defects, String resultsLimit) {
+    if (resultsLimit == null) {
+      return defects;
+    }
+    int limit = Integer.parseInt(resultsLimit);
+    return limit >= 0 && limit < defects.size() ? defects.subList(0, limit) : defects;
+  }
+
+  private static String simple(String op, String value) {
+    return "<impl:" + op + "Return>" + escape(value) + "</impl:" + op + "Return>";
+  }
+
+  private static String response(Request request, String content) {
+    return "<impl:" + request.operation + "Response xmlns:impl=\"" + request.namespace + "\">" + content
+      + "</impl:" + request.operation + "Response>";
+  }
+
+  private static String envelope(String header, String body) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+      + "<soapenv:Envelope xmlns:soapenv=\"" + SOAP_ENV_NS + "\" xmlns:tt=\"" + TRACKER_TYPES_NS + "\" xmlns:pt=\""
+      + PROJECT_TYPES_NS + "\" xmlns:t=\"" + TYPES_NS + "\">"
+      + "<soapenv:Header>" + header + "</soapenv:Header><soapenv:Body>" + body + "</soapenv:Body></soapenv:Envelope>";
+  }
+
+  private static IllegalArgumentException unsupported(Request request) {
+    return new IllegalArgumentException("Operation not supported by the Polarion stand-in: " + request.operation);
+  }
+
+  private static String escape(String value) {
+    return StringEscapeUtils.escapeXml(value);
+  }
+
+  private static Request parse(HttpExchange exchange) throws IOException {
+    InputStream body = exchange.getRequestBody();
+    if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+      body = new GZIPInputStream(body);
+    }
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware(true);
+      return new Request(factory.newDocumentBuilder().parse(body));
+    } catch (ParserConfigurationException e) {
+      throw new IllegalStateException(e);
+    } catch (SAXException e) {
+      throw new IllegalArgumentException("Malformed SOAP request", e);
+    } finally {
+      IOUtils.closeQuietly(body);
+    }
+  }
+
+  private static void write(HttpExchange exchange, int status, String response) throws IOException {
+    byte[] bytes = response.getBytes(Charsets.UTF_8);
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+      gzip.write(bytes);
+      gzip.close();
+      bytes = compressed.toByteArray();
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * A parsed SOAP request. Parameters are looked up by local name, whatever their namespace.
+   */
+  private static class Request {
+    private final String operation;
+    private final String namespace;
+    private final String sessionId;
+    private final Element element;
+
+    Request(Document document) {
+      Element envelope = document.getDocumentElement();
+      Element header = child(envelope, "Header");
+      Element body = child(envelope, "Body");
+      element = body == null ? null : firstElement(body);
+      if (element == null) {
+        throw new IllegalArgumentException("SOAP request without operation");
+      }
+      operation = element.getLocalName();
+      namespace = element.getNamespaceURI();
+      sessionId = header == null ? null : text(header, "sessionID");
+    }
+
+    String text(String name) {
+      return text(element, name);
+    }
+
+    List<String> texts(String name) {
+      List<String> texts = Lists.newArrayList();
+      for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+        if (node instanceof Element && name.equals(node.getLocalName())) {
+          texts.add(node.getTextContent().trim());
+        }
+      }
+      return texts;
+    }
+
+    Element child(String name) {
+      return child(element, name);
+    }
+
+    static String text(Element parent, String name) {
+      Element child = child(parent, name);
+      return child == null || "true".equals(child.getAttributeNS("http://www.w3.org/2001/XMLSchema-instance", "nil")) ?
+        null : child.getTextContent().trim();
+    }
+
+    static Element child(Element parent, String name) {
+      for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+        if (node instanceof Element && name.equals(node.getLocalName())) {
+          return (Element) node;
+        }
+      }
+      return null;
+    }
+
+    private static Element firstElement(Element parent) {
+      for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+        if (node instanceof Element) {
+          return (Element) node;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Serves a synthetic dataset until the process is killed.
+   * Arguments, all optional: port, number of projects, defects per project, latency in ms, error rate.
+   */
+  public static void main(String[] args) throws IOException {
+    int port = args.length > 0 ? Integer.parseInt(args[0]) : 8888;
+    int projects = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+    int defectsPerProject = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+    int latency = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+    double errorRate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+    PolarionStandInServer server = new PolarionStandInServer(new SyntheticDataset(projects, defectsPerProject, 42L));
+    server.setLatency(latency, latency);
+    server.setErrorRate(errorRate);
+    server.start(port);
+    LOG.info("Serving Polarion projects " + server.getDataset().getProjectIds() + " with " + defectsPerProject + " defects each");
+  }
+}
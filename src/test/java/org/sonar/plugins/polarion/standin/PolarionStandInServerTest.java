@@ -0,0 +1,330 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.standin;
+
+import com.polarion.alm.ws.client.types.tracker.EnumOption;
+import com.polarion.alm.ws.client.types.tracker.WorkItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.sonar.api.batch.SensorContext;
+import org.sonar.api.config.PropertyDefinitions;
+import org.sonar.api.config.Settings;
+import org.sonar.api.issue.internal.DefaultIssue;
+import org.sonar.api.issue.internal.DefaultIssueComment;
+import org.sonar.api.measures.Measure;
+import org.sonar.api.resources.Project;
+import org.sonar.api.rule.RuleKey;
+import org.sonar.api.rules.RuleFinder;
+import org.sonar.plugins.polarion.PolarionConstants;
+import org.sonar.plugins.polarion.PolarionPlugin;
+import org.sonar.plugins.polarion.metrics.PolarionMetrics;
+import org.sonar.plugins.polarion.metrics.PolarionSensor;
+import org.sonar.plugins.polarion.reviews.PolarionIssueCreator;
+import org.sonar.plugins.polarion.soap.PolarionSession;
+
+import java.rmi.RemoteException;
+import java.util.Date;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PolarionStandInServerTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private SyntheticDataset dataset;
+  private PolarionStandInServer server;
+
+  @Before
+  public void startServer() throws Exception {
+    dataset = new SyntheticDataset(2, 50, 1L);
+    server = new PolarionStandInServer(dataset);
+    server.start();
+  }
+
+  @After
+  public void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void shouldServeTheSyntheticDatasetToThePolarionClient() throws Exception {
+    PolarionSession session = new PolarionSession(server.getServerUrl());
+    session.connect("admin", "admin");
+
+    assertThat(session.isLoggedIn()).isTrue();
+    WorkItem[] defects = session.getTrackerService().queryWorkItems("type:defect AND project.id:PROJ1", null,
+      new String[] {"severity", "resolution"});
+    assertThat(defects).hasSize(50);
+    assertThat(defects[0].getId()).isEqualTo("PROJ1-1");
+    assertThat(defects[0].getSeverity().getId()).isEqualTo(dataset.query("id:PROJ1-1").get(0).getSeverity());
+    assertThat(defects[0].getTitle()).isNull();
+    assertThat(session.getTrackerService().getWorkItemsCount("type:defect AND !resolved AND project.id:PROJ2"))
+      .isEqualTo(dataset.query("type:defect AND !resolved AND project.id:PROJ2").size());
+    assertThat(session.getTrackerService().queryWorkItemUris("project.id:(PROJ1 PROJ2)", null)).hasSize(100);
+
+    EnumOption[] severities = session.getTrackerService().getEnumOptionsForKeyWithControl("PROJ1", "severity", "defect");
+    assertThat(severities).hasSize(SyntheticDataset.SEVERITIES.size());
+    assertThat(severities[0].getName()).isEqualTo("Blocker");
+    assertThat(session.getProjectService().getProject("PROJ1").isUnresolvable()).isFalse();
+    assertThat(session.getProjectService().getProject("UNKNOWN").isUnresolvable()).isTrue();
+
+    session.disconnect();
+    assertThat(server.getOpenSessionCount()).isEqualTo(0);
+    assertThat(server.getRequestCount("queryWorkItems")).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldRefuseRequestsWithoutSession() throws Exception {
+    PolarionSession session = new PolarionSession(server.getServerUrl());
+    session.connect("admin", "admin");
+    session.disconnect();
+
+    try {
+      session.getTrackerService().getWorkItemsCount("type:defect");
+      fail();
+    } catch (RemoteException e) {
+      assertThat(e.getMessage()).contains("Not authorized");
+    }
+  }
+
+  @Test
+  public void shouldInjectFailures() throws Exception {
+    server.setErrorRate(1.0);
+    PolarionSession session = new PolarionSession(server.getServerUrl());
+
+    try {
+      session.connect("admin", "admin");
+      fail();
+    } catch (RemoteException e) {
+      assertThat(e.getMessage()).contains("Injected failure of logIn");
+    }
+  }
+
+  @Test
+  public void shouldDelayResponses() throws Exception {
+    server.setLatency(200, 200);
+    PolarionSession session = new PolarionSession(server.getServerUrl());
+
+    long start = System.currentTimeMillis();
+    session.connect("admin", "admin");
+
+    assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(200L);
+  }
+
+  @Test
+  public void sensorShallCountTheDefectsOfTheStandIn() {
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(sensorSettings()).analyse(new Project("sonar-project"), context);
+
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, atLeastOnce()).saveMeasure(measures.capture());
+    assertMeasuresOfDataset(measures);
+  }
+
+  @Test
+  public void sensorShallQueryEveryProjectWithASessionOfItsOwn() {
+    Settings settings = sensorSettings();
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PARALLELISM_PROPERTY, "2");
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), context);
+
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, atLeastOnce()).saveMeasure(measures.capture());
+    assertMeasuresOfDataset(measures);
+    assertThat(server.getRequestCount("logIn")).isEqualTo(2);
+    assertThat(server.getOpenSessionCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void sensorShallFallBackToTheLastKnownMeasuresWhileTheStandInIsDown() {
+    Settings settings = sensorSettings();
+    settings.setProperty(PolarionConstants.CIRCUIT_BREAKER_THRESHOLD_PROPERTY, "1");
+    settings.setProperty(PolarionConstants.RETRY_MAX_ATTEMPTS_PROPERTY, "1");
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), mock(SensorContext.class));
+    server.stop();
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), context);
+
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, times(2)).saveMeasure(measures.capture());
+    assertMeasuresOfDataset(measures);
+  }
+
+  @Test
+  public void sensorShallNotWaitForASlowStandInLongerThanTheRefreshBudget() {
+    Settings settings = sensorSettings();
+    settings.setProperty(PolarionConstants.MEASURES_REFRESH_BUDGET_PROPERTY, "1");
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), mock(SensorContext.class));
+    server.setLatency(3000, 3000);
+    SensorContext context = mock(SensorContext.class);
+
+    long start = System.currentTimeMillis();
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), context);
+
+    assertThat(System.currentTimeMillis() - start).isLessThan(3000);
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, times(2)).saveMeasure(measures.capture());
+    assertMeasuresOfDataset(measures);
+  }
+
+  @Test
+  public void sensorShallCountTheDefectsWithSqlQueries() {
+    server.setSqlSupported(true);
+    Settings settings = sensorSettings();
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_SQL);
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), context);
+
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, atLeastOnce()).saveMeasure(measures.capture());
+    assertMeasuresOfDataset(measures);
+    assertThat(server.getRequestCount(PolarionStandInServer.SQL_QUERY)).isGreaterThan(1);
+    assertThat(server.getRequestCount("queryWorkItems")).isEqualTo(0);
+    assertThat(server.getRequestCount("queryWorkItemUris")).isEqualTo(0);
+    assertThat(server.getRequestCount("queryWorkItemUrisBySQL")).isEqualTo(0);
+  }
+
+  @Test
+  public void sensorShallFallBackToLuceneQueriesWithoutSqlSupport() {
+    server.setSqlSupported(false);
+    Settings settings = sensorSettings();
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_SQL);
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), context);
+
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, atLeastOnce()).saveMeasure(measures.capture());
+    assertMeasuresOfDataset(measures);
+    assertThat(server.getRequestCount(PolarionStandInServer.SQL_QUERY)).isEqualTo(1);
+  }
+
+  @Test
+  public void sensorShallComputeCustomMetricsSharingAQueryFromOneFetch() {
+    Settings settings = sensorSettings();
+    settings.setProperty(PolarionConstants.POLARION_AGGREGATION_MODE_PROPERTY, PolarionConstants.AGGREGATION_MODE_COUNT);
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "0");
+    settings.setProperty(PolarionConstants.CUSTOM_METRICS_PROPERTY, "1,2,3");
+    setCustomMetric(settings, "1", "openBySeverity", "!resolved", "severity");
+    setCustomMetric(settings, "2", "openByType", "!resolved", "type");
+    setCustomMetric(settings, "3", "resolvedByResolution", "resolved", "resolution");
+    SensorContext context = mock(SensorContext.class);
+
+    new PolarionSensor(settings).analyse(new Project("sonar-project"), context);
+
+    ArgumentCaptor<Measure> measures = ArgumentCaptor.forClass(Measure.class);
+    verify(context, atLeastOnce()).saveMeasure(measures.capture());
+    double openDefects = dataset.query("type:defect AND !resolved").size();
+    double resolvedDefects = dataset.query("type:defect AND resolved").size();
+    int customMeasures = 0;
+    for (Measure measure : measures.getAllValues()) {
+      if ("openBySeverity".equals(measure.getMetricKey()) || "openByType".equals(measure.getMetricKey())) {
+        assertThat(measure.getValue()).isEqualTo(openDefects);
+        customMeasures++;
+      } else if ("resolvedByResolution".equals(measure.getMetricKey())) {
+        assertThat(measure.getValue()).isEqualTo(resolvedDefects);
+        assertThat(measure.getData()).contains("Done=" + dataset.query("resolution:done").size());
+        customMeasures++;
+      }
+    }
+    assertThat(customMeasures).isEqualTo(3);
+    assertThat(server.getRequestCount("queryWorkItems")).isEqualTo(4);
+  }
+
+  private static void setCustomMetric(Settings settings, String id, String key, String query, String groupBy) {
+    String prefix = PolarionConstants.CUSTOM_METRICS_PROPERTY + "." + id + ".";
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_KEY_FIELD, key);
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_TYPE_FIELD, "defect");
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_QUERY_FIELD, query);
+    settings.setProperty(prefix + PolarionConstants.CUSTOM_METRIC_GROUP_BY_FIELD, groupBy);
+  }
+
+  private Settings sensorSettings() {
+    Settings settings = new Settings();
+    settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, server.getServerUrl());
+    settings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PROJECT_ID, "PROJ1,PROJ2");
+    settings.setProperty(PolarionConstants.POLARION_FETCH_PAGE_SIZE_PROPERTY, "20");
+    settings.setProperty(PolarionConstants.WORK_DIR_PROPERTY, temp.getRoot().getAbsolutePath());
+    return settings;
+  }
+
+  private void assertMeasuresOfDataset(ArgumentCaptor<Measure> measures) {
+    double openDefects = dataset.query("!resolved").size();
+    double resolvedDefects = dataset.query("resolved").size();
+    for (Measure measure : measures.getAllValues()) {
+      if (PolarionMetrics.OPENISSUES.equals(measure.getMetric())) {
+        assertThat(measure.getValue()).isEqualTo(openDefects);
+        openDefects = -1;
+      } else if (PolarionMetrics.RESOLVEDISSUES.equals(measure.getMetric())) {
+        assertThat(measure.getValue()).isEqualTo(resolvedDefects);
+        resolvedDefects = -1;
+      }
+    }
+    assertThat(openDefects).isEqualTo(-1.0);
+    assertThat(resolvedDefects).isEqualTo(-1.0);
+  }
+
+  @Test
+  public void issueCreatorShallCreateDefectsInTheStandIn() throws Exception {
+    RuleFinder ruleFinder = mock(RuleFinder.class);
+    when(ruleFinder.findByKey(RuleKey.of("squid", "CycleBetweenPackages")))
+      .thenReturn(org.sonar.api.rules.Rule.create().setName("Avoid cycle between java packages"));
+    Settings settings = new Settings(new PropertyDefinitions(PolarionIssueCreator.class, PolarionPlugin.class));
+    settings.setProperty(PolarionConstants.SERVER_URL_PROPERTY, server.getServerUrl());
+    settings.setProperty(PolarionConstants.POLARION_USERNAME_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.POLARION_PASSWORD_PROPERTY, "admin");
+    settings.setProperty(PolarionConstants.POLARION_CREATE_PROJECT_ID, "PROJ2");
+    DefaultIssueComment comment = new DefaultIssueComment();
+    comment.setUserLogin("admin");
+    comment.setMarkdownText("remove code");
+    comment.setCreatedAt(new Date());
+    DefaultIssue sonarIssue = new DefaultIssue()
+      .setKey("ABCD")
+      .setMessage("Cycle detected")
+      .setSeverity("MAJOR")
+      .addComment(comment)
+      .setRuleKey(RuleKey.of("squid", "CycleBetweenPackages"));
+
+    String defectId = new PolarionIssueCreator(ruleFinder).createIssue(sonarIssue, settings);
+
+    assertThat(defectId).isEqualTo("PROJ2-51");
+    SyntheticDataset.Defect defect = dataset.query("id:PROJ2-51").get(0);
+    assertThat(defect.getTitle()).contains("Avoid cycle between java packages");
+    assertThat(defect.getComments()).hasSize(1);
+    assertThat(server.getOpenSessionCount()).isEqualTo(0);
+  }
+}
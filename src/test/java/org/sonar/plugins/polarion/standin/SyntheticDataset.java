@@ -0,0 +1,382 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.standin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.lang.StringUtils;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Generated Polarion projects full of defects, queried with the subset of the Polarion query syntax the plugin uses.
+ * The same seed always generates the same defects.
+ */
+public class SyntheticDataset {
+  public static final String DEFECT_TYPE = "defect";
+  public static final List<String> SEVERITIES = ImmutableList.of("blocker", "critical", "major", "normal", "minor");
+  public static final List<String> RESOLUTIONS = ImmutableList.of("done", "invalid", "wontdo", "duplicate");
+
+  private static final double RESOLVED_RATIO = 0.4;
+  private static final int MAX_AGE_DAYS = 365;
+  private static final long DAY = 24L * 60 * 60 * 1000;
+  private static final String PROJECT_URI_PREFIX = "subterra:data-service:objects:/default/";
+
+  private final List<String> projectIds = Lists.newArrayList();
+  private final List<Defect> defects = new CopyOnWriteArrayList<Defect>();
+  private final Map<String, Defect> defectsByUri = new ConcurrentHashMap<String, Defect>();
+  private final AtomicInteger sequence;
+
+  public SyntheticDataset(int numberOfProjects, int defectsPerProject, long seed) {
+    Random random = new Random(seed);
+    long now = System.currentTimeMillis();
+    List<Defect> generated = Lists.newArrayList();
+    for (int p = 1; p <= numberOfProjects; p++) {
+      String projectId = "PROJ" + p;
+      projectIds.add(projectId);
+      for (int i = 1; i <= defectsPerProject; i++) {
+        String severity = SEVERITIES.get(random.nextInt(SEVERITIES.size()));
+        String resolution = random.nextDouble() < RESOLVED_RATIO ? RESOLUTIONS.get(random.nextInt(RESOLUTIONS.size())) : null;
+        long updated = now - random.nextInt(MAX_AGE_DAYS) * DAY;
+        generated.add(new Defect(projectId, projectId + "-" + i, DEFECT_TYPE, "Synthetic defect " + i, severity, resolution, updated));
+      }
+    }
+    for (Defect defect : generated) {
+      defectsByUri.put(defect.getUri(), defect);
+    }
+    defects.addAll(generated);
+    sequence = new AtomicInteger(defectsPerProject);
+  }
+
+  public List<String> getProjectIds() {
+    return Collections.unmodifiableList(projectIds);
+  }
+
+  public boolean hasProject(String projectId) {
+    return projectIds.contains(projectId);
+  }
+
+  public static String projectUri(String projectId) {
+    return PROJECT_URI_PREFIX + projectId + "${Project}" + projectId;
+  }
+
+  /**
+   * @return the id of the project with the given URI, or null if the URI is not a project URI
+   */
+  public static String projectIdOfUri(String uri) {
+    int separator = uri.lastIndexOf("${Project}");
+    return separator < 0 ? null : uri.substring(separator + "${Project}".length());
+  }
+
+  public Defect getDefect(String uri) {
+    return defectsByUri.get(uri);
+  }
+
+  public List<Defect> query(String query) {
+    Matcher matcher = parse(query);
+    List<Defect> matching = Lists.newArrayList();
+    for (Defect defect : defects) {
+      if (matcher.matches(defect)) {
+        matching.add(defect);
+      }
+    }
+    return matching;
+  }
+
+  /**
+   * Answers SQL queries whose WHERE clause is a conjunction of {@code column = 'value'} and {@code column IS NULL}
+   * conditions on the WORKITEM and PROJECT tables.
+   */
+  public List<Defect> querySql(String sql) {
+    int where = sql.indexOf(" WHERE ");
+    if (where < 0) {
+      throw new IllegalArgumentException("Unsupported SQL query: " + sql);
+    }
+    List<String> terms = Lists.newArrayList();
+    for (String condition : sql.substring(where + " WHERE ".length()).split(" AND ")) {
+      java.util.regex.Matcher isNull = SQL_IS_NULL.matcher(condition.trim());
+      java.util.regex.Matcher equals = SQL_EQUALS.matcher(condition.trim());
+      if (isNull.matches() && "WORKITEM.C_URI".equals(isNull.group(1))) {
+        return Lists.newArrayList();
+      } else if (isNull.matches() && "WORKITEM.C_RESOLUTION".equals(isNull.group(1))) {
+        terms.add("!resolved");
+      } else if (equals.matches()) {
+        terms.add(sqlField(equals.group(1)) + ":" + equals.group(2).replace("''", "'"));
+      } else {
+        throw new IllegalArgumentException("Unsupported SQL condition: " + condition);
+      }
+    }
+    return query(StringUtils.join(terms, " AND "));
+  }
+
+  private static String sqlField(String column) {
+    if ("PROJECT.C_ID".equals(column)) {
+      return "project.id";
+    }
+    if (column.startsWith("WORKITEM.C_")) {
+      return column.substring("WORKITEM.C_".length()).toLowerCase(Locale.ENGLISH);
+    }
+    throw new IllegalArgumentException("Unsupported SQL column: " + column);
+  }
+
+  public Defect createWorkItem(String projectId, String type, String title, String severity) {
+    if (!hasProject(projectId)) {
+      throw new IllegalArgumentException("Unknown project: " + projectId);
+    }
+    Defect defect = new Defect(projectId, projectId + "-" + sequence.incrementAndGet(), type, title, severity, null,
+      System.currentTimeMillis());
+    defectsByUri.put(defect.getUri(), defect);
+    defects.add(defect);
+    return defect;
+  }
+
+  /**
+   * @return the URI of the new comment
+   */
+  public String addComment(String workItemUri, String title, String text) {
+    Defect defect = getDefect(workItemUri);
+    if (defect == null) {
+      throw new IllegalArgumentException("Unknown work item: " + workItemUri);
+    }
+    return defect.addComment(title, text);
+  }
+
+  private static final Pattern SQL_IS_NULL = Pattern.compile("([A-Z_.]+) IS NULL");
+  private static final Pattern SQL_EQUALS = Pattern.compile("([A-Z_.]+) = '((?:[^']|'')*)'");
+
+  static Matcher parse(String query) {
+    final List<Matcher> terms = Lists.newArrayList();
+    for (String term : splitConjunction(query.trim())) {
+      terms.add(parseTerm(term));
+    }
+    return new Matcher() {
+      public boolean matches(Defect defect) {
+        for (Matcher term : terms) {
+          if (!term.matches(defect)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  private static List<String> splitConjunction(String query) {
+    List<String> terms = Lists.newArrayList();
+    int depth = 0;
+    int start = 0;
+    for (int i = 0; i < query.length(); i++) {
+      char c = query.charAt(i);
+      if (c == '(' || c == '[') {
+        depth++;
+      } else if (c == ')' || c == ']') {
+        depth--;
+      } else if (depth == 0 && query.startsWith(" AND ", i)) {
+        terms.add(query.substring(start, i).trim());
+        start = i + " AND ".length();
+      }
+    }
+    terms.add(query.substring(start).trim());
+    return terms;
+  }
+
+  private static Matcher parseTerm(String term) {
+    if (isGroup(term)) {
+      return parse(term.substring(1, term.length() - 1));
+    }
+    if (term.startsWith("NOT ")) {
+      return not(parseTerm(term.substring("NOT ".length()).trim()));
+    }
+    if (term.startsWith("!")) {
+      return not(parseTerm(term.substring(1)));
+    }
+    if ("resolved".equals(term) || "HAS_VALUE:resolution".equals(term)) {
+      return new Matcher() {
+        public boolean matches(Defect defect) {
+          return defect.getResolution() != null;
+        }
+      };
+    }
+    int colon = term.indexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("Unsupported query term: " + term);
+    }
+    final String field = term.substring(0, colon);
+    String value = term.substring(colon + 1);
+    if ("updated".equals(field)) {
+      return updatedSince(value);
+    }
+    if (!Defect.QUERYABLE_FIELDS.contains(field)) {
+      throw new IllegalArgumentException("Unsupported query field: " + field);
+    }
+    final Set<String> values = Sets.newHashSet();
+    if (value.startsWith("(") && value.endsWith(")")) {
+      Collections.addAll(values, value.substring(1, value.length() - 1).trim().split("\\s+"));
+    } else if (value.indexOf(' ') < 0) {
+      values.add(value);
+    } else {
+      throw new IllegalArgumentException("Unsupported query term: " + term);
+    }
+    return new Matcher() {
+      public boolean matches(Defect defect) {
+        return values.contains(defect.getField(field));
+      }
+    };
+  }
+
+  private static boolean isGroup(String term) {
+    if (!term.startsWith("(") || !term.endsWith(")")) {
+      return false;
+    }
+    int depth = 0;
+    for (int i = 0; i < term.length() - 1; i++) {
+      if (term.charAt(i) == '(') {
+        depth++;
+      } else if (term.charAt(i) == ')') {
+        depth--;
+      }
+      if (depth == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Matcher not(final Matcher matcher) {
+    return new Matcher() {
+      public boolean matches(Defect defect) {
+        return !matcher.matches(defect);
+      }
+    };
+  }
+
+  /**
+   * Only open ranges like <code>[20140101 TO *]</code> are supported.
+   */
+  private static Matcher updatedSince(String range) {
+    if (!range.startsWith("[") || !range.endsWith(" TO *]")) {
+      throw new IllegalArgumentException("Unsupported date range: " + range);
+    }
+    final long from;
+    try {
+      from = new SimpleDateFormat("yyyyMMdd").parse(range.substring(1, range.indexOf(' '))).getTime();
+    } catch (ParseException e) {
+      throw new IllegalArgumentException("Unsupported date range: " + range, e);
+    }
+    return new Matcher() {
+      public boolean matches(Defect defect) {
+        return defect.getUpdated() >= from;
+      }
+    };
+  }
+
+  interface Matcher {
+    boolean matches(Defect defect);
+  }
+
+  public static class Defect {
+    static final Set<String> QUERYABLE_FIELDS = Sets.newHashSet("id", "type", "project.id", "severity", "resolution");
+
+    private final String projectId;
+    private final String id;
+    private final String type;
+    private final String title;
+    private final String severity;
+    private final String resolution;
+    private final long updated;
+    private final List<String> comments = new CopyOnWriteArrayList<String>();
+
+    Defect(String projectId, String id, String type, String title, String severity, String resolution, long updated) {
+      this.projectId = projectId;
+      this.id = id;
+      this.type = type;
+      this.title = title;
+      this.severity = severity;
+      this.resolution = resolution;
+      this.updated = updated;
+    }
+
+    public String getUri() {
+      return PROJECT_URI_PREFIX + projectId + "${WorkItem}" + id;
+    }
+
+    public String getProjectId() {
+      return projectId;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public String getTitle() {
+      return title;
+    }
+
+    public String getSeverity() {
+      return severity;
+    }
+
+    public String getResolution() {
+      return resolution;
+    }
+
+    public long getUpdated() {
+      return updated;
+    }
+
+    public List<String> getComments() {
+      return Collections.unmodifiableList(comments);
+    }
+
+    synchronized String addComment(String title, String text) {
+      comments.add(title + "\n" + text);
+      return getUri() + "#comment-" + comments.size();
+    }
+
+    String getField(String field) {
+      if ("id".equals(field)) {
+        return id;
+      } else if ("type".equals(field)) {
+        return type;
+      } else if ("project.id".equals(field)) {
+        return projectId;
+      } else if ("severity".equals(field)) {
+        return severity;
+      }
+      return resolution;
+    }
+  }
+}
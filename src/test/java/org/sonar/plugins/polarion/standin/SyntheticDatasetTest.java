@@ -0,0 +1,72 @@
+/*
+ * Sonar, open source software quality management tool.
+ * Copyright (C) 2009 SonarSource
+ * mailto:contact AT sonarsource DOT com
+ *
+ * Sonar is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * Sonar is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Sonar; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02
+ */
+package org.sonar.plugins.polarion.standin;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SyntheticDatasetTest {
+
+  private final SyntheticDataset dataset = new SyntheticDataset(2, 100, 7L);
+
+  @Test
+  public void shouldGenerateTheSameDefectsForTheSameSeed() {
+    SyntheticDataset other = new SyntheticDataset(2, 100, 7L);
+
+    assertThat(dataset.query("type:defect")).hasSize(200);
+    for (String severity : SyntheticDataset.SEVERITIES) {
+      assertThat(other.query("severity:" + severity).size()).isEqualTo(dataset.query("severity:" + severity).size());
+    }
+  }
+
+  @Test
+  public void shouldMatchTheQueriesOfThePlugin() {
+    int open = dataset.query("type:defect AND !resolved AND project.id:PROJ1").size();
+    int resolved = dataset.query("type:defect AND resolved AND project.id:PROJ1").size();
+
+    assertThat(open + resolved).isEqualTo(100);
+    assertThat(resolved).isGreaterThan(0);
+    assertThat(dataset.query("type:defect AND NOT HAS_VALUE:resolution AND project.id:PROJ1")).hasSize(open);
+    assertThat(dataset.query("(type:defect AND project.id:(PROJ1 PROJ2)) AND id:(PROJ1-1 PROJ2-7 PROJ3-1)")).hasSize(2);
+    String tomorrow = new SimpleDateFormat("yyyyMMdd").format(new Date(System.currentTimeMillis() + 24L * 60 * 60 * 1000));
+    assertThat(dataset.query("type:defect AND updated:[" + tomorrow + " TO *]")).isEmpty();
+    assertThat(dataset.query("type:defect AND updated:[20000101 TO *]")).hasSize(200);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectUnsupportedQueries() {
+    dataset.query("type:defect OR status:open");
+  }
+
+  @Test
+  public void shouldCreateWorkItemsAndComments() {
+    SyntheticDataset.Defect created = dataset.createWorkItem("PROJ1", "defect", "New defect", "major");
+
+    assertThat(created.getId()).isEqualTo("PROJ1-101");
+    assertThat(dataset.getDefect(created.getUri())).isSameAs(created);
+    assertThat(dataset.query("id:PROJ1-101 AND !resolved")).containsExactly(created);
+    dataset.addComment(created.getUri(), "Title", "Text");
+    assertThat(created.getComments()).containsExactly("Title\nText");
+  }
+}